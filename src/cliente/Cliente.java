@@ -5,10 +5,11 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.border.*;
 import java.io.*;
-import java.net.*;
 import java.util.*;
 import java.util.List;
 import java.nio.file.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Cliente extends JFrame {
     
@@ -18,29 +19,50 @@ public class Cliente extends JFrame {
     private JPanel panelSalas;
     private JPanel panelUsuarios;
     private JPanel panelChat;
-    private JTextArea areaMensajes;
+    private VistaMensajes areaMensajes;
     private JTextField campoMensaje;
     private JButton botonEnviar;
     private JList<String> listaSalas;
     private JList<String> listaUsuarios;
-    private DefaultListModel<String> modeloSalas;
-    private DefaultListModel<String> modeloUsuarios;
+    private ModeloListaOrdenada modeloSalas;
+    private ModeloListaOrdenada modeloUsuarios;
+    private PanelTransferencias panelTransferencias;
+    private PanelBusqueda panelBusqueda;
+    private JLabel etiquetaEstados;
+    private JButton botonMasMiembros;
     
-    // Componentes de red
-    private Socket socket;    private PrintWriter salida;
-    private BufferedReader entrada;
-    private boolean conectado = false;
+    // Con muchos usuarios el servidor no envía la lista completa: la lista muestra los miembros de la
+    // sala actual, pedidos por páginas (sólo se usa desde el hilo de eventos)
+    private boolean listaPaginada;
+    private String cursorMiembros;
+    
+    // Estados de presencia de los demás miembros de la sala actual (sólo los distintos de "activo");
+    // se usa únicamente desde el hilo de eventos
+    private final Map<String, String> estadosSala = new TreeMap<>();
+    private static final int MAX_NOMBRES_ESTADO = 3;
+    
+    // Componentes de red (compartidos con el cliente de consola)
+    private ConexionChat conexion;
     private String nombreUsuario;
-    private String salaActual = "Sala-General";
+    private String salaActual = ConexionChat.SALA_GENERAL;
+    
+    // Historial local de mensajes con índice para búsquedas (Historial<usuario>)
+    private HistorialLocal historial;
+    private static final int MENSAJES_RECIENTES = 50;
+    // Número de la última lectura de recientes pedida; las anteriores se descartan al terminar
+    private int cargaRecientes;
     
     // Constantes y variables de conexión
     private static String HOST = "localhost"; // Cambiado a variable no final
     private static final int PUERTO_DEFECTO = 5000;
     private int puerto = PUERTO_DEFECTO; // Variable de instancia para el puerto
     
-    // Constantes para envío de archivos
-    private static final String COMANDO_ARCHIVO = "/archivo";
-    private static final int TAMAÑO_BUFFER = 4096;
+    // Mensajes recibidos pendientes de mostrar; el hilo de eventos los vacía por lotes
+    // a un máximo de cuadros por segundo (configurable con -Dchat.cliente.fps)
+    private static final int INTERVALO_CUADRO = 1000 / Math.max(1, Integer.getInteger("chat.cliente.fps", 30));
+    private final ConcurrentLinkedQueue<String> mensajesPendientes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean vaciadoProgramado = new AtomicBoolean(false);
+    private final javax.swing.Timer temporizadorMensajes = new javax.swing.Timer(INTERVALO_CUADRO, e -> vaciarMensajesPendientes());
     
     // Constructor
     public Cliente() {
@@ -59,6 +81,7 @@ public class Cliente extends JFrame {
         
         // Inicializar componentes
         inicializarComponentes();
+        temporizadorMensajes.setRepeats(false);
         
         // Diseño general
         setLayout(new BorderLayout());
@@ -73,6 +96,9 @@ public class Cliente extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 desconectar();
+                if (historial != null) {
+                    historial.cerrar();
+                }
             }
         });
         
@@ -84,13 +110,13 @@ public class Cliente extends JFrame {
     private void inicializarComponentes() {
         // Panel lateral (izquierda)
         panelLateral = new JPanel();
-        panelLateral.setLayout(new GridLayout(2, 1));
+        panelLateral.setLayout(new GridLayout(3, 1));
         panelLateral.setPreferredSize(new Dimension(200, getHeight()));
         
         // Panel de salas (parte superior del panel lateral)
         panelSalas = new JPanel(new BorderLayout());
         panelSalas.setBorder(BorderFactory.createTitledBorder("Salas de Chat"));
-        modeloSalas = new DefaultListModel<>();
+        modeloSalas = new ModeloListaOrdenada();
         listaSalas = new JList<>(modeloSalas);
         listaSalas.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         
@@ -140,7 +166,7 @@ public class Cliente extends JFrame {
         // Panel de usuarios (parte inferior del panel lateral)
         panelUsuarios = new JPanel(new BorderLayout());
         panelUsuarios.setBorder(BorderFactory.createTitledBorder("Usuarios en línea"));
-        modeloUsuarios = new DefaultListModel<>();
+        modeloUsuarios = new ModeloListaOrdenada();
         listaUsuarios = new JList<>(modeloUsuarios);
         listaUsuarios.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         
@@ -164,21 +190,33 @@ public class Cliente extends JFrame {
         JScrollPane scrollUsuarios = new JScrollPane(listaUsuarios);
         panelUsuarios.add(scrollUsuarios, BorderLayout.CENTER);
         
+        // Botón para pedir la página siguiente de miembros (sólo visible con la lista paginada)
+        botonMasMiembros = new JButton("Más miembros");
+        botonMasMiembros.setVisible(false);
+        botonMasMiembros.addActionListener(e -> {
+            if (cursorMiembros != null) {
+                conexion.pedirMiembros(cursorMiembros);
+                botonMasMiembros.setEnabled(false);
+            }
+        });
+        panelUsuarios.add(botonMasMiembros, BorderLayout.SOUTH);
+        
         // Agregar paneles al panel lateral
         panelLateral.add(panelSalas);
         panelLateral.add(panelUsuarios);
         
+        // Panel de transferencias de archivos (progreso y cancelación)
+        panelTransferencias = new PanelTransferencias();
+        panelLateral.add(panelTransferencias);
+        
         // Panel de chat (derecha)
         panelChat = new JPanel();
         panelChat.setLayout(new BorderLayout());
         panelChat.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
-        // Área de mensajes
-        areaMensajes = new JTextArea();
-        areaMensajes.setEditable(false);
-        areaMensajes.setLineWrap(true);
-        areaMensajes.setWrapStyleWord(true);
-        JScrollPane scrollMensajes = new JScrollPane(areaMensajes);
+        // Área de mensajes (vista acotada: sólo conserva los mensajes más recientes)
+        areaMensajes = new VistaMensajes();
+        JScrollPane scrollMensajes = areaMensajes;
         scrollMensajes.setBorder(BorderFactory.createCompoundBorder(
                 BorderFactory.createTitledBorder("Mensajes"),
                 BorderFactory.createEmptyBorder(5, 5, 5, 5)));
@@ -208,6 +246,28 @@ public class Cliente extends JFrame {
             }
         });
         
+        // Avisar de que se está escribiendo (ConexionChat limita la frecuencia de los avisos)
+        campoMensaje.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                String texto = campoMensaje.getText();
+                if (estaConectado() && !texto.startsWith("/")) {
+                    conexion.notificarEscritura();
+                }
+            }
+            
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                if (estaConectado() && campoMensaje.getText().isEmpty()) {
+                    conexion.dejarDeEscribir();
+                }
+            }
+            
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+            }
+        });
+        
         // Añadir acción para enviar con Enter
         campoMensaje.addKeyListener(new KeyAdapter() {
             @Override
@@ -218,15 +278,35 @@ public class Cliente extends JFrame {
             }
         });
         
+        // Selector del estado de presencia propio
+        JComboBox<String> selectorEstado = new JComboBox<>(new String[] {"activo", "ausente", "ocupado"});
+        selectorEstado.setToolTipText("Tu estado para los demás usuarios");
+        selectorEstado.addActionListener(e -> {
+            if (estaConectado()) {
+                conexion.cambiarEstado((String) selectorEstado.getSelectedItem());
+            }
+        });
+        
+        // Estados de los demás miembros de la sala (quién escribe, quién está ausente u ocupado)
+        etiquetaEstados = new JLabel(" ");
+        etiquetaEstados.setFont(etiquetaEstados.getFont().deriveFont(Font.ITALIC));
+        etiquetaEstados.setBorder(BorderFactory.createEmptyBorder(0, 0, 3, 0));
+        
         // Agregar botones al panel de botones
+        panelBotones.add(selectorEstado);
         panelBotones.add(botonAdjuntar);
         panelBotones.add(botonEnviar);
         
+        panelEnvio.add(etiquetaEstados, BorderLayout.NORTH);
         panelEnvio.add(campoMensaje, BorderLayout.CENTER);
         panelEnvio.add(panelBotones, BorderLayout.EAST);
         panelEnvio.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
         
+        // Búsqueda en el historial local
+        panelBusqueda = new PanelBusqueda();
+        
         // Añadir componentes al panel de chat
+        panelChat.add(panelBusqueda, BorderLayout.NORTH);
         panelChat.add(scrollMensajes, BorderLayout.CENTER);
         panelChat.add(panelEnvio, BorderLayout.SOUTH);
     }
@@ -296,33 +376,36 @@ public class Cliente extends JFrame {
     // Método para conectar al servidor
     private void conectarAlServidor() {
         try {
-            socket = new Socket(HOST, puerto); // Usar el puerto de instancia, no la constante
-            entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            salida = new PrintWriter(socket.getOutputStream(), true);
+            conexion = new ConexionChat(HOST, puerto, new OyenteConexion()); // Usar el puerto de instancia, no la constante
             
             // Recibir solicitud de nombre de usuario
-            String mensaje = entrada.readLine();
+            String mensaje = conexion.conectar();
             mostrarMensaje(mensaje);
             
-            // Solicitar nombre de usuario al cliente
-            nombreUsuario = JOptionPane.showInputDialog(this, "Ingresa tu nombre de usuario:", "Conexión", JOptionPane.PLAIN_MESSAGE);
-            
-            // Si no se ingresó un nombre, usar uno generado aleatoriamente
-            if (nombreUsuario == null || nombreUsuario.trim().isEmpty()) {
-                nombreUsuario = "Usuario" + new Random().nextInt(1000);
-            }
+            // Solicitar nombre de usuario al cliente hasta que el servidor lo acepte
+            String pregunta = "Ingresa tu nombre de usuario:";
+            do {
+                nombreUsuario = JOptionPane.showInputDialog(this, pregunta, "Conexión", JOptionPane.PLAIN_MESSAGE);
+                
+                // Si no se ingresó un nombre, usar uno generado aleatoriamente
+                if (nombreUsuario == null || nombreUsuario.trim().isEmpty()) {
+                    nombreUsuario = "Usuario" + new Random().nextInt(1000);
+                }
+                pregunta = "El nombre de usuario ya existe. Ingresa otro nombre:";
+            } while (!conexion.iniciarSesion(nombreUsuario));
             
-            // Enviar nombre de usuario al servidor
-            salida.println(nombreUsuario);
+            panelTransferencias.setGestor(conexion.getGestorTransferencias());
             
-            // Marcar como conectado
-            conectado = true;
+            // Abrir el historial local de este usuario
+            try {
+                historial = new HistorialLocal(Paths.get("Historial" + nombreUsuario));
+                panelBusqueda.setHistorial(historial);
+            } catch (IOException e) {
+                mostrarMensaje("No se pudo abrir el historial local: " + e.getMessage());
+            }
             
             // Actualizar título de la ventana
-            setTitle("Cliente de Chat - " + nombreUsuario + " - " + salaActual + " (" + HOST + ":" + puerto + ")");
-            
-            // Iniciar hilo para recibir mensajes
-            new Thread(new ReceptorMensajes()).start();
+            actualizarTitulo();
             
         } catch (Exception e) {
             mostrarMensaje("Error al conectar con el servidor: " + e.getMessage());
@@ -354,29 +437,25 @@ public class Cliente extends JFrame {
         }
     }
     
+    private void actualizarTitulo() {
+        setTitle("Cliente de Chat - " + nombreUsuario + " - " + salaActual + " (" + HOST + ":" + puerto + ")");
+    }
+    
     // Método para desconectar del servidor
     private void desconectar() {
-        try {
-            if (conectado) {
-                // Enviar comando de salida al servidor
-                enviarMensajeAlServidor("/salir");
-                
-                // Cerrar recursos
-                if (salida != null) salida.close();
-                if (entrada != null) entrada.close();
-                if (socket != null) socket.close();
-                
-                conectado = false;
-            }
-        } catch (Exception e) {
-            mostrarMensaje("Error al desconectar: " + e.getMessage());
+        if (conexion != null) {
+            conexion.desconectar();
         }
     }
     
+    private boolean estaConectado() {
+        return conexion != null && conexion.isConectado();
+    }
+    
     // Método para enviar mensajes
     private void enviarMensaje() {
         String mensaje = campoMensaje.getText().trim();
-        if (!mensaje.isEmpty() && conectado) {
+        if (!mensaje.isEmpty() && estaConectado()) {
             // Enviar el mensaje a la sala actual
             enviarMensajeAlServidor(mensaje);
             
@@ -387,14 +466,14 @@ public class Cliente extends JFrame {
     
     // Método para enviar mensajes al servidor
     private void enviarMensajeAlServidor(String mensaje) {
-        if (conectado && salida != null) {
-            salida.println(mensaje);
+        if (conexion != null) {
+            conexion.enviar(mensaje);
         }
     }
     
     // Método para enviar un archivo
     private void enviarArchivo() {
-        if (!conectado) {
+        if (!estaConectado()) {
             mostrarMensaje("Error: No estás conectado al servidor.");
             return;
         }
@@ -413,75 +492,14 @@ public class Cliente extends JFrame {
                 return;
             }
             
-            // Iniciar la transferencia en un hilo separado para no bloquear la UI
-            new Thread(() -> {                try {                    // Notificar al servidor que vamos a enviar un archivo
-                    String nombreArchivo = archivo.getName().replace(" ", "_"); // Reemplazar espacios
-                    // Si la sala contiene guiones, no necesitamos comillas
-                    String comando = COMANDO_ARCHIVO + " " + salaActual + " " + nombreArchivo + " " + archivo.length();
-                    System.out.println("Enviando comando: " + comando);
-                    enviarMensajeAlServidor(comando);
-                    
-                    // Esperar un breve momento para que el servidor procese el comando
-                    Thread.sleep(500);
-                    
-                    // Crear socket para transmisión de archivos
-                    Socket socketArchivo = null;
-                    try {
-                        socketArchivo = new Socket(HOST, puerto + 1); // Puerto para archivos = puerto normal + 1
-                        
-                        // Enviar nombre de usuario para identificación
-                        PrintWriter salidaArchivo = new PrintWriter(socketArchivo.getOutputStream(), true);
-                        salidaArchivo.println(nombreUsuario);
-                        
-                        // Enviar datos del archivo
-                        FileInputStream fis = new FileInputStream(archivo);
-                        OutputStream os = socketArchivo.getOutputStream();
-                        
-                        byte[] buffer = new byte[TAMAÑO_BUFFER];
-                        int bytesLeidos;
-                        
-                        // Mensaje de progreso (sólo en consola, no en UI para no bloquear)
-                        System.out.println("Enviando archivo: " + archivo.getName());
-                        
-                        while ((bytesLeidos = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesLeidos);
-                        }
-                        
-                        // Cerrar recursos
-                        os.flush();
-                        fis.close();
-                        
-                        SwingUtilities.invokeLater(() -> {
-                            mostrarMensaje("Has enviado el archivo: " + archivo.getName());
-                        });
-                    } catch (Exception e) {
-                        SwingUtilities.invokeLater(() -> {
-                            mostrarMensaje("Error al enviar el archivo: " + e.getMessage());
-                        });
-                        e.printStackTrace();
-                    } finally {
-                        // Asegurarnos de cerrar el socket incluso si hay un error
-                        if (socketArchivo != null && !socketArchivo.isClosed()) {
-                            try {
-                                socketArchivo.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    SwingUtilities.invokeLater(() -> {
-                        mostrarMensaje("Error preparando envío de archivo: " + e.getMessage());
-                    });
-                    e.printStackTrace();
-                }
-            }).start();
+            // El gestor realiza la transferencia en su grupo de hilos para no bloquear la UI
+            conexion.enviarArchivo(salaActual, archivo, GestorTransferencias.PRIORIDAD_ENVIO);
         }
     }
     
     // Método para enviar un archivo privado a un usuario específico
     private void enviarArchivoPrivado(String destinatario, File archivo) {
-        if (!conectado) {
+        if (!estaConectado()) {
             mostrarMensaje("Error: No estás conectado al servidor.");
             return;
         }
@@ -494,241 +512,231 @@ public class Cliente extends JFrame {
             return;
         }
         
-        // Iniciar la transferencia en un hilo separado para no bloquear la UI
-        new Thread(() -> {            try {                // Notificar al servidor que vamos a enviar un archivo privado
-                String nombreArchivo = archivo.getName().replace(" ", "_"); // Reemplazar espacios
-                // Si el destinatario contiene espacios, añadir comillas
-                String formattedDestinatario = destinatario.contains(" ") ? "\"" + destinatario + "\"" : destinatario;
-                String comando = COMANDO_ARCHIVO + " " + formattedDestinatario + " " + nombreArchivo + " " + archivo.length();
-                System.out.println("Enviando comando: " + comando);
-                enviarMensajeAlServidor(comando);
-                
-                // Esperar un breve momento para que el servidor procese el comando
-                Thread.sleep(500);
-                
-                // Crear socket para transmisión de archivos
-                Socket socketArchivo = null;
+        conexion.enviarArchivo(destinatario, archivo, GestorTransferencias.PRIORIDAD_PRIVADA);
+    }
+    
+    // Método para cambiar de sala
+    private void cambiarSala(String nuevaSala) {
+        if (!nuevaSala.equals(salaActual)) {
+            areaMensajes.limpiar(); // Limpiar mensajes al cambiar de sala
+            mostrarRecientes(nuevaSala);
+            conexion.cambiarSala(nuevaSala);
+            salaActual = nuevaSala;
+            actualizarTitulo();
+            // Los estados de la nueva sala llegan completos al entrar
+            estadosSala.clear();
+            actualizarEtiquetaEstados();
+            if (listaPaginada) {
+                conexion.pedirMiembros(null);
+            }
+        }
+    }
+    
+    // Método para pasar la lista de usuarios a los miembros de la sala por páginas o volver a la lista completa
+    private void cambiarModoLista(boolean paginada) {
+        listaPaginada = paginada;
+        cursorMiembros = null;
+        botonMasMiembros.setVisible(paginada);
+        if (!paginada) {
+            panelUsuarios.setBorder(BorderFactory.createTitledBorder("Usuarios en línea"));
+        }
+        panelUsuarios.revalidate();
+    }
+    
+    // Método para mostrar los últimos mensajes guardados de una sala. Se leen en segundo plano (el
+    // historial puede estar aún cargándose o reindexando) y se colocan antes de los mensajes que
+    // hayan llegado mientras tanto
+    private void mostrarRecientes(String sala) {
+        if (historial == null) {
+            return;
+        }
+        HistorialLocal origen = historial;
+        int carga = ++cargaRecientes;
+        new SwingWorker<List<String>, Void>() {
+            @Override
+            protected List<String> doInBackground() throws Exception {
+                List<String> recientes = new ArrayList<>();
+                for (HistorialLocal.Resultado resultado : origen.recientes(sala, MENSAJES_RECIENTES)) {
+                    recientes.add(resultado.texto);
+                }
+                return recientes;
+            }
+            
+            @Override
+            protected void done() {
+                // Descartar el resultado si mientras tanto se cambió otra vez de sala
+                if (carga != cargaRecientes || !sala.equals(salaActual)) {
+                    return;
+                }
                 try {
-                    socketArchivo = new Socket(HOST, puerto + 1); // Puerto para archivos = puerto normal + 1
-                    
-                    // Enviar nombre de usuario para identificación
-                    PrintWriter salidaArchivo = new PrintWriter(socketArchivo.getOutputStream(), true);
-                    salidaArchivo.println(nombreUsuario);
-                    
-                    // Enviar datos del archivo
-                    FileInputStream fis = new FileInputStream(archivo);
-                    OutputStream os = socketArchivo.getOutputStream();
-                    
-                    byte[] buffer = new byte[TAMAÑO_BUFFER];
-                    int bytesLeidos;
-                    
-                    // Mensaje de progreso (sólo en consola, no en UI para no bloquear)
-                    System.out.println("Enviando archivo privado a " + destinatario + ": " + archivo.getName());
-                    
-                    while ((bytesLeidos = fis.read(buffer)) != -1) {
-                        os.write(buffer, 0, bytesLeidos);
-                    }
-                    
-                    // Cerrar recursos
-                    os.flush();
-                    fis.close();
-                    
-                    SwingUtilities.invokeLater(() -> {
-                        mostrarMensaje("Has enviado el archivo " + archivo.getName() + " a " + destinatario);
-                    });
+                    areaMensajes.agregarAlPrincipio(get());
                 } catch (Exception e) {
-                    SwingUtilities.invokeLater(() -> {
-                        mostrarMensaje("Error al enviar el archivo: " + e.getMessage());
-                    });
-                    e.printStackTrace();
-                } finally {
-                    // Asegurarnos de cerrar el socket incluso si hay un error
-                    if (socketArchivo != null && !socketArchivo.isClosed()) {
-                        try {
-                            socketArchivo.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    mostrarMensaje("No se pudo leer el historial: " + e.getMessage());
                 }
-            } catch (Exception e) {
-                SwingUtilities.invokeLater(() -> {
-                    mostrarMensaje("Error preparando envío de archivo: " + e.getMessage());
-                });
-                e.printStackTrace();
             }
-        }).start();
+        }.execute();
     }
     
-    // Método para recibir un archivo (sin notificación, guardado automático)
-    private void recibirArchivo(String remitente, String nombreArchivo, long tamaño) {
-        // Crear directorio para archivos del usuario si no existe
-        File directorioUsuario = new File("Archivos" + nombreUsuario);
-        if (!directorioUsuario.exists()) {
-            directorioUsuario.mkdirs();
+    // Método para mostrar mensajes en el área de chat (se puede llamar desde cualquier hilo)
+    private void mostrarMensaje(String mensaje) {
+        mensajesPendientes.offer(mensaje);
+        // Sólo se programa un vaciado por cuadro, sin importar cuántos mensajes lleguen
+        if (vaciadoProgramado.compareAndSet(false, true)) {
+            temporizadorMensajes.restart();
+        }
+    }
+    
+    // Método que corre en el hilo de eventos: pasa todos los mensajes pendientes a la vista de una vez
+    private void vaciarMensajesPendientes() {
+        vaciadoProgramado.set(false);
+        List<String> lote = new ArrayList<>();
+        String mensaje;
+        while ((mensaje = mensajesPendientes.poll()) != null) {
+            lote.add(mensaje);
+        }
+        // La vista destaca los mensajes privados y se desplaza al último mensaje con una sola actualización
+        areaMensajes.agregar(lote);
+    }
+    
+    // Oyente de la conexión: traslada los eventos del hilo receptor a la interfaz
+    private class OyenteConexion implements ConexionChat.Oyente {
+        @Override
+        public void mensajeRecibido(String mensaje) {
+            if (historial != null) {
+                historial.agregar(mensaje);
+            }
+            mostrarMensaje(mensaje);
         }
         
-        // Archivo de destino
-        File archivoDestino = new File(directorioUsuario, nombreArchivo);
+        @Override
+        public void salasActualizadas(String[] salas) {
+            actualizarListaSalas(salas);
+        }
         
-        // Comprobar si ya existe el archivo y renombrarlo si es necesario
-        if (archivoDestino.exists()) {
-            int contador = 1;
-            String nombreBase = nombreArchivo;
-            String extension = "";
-            
-            int indexPunto = nombreArchivo.lastIndexOf(".");
-            if (indexPunto > 0) {
-                nombreBase = nombreArchivo.substring(0, indexPunto);
-                extension = nombreArchivo.substring(indexPunto);
-            }
-            
-            while (archivoDestino.exists()) {
-                archivoDestino = new File(directorioUsuario, nombreBase + "(" + contador + ")" + extension);
-                contador++;
-            }
+        @Override
+        public void usuariosActualizados(String[] usuarios) {
+            SwingUtilities.invokeLater(() -> {
+                if (listaPaginada) {
+                    cambiarModoLista(false);
+                }
+            });
+            actualizarListaUsuarios(usuarios);
         }
         
-        // Iniciar la recepción en un hilo separado para no bloquear
-        final File archivoFinal = archivoDestino;
-        new Thread(() -> {
-            Socket socketArchivo = null;
-            try {
-                // Esperar un breve momento para asegurarnos que el servidor está listo
-                Thread.sleep(1000);
-                
-                // Crear socket para recepción de archivos
-                socketArchivo = new Socket(HOST, puerto + 1);
-                
-                // Identificar que estamos listos para recibir
-                PrintWriter salidaArchivo = new PrintWriter(socketArchivo.getOutputStream(), true);
-                salidaArchivo.println(nombreUsuario + "_RECIBIR_" + remitente);
-                
-                // Preparar para recibir
-                InputStream is = socketArchivo.getInputStream();
-                FileOutputStream fos = new FileOutputStream(archivoFinal);
-                
-                byte[] buffer = new byte[TAMAÑO_BUFFER];
-                int bytesLeidos;
-                long totalRecibido = 0;
-                
-                // Mensaje de progreso (sólo en consola, no en UI para no bloquear)
-                System.out.println("Recibiendo archivo de " + remitente + ": " + archivoFinal.getName());
-                
-                // Establecer un tiempo límite de lectura para evitar bloqueos indefinidos
-                socketArchivo.setSoTimeout(30000); // 30 segundos
-                
-                while (totalRecibido < tamaño && (bytesLeidos = is.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesLeidos);
-                    totalRecibido += bytesLeidos;
+        @Override
+        public void salaCambiada(String sala) {
+            SwingUtilities.invokeLater(() -> {
+                salaActual = sala;
+                actualizarTitulo();
+                estadosSala.clear();
+                actualizarEtiquetaEstados();
+                if (listaPaginada) {
+                    conexion.pedirMiembros(null);
                 }
-                
-                // Cerrar recursos
-                fos.close();
-                
-                SwingUtilities.invokeLater(() -> {
-                    mostrarMensaje("Archivo recibido de " + remitente + ": " + archivoFinal.getName() + " - Guardado en " + archivoFinal.getAbsolutePath());
-                });
-                
-            } catch (Exception e) {
-                SwingUtilities.invokeLater(() -> {
-                    mostrarMensaje("Error al recibir el archivo: " + e.getMessage());
-                });
-                e.printStackTrace();
-                
-                // Si hubo un error, eliminar el archivo parcial
-                if (archivoFinal.exists()) {
-                    archivoFinal.delete();
+            });
+        }
+        
+        @Override
+        public void listaPaginada() {
+            SwingUtilities.invokeLater(() -> {
+                if (!listaPaginada) {
+                    cambiarModoLista(true);
                 }
-            } finally {
-                // Asegurarnos de cerrar el socket incluso si hay un error
-                if (socketArchivo != null && !socketArchivo.isClosed()) {
-                    try {
-                        socketArchivo.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                conexion.pedirMiembros(null);
+            });
+        }
+        
+        @Override
+        public void miembrosRecibidos(String sala, int total, int desde, String siguiente, String[] nombres) {
+            SwingUtilities.invokeLater(() -> {
+                if (!listaPaginada || !sala.equals(salaActual)) {
+                    return;
+                }
+                panelUsuarios.setBorder(BorderFactory.createTitledBorder("Miembros de la sala (" + total + ")"));
+                if (desde == 0) {
+                    reemplazarConservandoSeleccion(listaUsuarios, modeloUsuarios, Arrays.asList(nombres));
+                } else {
+                    for (String nombre : nombres) {
+                        modeloUsuarios.agregar(nombre);
                     }
                 }
-            }
-        }).start();
-    }
-    
-    // Método para cambiar de sala
-    private void cambiarSala(String nuevaSala) {
-        if (!nuevaSala.equals(salaActual)) {
-            enviarMensajeAlServidor("/sala " + nuevaSala);
-            salaActual = nuevaSala;
-            setTitle("Cliente de Chat - " + nombreUsuario + " - " + salaActual);
-            areaMensajes.setText(""); // Limpiar mensajes al cambiar de sala
+                cursorMiembros = siguiente;
+                botonMasMiembros.setEnabled(siguiente != null);
+                panelUsuarios.repaint();
+            });
         }
-    }
-    
-    // Método para mostrar mensajes en el área de chat
-    private void mostrarMensaje(String mensaje) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                // Determinar si el mensaje es para destacarse (mensaje privado)
-                if (mensaje.contains("[Privado")) {
-                    // Destacar mensajes privados con un color diferente
-                    areaMensajes.append("----------------------------------\n");
-                    areaMensajes.append(mensaje + "\n");
-                    areaMensajes.append("----------------------------------\n");
+        
+        @Override
+        public void miembroCambiado(String sala, String nombre, boolean dentro) {
+            SwingUtilities.invokeLater(() -> {
+                if (!listaPaginada || !sala.equals(salaActual)) {
+                    return;
+                }
+                if (dentro) {
+                    modeloUsuarios.agregar(nombre);
                 } else {
-                    areaMensajes.append(mensaje + "\n");
+                    modeloUsuarios.eliminar(nombre);
                 }
-                
-                // Desplazar automáticamente al último mensaje
-                areaMensajes.setCaretPosition(areaMensajes.getDocument().getLength());
-            }
-        });
-    }
-    
-    // Clase interna para recibir mensajes del servidor
-    private class ReceptorMensajes implements Runnable {
+            });
+        }
+        
         @Override
-        public void run() {
-            try {
-                String mensaje;
-                while (conectado && (mensaje = entrada.readLine()) != null) {
-                    if (mensaje.startsWith("SALAS:")) {
-                        // Actualizar lista de salas
-                        actualizarListaSalas(mensaje.substring(6).split("\\|"));
-                    } else if (mensaje.startsWith("USUARIOS:")) {
-                        // Actualizar lista de usuarios
-                        actualizarListaUsuarios(mensaje.substring(9).split("\\|"));
-                    } else if (mensaje.startsWith("ARCHIVO:")) {                        // Formato: ARCHIVO:remitente:nombreArchivo:tamaño
-                        String[] partes = mensaje.substring(8).split(":", 3);
-                        if (partes.length >= 3) {
-                            String remitente = partes[0];
-                            String nombreArchivo = partes[1];
-                            
-                            try {
-                                long tamaño = Long.parseLong(partes[2]);
-                                
-                                // Recibir archivo automáticamente sin preguntar
-                                recibirArchivo(remitente, nombreArchivo, tamaño);
-                            } catch (NumberFormatException e) {
-                                mostrarMensaje("Error al procesar el tamaño del archivo: " + e.getMessage());
-                                System.err.println("Error al analizar el tamaño del archivo: " + e.getMessage());
-                            }
-                        }
-                    } else {
-                        // Mostrar todos los mensajes (incluyendo privados) en la ventana principal
-                        mostrarMensaje(mensaje);
-                    }
+        public void conexionPerdida() {
+            mostrarMensaje("Desconectado del servidor.");
+        }
+        
+        @Override
+        public void estadosActualizados(String sala, Map<String, String> estados, boolean completos) {
+            SwingUtilities.invokeLater(() -> {
+                if (!sala.equals(salaActual)) {
+                    return;
                 }
-            } catch (IOException e) {
-                if (conectado) {
-                    mostrarMensaje("Conexión perdida con el servidor: " + e.getMessage());
+                if (completos) {
+                    estadosSala.clear();
                 }
-            } finally {
-                // Si la conexión se pierde inesperadamente, cerrar recursos
-                if (conectado) {
-                    desconectar();
+                for (Map.Entry<String, String> estado : estados.entrySet()) {
+                    if (estado.getValue().equals("activo") || estado.getKey().equals(nombreUsuario)) {
+                        estadosSala.remove(estado.getKey());
+                    } else {
+                        estadosSala.put(estado.getKey(), estado.getValue());
+                    }
                 }
+                actualizarEtiquetaEstados();
+            });
+        }
+    }
+    
+    // Método para resumir los estados de la sala en una línea: quién escribe y quién está ausente u ocupado
+    private void actualizarEtiquetaEstados() {
+        Map<String, List<String>> porEstado = new LinkedHashMap<>();
+        porEstado.put("escribiendo", new ArrayList<>());
+        porEstado.put("ausente", new ArrayList<>());
+        porEstado.put("ocupado", new ArrayList<>());
+        for (Map.Entry<String, String> estado : estadosSala.entrySet()) {
+            List<String> nombres = porEstado.get(estado.getValue());
+            if (nombres != null) {
+                nombres.add(estado.getKey());
             }
         }
+        StringBuilder texto = new StringBuilder();
+        List<String> escribiendo = porEstado.get("escribiendo");
+        if (!escribiendo.isEmpty()) {
+            texto.append(resumirNombres(escribiendo)).append(escribiendo.size() == 1 ? " está" : " están").append(" escribiendo...");
+        }
+        if (!porEstado.get("ausente").isEmpty()) {
+            texto.append(texto.length() > 0 ? "   " : "").append("Ausentes: ").append(resumirNombres(porEstado.get("ausente")));
+        }
+        if (!porEstado.get("ocupado").isEmpty()) {
+            texto.append(texto.length() > 0 ? "   " : "").append("Ocupados: ").append(resumirNombres(porEstado.get("ocupado")));
+        }
+        etiquetaEstados.setText(texto.length() > 0 ? texto.toString() : " ");
+    }
+    
+    private static String resumirNombres(List<String> nombres) {
+        if (nombres.size() <= MAX_NOMBRES_ESTADO) {
+            return String.join(", ", nombres);
+        }
+        return String.join(", ", nombres.subList(0, MAX_NOMBRES_ESTADO)) + " y " + (nombres.size() - MAX_NOMBRES_ESTADO) + " más";
     }
     
     // Método para actualizar la lista de salas
@@ -736,12 +744,14 @@ public class Cliente extends JFrame {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                modeloSalas.clear();
+                List<String> salas = new ArrayList<>();
                 for (String sala : listaSalas) {
                     if (!sala.trim().isEmpty() && !sala.startsWith("_PRIVADO_")) {
-                        modeloSalas.addElement(sala);
+                        salas.add(sala);
                     }
                 }
+                // Sólo se notifican las salas que cambiaron
+                reemplazarConservandoSeleccion(Cliente.this.listaSalas, modeloSalas, salas);
             }
         });
     }
@@ -751,16 +761,34 @@ public class Cliente extends JFrame {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                modeloUsuarios.clear();
+                List<String> usuarios = new ArrayList<>();
                 for (String usuario : listaUsuarios) {
                     if (!usuario.trim().isEmpty()) {
-                        modeloUsuarios.addElement(usuario);
+                        usuarios.add(usuario);
                     }
                 }
+                // Sólo se notifican los usuarios que entraron o salieron
+                reemplazarConservandoSeleccion(Cliente.this.listaUsuarios, modeloUsuarios, usuarios);
             }
         });
     }
     
+    // Método para aplicar una lista completa manteniendo seleccionado el mismo elemento
+    private void reemplazarConservandoSeleccion(JList<String> lista, ModeloListaOrdenada modelo, List<String> elementos) {
+        String seleccionado = lista.getSelectedValue();
+        modelo.reemplazarTodo(elementos);
+        if (seleccionado != null) {
+            int indice = modelo.indiceDe(seleccionado);
+            if (indice >= 0) {
+                if (lista.getSelectedIndex() != indice) {
+                    lista.setSelectedIndex(indice);
+                }
+            } else {
+                lista.clearSelection();
+            }
+        }
+    }
+    
     // Método principal
     public static void main(String[] args) {
         final String host;
@@ -0,0 +1,162 @@
+package cliente;
+
+import java.io.*;
+
+// Cliente de chat sin interfaz gráfica para terminales y scripts. Comparte con Cliente el
+// núcleo de red (ConexionChat): lee líneas de la entrada estándar y escribe en la salida
+// estándar los mensajes de la sala. Los archivos anunciados se guardan automáticamente en
+// Archivos<usuario>. No carga Swing, así que arranca rápido y con poca memoria, p. ej.:
+//
+//   java -Xmx32m -XX:TieredStopAtLevel=1 cliente.ClienteConsola --usuario bot
+//
+// Uso: java cliente.ClienteConsola [--host h] [--puerto p] [--usuario nombre]
+//
+// Además de los comandos del servidor acepta:
+//   /archivo ruta                 - Enviar un archivo a la sala actual
+//   /archivo destinatario ruta    - Enviar un archivo a un usuario o sala
+// Al terminar la entrada estándar se esperan las transferencias en curso y se sale.
+public class ClienteConsola implements ConexionChat.Oyente {
+
+    private static final String COMANDO_ARCHIVO = "/archivo";
+    private static final long TAMAÑO_MAXIMO = 10 * 1024 * 1024;
+
+    private String host = "localhost";
+    private int puerto = 5000;
+    private String usuario;
+    private ConexionChat conexion;
+
+    // Método para leer los argumentos de la línea de comandos
+    private void leerArgumentos(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--host": host = valor; break;
+                case "--puerto": puerto = Integer.parseInt(valor); break;
+                case "--usuario": usuario = valor; break;
+                default:
+                    System.err.println("Argumento desconocido: " + args[i]);
+            }
+        }
+    }
+
+    private void ejecutar() throws IOException {
+        BufferedReader teclado = new BufferedReader(new InputStreamReader(System.in));
+        conexion = new ConexionChat(host, puerto, this);
+        String solicitud = conexion.conectar();
+
+        // Iniciar sesión con el nombre indicado o pedirlo por la entrada estándar
+        String nombre = usuario;
+        if (nombre == null) {
+            System.out.println(solicitud);
+            nombre = teclado.readLine();
+        }
+        while (nombre != null && !conexion.iniciarSesion(nombre.trim())) {
+            System.out.println("El nombre de usuario ya existe. Ingresa otro nombre:");
+            nombre = teclado.readLine();
+        }
+        if (nombre == null) {
+            return;
+        }
+
+        String linea;
+        while (conexion.isConectado() && (linea = teclado.readLine()) != null) {
+            linea = linea.trim();
+            if (linea.isEmpty()) {
+                continue;
+            }
+            if (linea.startsWith(COMANDO_ARCHIVO + " ")) {
+                enviarArchivo(linea.substring(COMANDO_ARCHIVO.length()).trim());
+            } else if (linea.startsWith("/sala ")) {
+                conexion.cambiarSala(linea.substring(6).trim());
+            } else if (linea.startsWith("/salir")) {
+                break;
+            } else {
+                conexion.enviar(linea);
+            }
+        }
+
+        // Fin de la entrada: dejar terminar las transferencias antes de desconectar
+        GestorTransferencias gestor = conexion.getGestorTransferencias();
+        while (conexion.isConectado() && gestor != null && !gestor.estaInactivo()) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        conexion.desconectar();
+    }
+
+    // Método para enviar un archivo: "ruta" a la sala actual o "destinatario ruta"
+    private void enviarArchivo(String argumentos) {
+        String destinatario = conexion.getSalaActual();
+        File archivo = new File(argumentos);
+        if (!archivo.isFile()) {
+            int espacio = argumentos.indexOf(' ');
+            if (espacio > 0) {
+                destinatario = argumentos.substring(0, espacio);
+                archivo = new File(argumentos.substring(espacio + 1).trim());
+            }
+        }
+        if (!archivo.isFile()) {
+            System.out.println("Error: No se encontró el archivo " + archivo.getPath());
+            return;
+        }
+        if (archivo.length() > TAMAÑO_MAXIMO) {
+            System.out.println("Error: El archivo es demasiado grande. El límite es de 10MB.");
+            return;
+        }
+        conexion.enviarArchivo(destinatario, archivo, GestorTransferencias.PRIORIDAD_ENVIO);
+    }
+
+    @Override
+    public void mensajeRecibido(String mensaje) {
+        System.out.println(mensaje);
+    }
+
+    @Override
+    public void salasActualizadas(String[] salas) {
+        // Las listas sólo se muestran bajo demanda con /salas y /usuarios
+    }
+
+    @Override
+    public void usuariosActualizados(String[] usuarios) {
+    }
+
+    @Override
+    public void miembrosRecibidos(String sala, int total, int desde, String siguiente, String[] nombres) {
+        // Respuesta a /miembros: se muestra la página tal como llega
+        StringBuilder pagina = new StringBuilder("Miembros de ").append(sala).append(" (").append(total).append(" en total):\n");
+        for (String nombre : nombres) {
+            pagina.append("- ").append(nombre).append('\n');
+        }
+        if (siguiente != null) {
+            pagina.append("Más: /miembros ").append(siguiente);
+        }
+        System.out.println(pagina.toString().trim());
+    }
+
+    @Override
+    public void salaCambiada(String sala) {
+        System.out.println("Sala actual: " + sala);
+    }
+
+    @Override
+    public void conexionPerdida() {
+        System.out.println("Desconectado del servidor.");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        ClienteConsola cliente = new ClienteConsola();
+        cliente.leerArgumentos(args);
+        try {
+            cliente.ejecutar();
+        } catch (IOException e) {
+            System.err.println("Error al conectar con el servidor " + cliente.host + ":" + cliente.puerto + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,533 @@
+package cliente;
+
+import comun.CanalTLS;
+
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.*;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Núcleo de red del cliente, compartido por la interfaz gráfica y el cliente de consola:
+// conexión e inicio de sesión, recepción de los mensajes del servidor, reconexión con
+// reanudación de sesión y transferencias de archivos. No depende de Swing; los eventos se
+// entregan al oyente desde el hilo receptor.
+//
+// Con -Dchat.cliente.tls=true la conexión y las transferencias van cifradas con TLS. Se confía
+// en las CA de la JVM o en el almacén indicado con -Dchat.cliente.confianza (y
+// -Dchat.cliente.claveConfianza); todas las conexiones comparten un contexto para reanudar sesiones.
+public class ConexionChat {
+
+    // Oyente de los eventos de la conexión (se llama desde el hilo receptor)
+    public interface Oyente {
+        // Mensaje de chat o aviso para mostrar al usuario
+        void mensajeRecibido(String mensaje);
+
+        void salasActualizadas(String[] salas);
+
+        void usuariosActualizados(String[] usuarios);
+
+        // La sala actual cambió por una reconexión
+        void salaCambiada(String sala);
+
+        // La conexión se perdió y no se pudo recuperar
+        void conexionPerdida();
+
+        // Estados de presencia de miembros de una sala: con completos=true sustituyen a todos los
+        // anteriores; si no, son cambios ("activo" significa que no hay estado que mostrar)
+        default void estadosActualizados(String sala, Map<String, String> estados, boolean completos) {
+        }
+
+        // Hay demasiados usuarios para recibir la lista completa: hay que pedir los miembros de la
+        // sala por páginas con pedirMiembros
+        default void listaPaginada() {
+        }
+
+        // Página de miembros de una sala; desde=0 es la primera y siguiente es null en la última
+        default void miembrosRecibidos(String sala, int total, int desde, String siguiente, String[] nombres) {
+        }
+
+        // Un miembro entró en la sala o salió de ella mientras la lista está paginada
+        default void miembroCambiado(String sala, String nombre, boolean dentro) {
+        }
+    }
+
+    public static final String SALA_GENERAL = "Sala-General";
+
+    // Reconexión con espera exponencial aleatoria entre MS_ESPERA_BASE y MS_ESPERA_MAX
+    private static final int MAX_REINTENTOS = Integer.getInteger("chat.cliente.reintentos", 10);
+    private static final long MS_ESPERA_BASE = 500;
+    private static final long MS_ESPERA_MAX = 30000;
+
+    // TCP_NODELAY en la conexión de chat: cada línea sale en cuanto se escribe (-Dchat.cliente.sinRetraso)
+    private static final boolean SIN_RETRASO = Boolean.parseBoolean(System.getProperty("chat.cliente.sinRetraso", "true"));
+
+    // Contexto TLS compartido por todas las conexiones del proceso (su caché permite reanudar sesiones)
+    private static SSLContext contextoTLS;
+
+    private final String host;
+    private final int puerto;
+    private final Oyente oyente;
+    private final boolean tls;
+
+    private volatile Socket socket;
+    private volatile PrintWriter salida;
+    private volatile BufferedReader entrada;
+    private volatile boolean conectado = false;
+    private volatile String nombreUsuario;
+    private volatile String salaActual = SALA_GENERAL;
+    private GestorTransferencias gestorTransferencias;
+
+    // Sesión: token que entrega el servidor para reanudar tras un corte de la conexión
+    private volatile String tokenSesion;
+    private volatile boolean sesionTerminada = false;
+    private volatile boolean reconectando = false;
+
+    // Presencia: "escribiendo" se renueva como mucho cada MS_RENOVAR_ESCRITURA mientras se escribe
+    // (el servidor lo retira solo si deja de renovarse), así que una pulsación casi nunca genera envío
+    private static final long MS_RENOVAR_ESCRITURA = 3000;
+    private volatile String estado = "activo";
+    private volatile boolean escribiendo;
+    private volatile long ultimoAvisoEscritura;
+
+    // Recepción de la sala por multicast; se crea con el primer anuncio del servidor
+    private volatile ReceptorMulticast multicast;
+
+    public ConexionChat(String host, int puerto, Oyente oyente) {
+        this(host, puerto, oyente, Boolean.getBoolean("chat.cliente.tls"));
+    }
+
+    public ConexionChat(String host, int puerto, Oyente oyente, boolean tls) {
+        this.host = host;
+        this.puerto = puerto;
+        this.oyente = oyente;
+        this.tls = tls;
+    }
+
+    // Método para obtener el contexto TLS del cliente (se crea al usarlo por primera vez)
+    static synchronized SSLContext contextoTLS() throws IOException {
+        if (contextoTLS == null) {
+            String confianza = System.getProperty("chat.cliente.confianza");
+            contextoTLS = CanalTLS.crearContexto(null, null, confianza != null ? Paths.get(confianza) : null,
+                System.getProperty("chat.cliente.claveConfianza", "").toCharArray(), 100, 86400);
+        }
+        return contextoTLS;
+    }
+
+    // Método para abrir la conexión; devuelve la solicitud de nombre del servidor
+    public String conectar() throws IOException {
+        socket = new Socket(host, puerto);
+        socket.setTcpNoDelay(SIN_RETRASO);
+        InputStream is = socket.getInputStream();
+        OutputStream os = socket.getOutputStream();
+        if (tls) {
+            CanalTLS cifrado = CanalTLS.cliente(socket, contextoTLS(), host, puerto);
+            is = cifrado.getEntrada();
+            os = cifrado.getSalida();
+        }
+        entrada = new BufferedReader(new InputStreamReader(is));
+        salida = new PrintWriter(os, true);
+        String solicitud = entrada.readLine();
+        if (solicitud == null) {
+            throw new EOFException("El servidor cerró la conexión");
+        }
+        return solicitud;
+    }
+
+    // Método para iniciar sesión; devuelve false si el nombre ya está en uso, en cuyo caso
+    // se puede volver a llamar con otro nombre sobre la misma conexión
+    public boolean iniciarSesion(String nombre) throws IOException {
+        if (!enviarNombre(entrada, salida, nombre)) {
+            return false;
+        }
+        nombreUsuario = nombre;
+        conectado = true;
+
+        // Crear el gestor de transferencias de archivos para esta conexión
+        gestorTransferencias = new GestorTransferencias(host, puerto + 1, nombre, this::enviar, oyente::mensajeRecibido,
+            tls ? contextoTLS() : null);
+
+        // Iniciar hilo para recibir mensajes
+        new Thread(new ReceptorMensajes(), "receptor-mensajes").start();
+        return true;
+    }
+
+    // Método para enviar el nombre y leer la respuesta del servidor
+    private boolean enviarNombre(BufferedReader lector, PrintWriter escritor, String nombre) throws IOException {
+        escritor.println(nombre);
+        String respuesta = lector.readLine();
+        if (respuesta == null) {
+            throw new EOFException("El servidor cerró la conexión");
+        }
+        if (respuesta.startsWith("El nombre de usuario ya existe")) {
+            return false;
+        }
+        if (respuesta.startsWith("SESION:")) {
+            tokenSesion = respuesta.substring(7);
+        } else {
+            oyente.mensajeRecibido(respuesta);
+        }
+        return true;
+    }
+
+    // Método para enviar una línea al servidor
+    public void enviar(String mensaje) {
+        if (reconectando) {
+            oyente.mensajeRecibido("No enviado (reconectando): " + mensaje);
+            return;
+        }
+        if (conectado && salida != null) {
+            // Enviar un mensaje pone fin a "escribiendo" también en el servidor
+            if (!mensaje.startsWith("/")) {
+                escribiendo = false;
+            }
+            salida.println(mensaje);
+        }
+    }
+
+    // Método para avisar de que el usuario está escribiendo; se puede llamar en cada pulsación
+    public void notificarEscritura() {
+        long ahora = System.currentTimeMillis();
+        if (reconectando || !conectado || (escribiendo && ahora - ultimoAvisoEscritura < MS_RENOVAR_ESCRITURA)) {
+            return;
+        }
+        escribiendo = true;
+        ultimoAvisoEscritura = ahora;
+        enviar("/estado escribiendo");
+    }
+
+    // Método para avisar de que el usuario dejó de escribir sin enviar (p. ej. borró el texto)
+    public void dejarDeEscribir() {
+        if (escribiendo && !reconectando) {
+            escribiendo = false;
+            enviar("/estado " + estado);
+        }
+    }
+
+    // Método para cambiar el estado de presencia: activo, ausente u ocupado
+    public void cambiarEstado(String nuevo) {
+        estado = nuevo;
+        escribiendo = false;
+        enviar("/estado " + nuevo);
+    }
+
+    // Método para pedir una página de miembros de la sala actual (cursor null para la primera)
+    public void pedirMiembros(String cursor) {
+        enviar(cursor == null ? "/miembros" : "/miembros " + cursor);
+    }
+
+    // Método para cambiar de sala
+    public void cambiarSala(String nuevaSala) {
+        // Los datagramas de la sala anterior dejan de mostrarse; la nueva llega con su anuncio
+        if (multicast != null) {
+            multicast.reiniciar();
+        }
+        enviar("/sala " + nuevaSala);
+        salaActual = nuevaSala;
+    }
+
+    // Método para encolar el envío de un archivo a una sala o a un usuario
+    public GestorTransferencias.Transferencia enviarArchivo(String destinatario, File archivo, int prioridad) {
+        return gestorTransferencias.enviar(destinatario, archivo, prioridad);
+    }
+
+    // Método para desconectar del servidor
+    public void desconectar() {
+        if (!conectado) {
+            return;
+        }
+        // Enviar comando de salida al servidor
+        enviar("/salir");
+
+        // Marcar la desconexión antes de cerrar para que el receptor no intente reconectar
+        conectado = false;
+
+        // Cancelar las transferencias pendientes (se eliminan los archivos parciales)
+        if (gestorTransferencias != null) {
+            gestorTransferencias.cancelarTodas();
+        }
+        if (multicast != null) {
+            multicast.cerrar();
+        }
+
+        // Cerrar recursos
+        try {
+            if (salida != null) salida.close();
+            if (entrada != null) entrada.close();
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            oyente.mensajeRecibido("Error al desconectar: " + e.getMessage());
+        }
+    }
+
+    public boolean isConectado() {
+        return conectado;
+    }
+
+    public String getNombreUsuario() {
+        return nombreUsuario;
+    }
+
+    public String getSalaActual() {
+        return salaActual;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public boolean isTLS() {
+        return tls;
+    }
+
+    public GestorTransferencias getGestorTransferencias() {
+        return gestorTransferencias;
+    }
+
+    // Clase interna para recibir mensajes del servidor
+    private class ReceptorMensajes implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    recibirMensajes();
+                } catch (IOException e) {
+                    if (conectado) {
+                        oyente.mensajeRecibido("Conexión perdida con el servidor: " + e.getMessage());
+                    }
+                }
+                if (!conectado) {
+                    return;
+                }
+                // La conexión se perdió inesperadamente: intentar volver y reanudar la sesión
+                if (sesionTerminada || !reconectar()) {
+                    desconectar();
+                    oyente.conexionPerdida();
+                    return;
+                }
+            }
+        }
+
+        private void recibirMensajes() throws IOException {
+            String mensaje;
+            while (conectado && (mensaje = entrada.readLine()) != null) {
+                if (mensaje.equals("PING")) {
+                    // Latido del servidor: responder para que no dé la conexión por muerta
+                    salida.println("PONG");
+                } else if (mensaje.startsWith("SESION:")) {
+                    // Guardar el token para poder reanudar la sesión
+                    tokenSesion = mensaje.substring(7);
+                } else if (mensaje.equals("SESION_TERMINADA")) {
+                    // El servidor cerró la sesión (p. ej. por exceder el límite): no reconectar
+                    sesionTerminada = true;
+                } else if (mensaje.startsWith("SALAS:")) {
+                    // Actualizar lista de salas
+                    oyente.salasActualizadas(mensaje.substring(6).split("\\|"));
+                } else if (mensaje.startsWith("USUARIOS:")) {
+                    // Actualizar lista de usuarios
+                    oyente.usuariosActualizados(mensaje.substring(9).split("\\|"));
+                } else if (mensaje.equals("USUARIOS_PAGINADOS")) {
+                    oyente.listaPaginada();
+                } else if (mensaje.startsWith("MIEMBROS:")) {
+                    // Formato: MIEMBROS:sala|total|desde|siguiente|nombre|nombre...
+                    String[] partes = mensaje.substring(9).split("\\|", -1);
+                    if (partes.length >= 4) {
+                        try {
+                            oyente.miembrosRecibidos(partes[0], Integer.parseInt(partes[1]), Integer.parseInt(partes[2]),
+                                                     partes[3].isEmpty() ? null : partes[3],
+                                                     Arrays.copyOfRange(partes, 4, partes.length));
+                        } catch (NumberFormatException e) {
+                            oyente.mensajeRecibido("Error al procesar la lista de miembros: " + e.getMessage());
+                        }
+                    }
+                } else if (mensaje.startsWith("MIEMBRO_DENTRO:") || mensaje.startsWith("MIEMBRO_FUERA:")) {
+                    // Formato: MIEMBRO_DENTRO:sala|nombre
+                    boolean dentro = mensaje.startsWith("MIEMBRO_DENTRO:");
+                    String[] partes = mensaje.substring(dentro ? 15 : 14).split("\\|", 2);
+                    if (partes.length == 2) {
+                        oyente.miembroCambiado(partes[0], partes[1], dentro);
+                    }
+                } else if (mensaje.startsWith("MULTICAST:") || mensaje.startsWith("MULTICAST_OK:")
+                           || mensaje.startsWith("REPARACION:") || mensaje.startsWith("PERDIDOS:")) {
+                    // Recepción de la sala por multicast: anuncio, confirmación y reparación de huecos
+                    procesarMulticast(mensaje);
+                } else if (mensaje.startsWith("ARCHIVO:")) {
+                    // Formato: ARCHIVO:remitente:nombreArchivo:tamaño[:hash[:id]]
+                    String[] partes = mensaje.substring(8).split(":", 5);
+                    if (partes.length >= 3) {
+                        try {
+                            long tamaño = Long.parseLong(partes[2]);
+                            String hash = partes.length > 3 && !partes[3].isEmpty() ? partes[3] : null;
+                            String id = partes.length > 4 ? partes[4] : null;
+
+                            // Recibir archivo automáticamente sin preguntar; las descargas
+                            // automáticas ceden el paso a los envíos que inicia el usuario
+                            gestorTransferencias.recibir(partes[0], partes[1], tamaño, hash, id, GestorTransferencias.PRIORIDAD_SALA);
+                        } catch (NumberFormatException e) {
+                            oyente.mensajeRecibido("Error al procesar el tamaño del archivo: " + e.getMessage());
+                        }
+                    }
+                } else if (mensaje.startsWith("ESTADOS:") || mensaje.startsWith("ESTADOS_SALA:")) {
+                    // Estados de presencia de una sala: sala|usuario=estado|...
+                    boolean completos = mensaje.startsWith("ESTADOS_SALA:");
+                    String[] partes = mensaje.substring(completos ? 13 : 8).split("\\|");
+                    Map<String, String> estados = new LinkedHashMap<>();
+                    for (int i = 1; i < partes.length; i++) {
+                        int igual = partes[i].lastIndexOf('=');
+                        if (igual > 0) {
+                            estados.put(partes[i].substring(0, igual), partes[i].substring(igual + 1));
+                        }
+                    }
+                    oyente.estadosActualizados(partes[0], estados, completos);
+                } else if (mensaje.startsWith("SERVIDOR_REINICIO:")) {
+                    // El servidor se va a reiniciar: mostrar el aviso sin el prefijo del protocolo
+                    oyente.mensajeRecibido("*** " + mensaje.substring(18).trim() + " ***");
+                } else {
+                    // Mostrar todos los mensajes (incluyendo privados)
+                    oyente.mensajeRecibido(mensaje);
+                }
+            }
+        }
+    }
+
+    // Método para atender los mensajes del protocolo multicast:
+    //   MULTICAST:sala|grupo|puerto|época, MULTICAST_OK:sala|secuencia,
+    //   REPARACION:sala|secuencia|mensaje y PERDIDOS:sala|desde|hasta
+    private void procesarMulticast(String mensaje) {
+        int dosPuntos = mensaje.indexOf(':');
+        String tipo = mensaje.substring(0, dosPuntos);
+        String[] partes = mensaje.substring(dosPuntos + 1).split("\\|", tipo.equals("REPARACION") ? 3 : 4);
+        try {
+            if (tipo.equals("MULTICAST") && partes.length == 4 && ReceptorMulticast.activado()) {
+                if (multicast == null) {
+                    multicast = new ReceptorMulticast(socket.getLocalAddress(), oyente::mensajeRecibido, this::enviar);
+                }
+                multicast.anunciado(partes[0], partes[1], Integer.parseInt(partes[2]), Long.parseLong(partes[3]));
+            } else if (multicast == null) {
+                return;
+            } else if (tipo.equals("MULTICAST_OK") && partes.length == 2) {
+                multicast.confirmado(partes[0], Long.parseLong(partes[1]));
+            } else if (tipo.equals("REPARACION") && partes.length == 3) {
+                multicast.reparado(partes[0], Long.parseLong(partes[1]), partes[2]);
+            } else if (tipo.equals("PERDIDOS") && partes.length == 3) {
+                multicast.perdidos(partes[0], Long.parseLong(partes[1]), Long.parseLong(partes[2]));
+            }
+        } catch (NumberFormatException e) {
+            // Mensaje mal formado: la sala sigue llegando por TCP
+        }
+    }
+
+    // Método para volver a conectar tras un corte, con espera exponencial y aleatoria entre intentos
+    private boolean reconectar() {
+        reconectando = true;
+        try {
+            Socket anterior = socket;
+            if (anterior != null) {
+                anterior.close();
+            }
+            for (int intento = 0; intento < MAX_REINTENTOS && conectado; intento++) {
+                // Espera aleatoria hasta el tope exponencial para que los clientes no vuelvan todos a la vez
+                long tope = Math.min(MS_ESPERA_MAX, MS_ESPERA_BASE << Math.min(intento, 16));
+                long espera = ThreadLocalRandom.current().nextLong(tope / 2, tope + 1);
+                oyente.mensajeRecibido(String.format("Reconectando en %.1f s (intento %d de %d)...",
+                    espera / 1000.0, intento + 1, MAX_REINTENTOS));
+                Thread.sleep(espera);
+                try {
+                    if (!reabrirConexion()) {
+                        oyente.mensajeRecibido("No se pudo reconectar: el nombre de usuario " + nombreUsuario + " ya está en uso.");
+                        return false;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    // El servidor todavía no está disponible: seguir intentando
+                }
+            }
+        } catch (IOException e) {
+            // El socket anterior ya estaba cerrado
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reconectando = false;
+        }
+        oyente.mensajeRecibido("No se pudo reconectar con el servidor.");
+        return false;
+    }
+
+    // Método para abrir una conexión nueva, reanudando la sesión o, si ya no existe, iniciando otra
+    // con el mismo nombre. Devuelve false si el nombre está ocupado por otro usuario.
+    private boolean reabrirConexion() throws IOException {
+        Socket nuevo = new Socket(host, puerto);
+        try {
+            nuevo.setTcpNoDelay(SIN_RETRASO);
+            nuevo.setSoTimeout(10000);
+            InputStream is = nuevo.getInputStream();
+            OutputStream os = nuevo.getOutputStream();
+            if (tls) {
+                // Normalmente se reanuda la sesión TLS anterior sin handshake completo
+                CanalTLS cifrado = CanalTLS.cliente(nuevo, contextoTLS(), host, puerto);
+                is = cifrado.getEntrada();
+                os = cifrado.getSalida();
+            }
+            BufferedReader lector = new BufferedReader(new InputStreamReader(is));
+            PrintWriter escritor = new PrintWriter(os, true);
+
+            // Solicitud de nombre de usuario
+            if (lector.readLine() == null) {
+                throw new EOFException("El servidor cerró la conexión");
+            }
+
+            boolean reanudada = false;
+            if (tokenSesion != null) {
+                escritor.println("REANUDAR:" + tokenSesion);
+                String respuesta = lector.readLine();
+                if (respuesta == null) {
+                    throw new EOFException("El servidor cerró la conexión");
+                }
+                if (respuesta.startsWith("SESION_REANUDADA:")) {
+                    // El servidor conserva las salas y reenvía a continuación los mensajes perdidos
+                    reanudada = true;
+                    salaActual = respuesta.substring(17);
+                    oyente.mensajeRecibido("Conexión restablecida.");
+                } else if (lector.readLine() == null) {
+                    // SESION_INVALIDA va seguido de una nueva solicitud de nombre
+                    throw new EOFException("El servidor cerró la conexión");
+                }
+            }
+
+            if (!reanudada) {
+                tokenSesion = null;
+                if (!enviarNombre(lector, escritor, nombreUsuario)) {
+                    nuevo.close();
+                    return false;
+                }
+                // Una sesión nueva empieza en la sala general y con el estado por defecto
+                salaActual = SALA_GENERAL;
+                if (multicast != null) {
+                    multicast.reiniciar();
+                }
+                escribiendo = false;
+                if (!estado.equals("activo")) {
+                    escritor.println("/estado " + estado);
+                }
+                oyente.mensajeRecibido("Conexión restablecida con una sesión nueva; los mensajes enviados durante el corte se han perdido.");
+            }
+
+            nuevo.setSoTimeout(0);
+            entrada = lector;
+            salida = escritor;
+            socket = nuevo;
+            oyente.salaCambiada(salaActual);
+            return true;
+        } catch (IOException e) {
+            nuevo.close();
+            throw e;
+        }
+    }
+}
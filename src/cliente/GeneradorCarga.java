@@ -0,0 +1,514 @@
+package cliente;
+
+import comun.CanalTLS;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Generador de carga sin interfaz gráfica que habla el mismo protocolo que Cliente.
+// Simula miles de usuarios desde una sola JVM y reporta latencias y rendimiento.
+//
+// Uso: java cliente.GeneradorCarga [--host h] [--puerto p] [--usuarios n] [--tasa msgs/s]
+//        [--duracion s] [--salas Sala-General:50,Networking:50] [--privados 0.1]
+//        [--archivos 0.01] [--tamano-archivo bytes] [--prefijo carga] [--tls true]
+//
+// Con --tls true todas las conexiones (chat y archivos) van cifradas; la confianza se configura
+// igual que en ConexionChat. La latencia de conexión incluye el handshake, así que comparando
+// una ejecución con y sin TLS se ve su coste y el efecto de reanudar sesiones.
+public class GeneradorCarga {
+
+    // Marca que identifica los mensajes generados para poder medir su latencia
+    private static final String MARCA = "LG#";
+    private static final String COMANDO_ARCHIVO = "/archivo";
+    private static final int TAMAÑO_BUFFER = 4096;
+
+    // Parámetros de la prueba
+    private String host = "localhost";
+    private int puerto = 5000;
+    private int usuarios = 100;
+    private double tasaPorUsuario = 1.0;
+    private int duracionSegundos = 30;
+    private double fraccionPrivados = 0.1;
+    private double fraccionArchivos = 0.0;
+    private int tamañoArchivo = 64 * 1024;
+    private String prefijo = "carga";
+    private boolean tls = false;
+    private final LinkedHashMap<String, Integer> distribucionSalas = new LinkedHashMap<>();
+
+    // Usuarios simulados y planificador compartido para los envíos
+    private final List<UsuarioSimulado> simulados = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService planificador;
+    private ExecutorService hilosArchivos;
+
+    // Métricas de la prueba
+    private final HistogramaLatencia latenciaSala = new HistogramaLatencia();
+    private final HistogramaLatencia latenciaPrivado = new HistogramaLatencia();
+    private final HistogramaLatencia latenciaArchivo = new HistogramaLatencia();
+    private final HistogramaLatencia latenciaConexion = new HistogramaLatencia();
+    private final LongAdder mensajesEnviados = new LongAdder();
+    private final LongAdder mensajesRecibidos = new LongAdder();
+    private final LongAdder archivosEnviados = new LongAdder();
+    private final LongAdder archivosRecibidos = new LongAdder();
+    private final LongAdder bytesArchivos = new LongAdder();
+    private final LongAdder errores = new LongAdder();
+
+    // Método para interpretar los argumentos de la línea de comandos
+    private void leerArgumentos(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--host": host = valor; break;
+                case "--puerto": puerto = Integer.parseInt(valor); break;
+                case "--usuarios": usuarios = Integer.parseInt(valor); break;
+                case "--tasa": tasaPorUsuario = Double.parseDouble(valor); break;
+                case "--duracion": duracionSegundos = Integer.parseInt(valor); break;
+                case "--privados": fraccionPrivados = Double.parseDouble(valor); break;
+                case "--archivos": fraccionArchivos = Double.parseDouble(valor); break;
+                case "--tamano-archivo": tamañoArchivo = Integer.parseInt(valor); break;
+                case "--prefijo": prefijo = valor; break;
+                case "--tls": tls = Boolean.parseBoolean(valor); break;
+                case "--salas":
+                    for (String entrada : valor.split(",")) {
+                        String[] partes = entrada.split(":");
+                        distribucionSalas.put(partes[0], partes.length > 1 ? Integer.parseInt(partes[1]) : 1);
+                    }
+                    break;
+                default:
+                    System.err.println("Argumento desconocido: " + args[i]);
+            }
+        }
+
+        if (distribucionSalas.isEmpty()) {
+            distribucionSalas.put("Sala-General", 1);
+        }
+    }
+
+    // Método para elegir una sala según la distribución configurada
+    private String elegirSala(int indice) {
+        int total = 0;
+        for (int peso : distribucionSalas.values()) {
+            total += peso;
+        }
+
+        // Reparto determinista para que la distribución sea exacta aunque haya pocos usuarios
+        int posicion = (int) ((indice * 7919L) % total);
+        for (Map.Entry<String, Integer> entrada : distribucionSalas.entrySet()) {
+            posicion -= entrada.getValue();
+            if (posicion < 0) {
+                return entrada.getKey();
+            }
+        }
+        return "Sala-General";
+    }
+
+    // Método principal de la prueba
+    private void ejecutar() throws InterruptedException {
+        planificador = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        hilosArchivos = Executors.newFixedThreadPool(16);
+
+        System.out.println("Conectando " + usuarios + " usuarios a " + host + ":" + puerto + (tls ? " con TLS" : "") + "...");
+        long inicioConexion = System.nanoTime();
+
+        for (int i = 0; i < usuarios; i++) {
+            UsuarioSimulado usuario = new UsuarioSimulado(prefijo + i, elegirSala(i));
+            try {
+                usuario.conectar();
+                simulados.add(usuario);
+            } catch (IOException e) {
+                errores.increment();
+                System.err.println("No se pudo conectar " + usuario.nombre + ": " + e.getMessage());
+            }
+        }
+
+        long msConexion = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicioConexion);
+        System.out.println(simulados.size() + " usuarios conectados en " + msConexion + " ms");
+
+        // Programar los envíos de cada usuario repartidos en el primer periodo
+        long periodoNanos = (long) (1_000_000_000L / tasaPorUsuario);
+        Random aleatorio = new Random();
+        for (UsuarioSimulado usuario : simulados) {
+            long retardo = (long) (aleatorio.nextDouble() * periodoNanos);
+            usuario.tarea = planificador.scheduleAtFixedRate(usuario::enviarSiguiente, retardo, periodoNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // Reportes periódicos de rendimiento
+        long inicio = System.nanoTime();
+        long enviadosPrevios = 0;
+        long recibidosPrevios = 0;
+        for (int segundo = 5; segundo <= duracionSegundos; segundo += 5) {
+            Thread.sleep(5000);
+            long enviados = mensajesEnviados.sum();
+            long recibidos = mensajesRecibidos.sum();
+            System.out.printf("[%3ds] enviados/s: %8.1f  recibidos/s: %9.1f  p50 sala: %s  p99 sala: %s  errores: %d%n",
+                segundo, (enviados - enviadosPrevios) / 5.0, (recibidos - recibidosPrevios) / 5.0,
+                formatearMicros(latenciaSala.percentil(50)), formatearMicros(latenciaSala.percentil(99)), errores.sum());
+            enviadosPrevios = enviados;
+            recibidosPrevios = recibidos;
+        }
+        Thread.sleep(Math.max(0, duracionSegundos % 5) * 1000L);
+
+        // Detener envíos y esperar a que lleguen los mensajes en vuelo
+        for (UsuarioSimulado usuario : simulados) {
+            if (usuario.tarea != null) {
+                usuario.tarea.cancel(false);
+            }
+        }
+        Thread.sleep(2000);
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+
+        for (UsuarioSimulado usuario : simulados) {
+            usuario.cerrar();
+        }
+        planificador.shutdownNow();
+        hilosArchivos.shutdownNow();
+
+        imprimirResumen(segundos);
+    }
+
+    // Método para imprimir el resumen final
+    private void imprimirResumen(double segundos) {
+        System.out.println("\nResumen de la prueba");
+        System.out.println("==========================================");
+        System.out.printf("Duración: %.1f s, usuarios: %d%n", segundos, simulados.size());
+        System.out.printf("Mensajes enviados: %d (%.1f/s)%n", mensajesEnviados.sum(), mensajesEnviados.sum() / segundos);
+        System.out.printf("Mensajes recibidos: %d (%.1f/s)%n", mensajesRecibidos.sum(), mensajesRecibidos.sum() / segundos);
+        System.out.printf("Archivos enviados: %d, recibidos: %d (%.2f MB/s)%n", archivosEnviados.sum(), archivosRecibidos.sum(),
+            bytesArchivos.sum() / segundos / (1024 * 1024));
+        System.out.println("Errores: " + errores.sum());
+        imprimirPercentiles("Latencia sala", latenciaSala);
+        imprimirPercentiles("Latencia privado", latenciaPrivado);
+        imprimirPercentiles("Latencia archivo", latenciaArchivo);
+        imprimirPercentiles("Latencia conexión" + (tls ? " (TLS)" : ""), latenciaConexion);
+        System.out.println("==========================================");
+    }
+
+    private void imprimirPercentiles(String titulo, HistogramaLatencia histograma) {
+        if (histograma.total() == 0) {
+            return;
+        }
+        System.out.printf("%s (n=%d): p50=%s p90=%s p99=%s p99.9=%s max=%s%n", titulo, histograma.total(),
+            formatearMicros(histograma.percentil(50)), formatearMicros(histograma.percentil(90)),
+            formatearMicros(histograma.percentil(99)), formatearMicros(histograma.percentil(99.9)),
+            formatearMicros(histograma.maximo()));
+    }
+
+    // Conexión abierta con el servidor: flujos del socket o del canal TLS
+    private static final class Conexion {
+        final Socket socket;
+        final InputStream entrada;
+        final OutputStream salida;
+
+        Conexion(Socket socket, InputStream entrada, OutputStream salida) {
+            this.socket = socket;
+            this.entrada = entrada;
+            this.salida = salida;
+        }
+    }
+
+    // Método para abrir una conexión al puerto indicado, cifrada si se usa TLS, y medir cuánto tarda
+    private Conexion abrir(int puertoDestino) throws IOException {
+        long inicio = System.nanoTime();
+        Socket socket = new Socket(host, puertoDestino);
+        socket.setTcpNoDelay(true);
+        Conexion conexion;
+        if (tls) {
+            // Clave de sesión por el puerto del chat para que los sockets de archivos reanuden su sesión
+            CanalTLS cifrado = CanalTLS.cliente(socket, ConexionChat.contextoTLS(), host, puerto);
+            conexion = new Conexion(socket, cifrado.getEntrada(), cifrado.getSalida());
+        } else {
+            conexion = new Conexion(socket, socket.getInputStream(), socket.getOutputStream());
+        }
+        latenciaConexion.registrar((System.nanoTime() - inicio) / 1000);
+        return conexion;
+    }
+
+    private static void cerrarConexion(Conexion conexion) {
+        if (conexion != null) {
+            try {
+                conexion.salida.close();
+            } catch (IOException e) {
+                // Ya estaba cerrada
+            }
+        }
+    }
+
+    private static String formatearMicros(long micros) {
+        if (micros >= 1000) {
+            return String.format("%.2fms", micros / 1000.0);
+        }
+        return micros + "us";
+    }
+
+    // Clase que representa a un usuario simulado con su propia conexión
+    private class UsuarioSimulado implements Runnable {
+        private String nombre;
+        private final String sala;
+        private Socket socket;
+        private PrintWriter salida;
+        private BufferedReader entrada;
+        private volatile boolean activo;
+        private ScheduledFuture<?> tarea;
+
+        // Momento en que se anunció cada archivo enviado, para medir la latencia de entrega
+        private final Map<String, Long> archivosAnunciados = new ConcurrentHashMap<>();
+
+        UsuarioSimulado(String nombre, String sala) {
+            this.nombre = nombre;
+            this.sala = sala;
+        }
+
+        // Método para negociar el nombre de usuario y entrar a la sala asignada
+        void conectar() throws IOException {
+            Conexion conexion = abrir(puerto);
+            socket = conexion.socket;
+            salida = new PrintWriter(new BufferedWriter(new OutputStreamWriter(conexion.salida)), true);
+            entrada = new BufferedReader(new InputStreamReader(conexion.entrada));
+
+            // Solicitud de nombre de usuario
+            String linea = entrada.readLine();
+            salida.println(nombre);
+
+            // Si el nombre ya existe el servidor vuelve a preguntar antes de registrar
+            linea = entrada.readLine();
+            int intento = 1;
+            while (linea != null && linea.startsWith("El nombre de usuario ya existe")) {
+                nombre = nombre + "-" + intento++;
+                salida.println(nombre);
+                linea = entrada.readLine();
+            }
+            if (linea == null) {
+                throw new IOException("El servidor cerró la conexión durante el registro");
+            }
+
+            activo = true;
+            if (!"Sala-General".equals(sala)) {
+                salida.println("/sala " + sala);
+            }
+
+            // Un hilo lector por usuario con pila reducida para poder simular miles
+            Thread lector = new Thread(null, this, "lector-" + nombre, 256 * 1024);
+            lector.setDaemon(true);
+            lector.start();
+        }
+
+        // Método que decide y envía la siguiente acción del usuario
+        void enviarSiguiente() {
+            if (!activo) {
+                return;
+            }
+
+            ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+            double tirada = aleatorio.nextDouble();
+            String cuerpo = MARCA + System.nanoTime();
+
+            if (tirada < fraccionArchivos) {
+                enviarArchivo();
+            } else if (tirada < fraccionArchivos + fraccionPrivados && simulados.size() > 1) {
+                UsuarioSimulado destino = simulados.get(aleatorio.nextInt(simulados.size()));
+                if (destino == this) {
+                    return;
+                }
+                salida.println("/privado " + destino.nombre + " " + cuerpo);
+            } else {
+                salida.println(cuerpo);
+            }
+            mensajesEnviados.increment();
+        }
+
+        // Método para anunciar y cargar un archivo a la sala del usuario
+        private void enviarArchivo() {
+            String nombreArchivo = nombre + "-" + System.nanoTime() + ".bin";
+            archivosAnunciados.put(nombreArchivo, System.nanoTime());
+            salida.println(COMANDO_ARCHIVO + " " + sala + " " + nombreArchivo + " " + tamañoArchivo);
+
+            // Igual que Cliente, esperar a que el servidor registre la transferencia
+            planificador.schedule(() -> hilosArchivos.execute(() -> {
+                Conexion conexion = null;
+                try {
+                    conexion = abrir(puerto + 1);
+                    OutputStream os = conexion.salida;
+                    os.write((nombre + "\n").getBytes());
+                    byte[] buffer = new byte[TAMAÑO_BUFFER];
+                    int restante = tamañoArchivo;
+                    while (restante > 0) {
+                        int n = Math.min(restante, buffer.length);
+                        os.write(buffer, 0, n);
+                        restante -= n;
+                    }
+                    os.flush();
+                    if (tls) {
+                        // Esperar el cierre del servidor para no cerrar con tickets de sesión sin leer
+                        while (conexion.entrada.read(buffer) != -1) {
+                            // Descartar
+                        }
+                    }
+                    archivosEnviados.increment();
+                } catch (IOException e) {
+                    errores.increment();
+                } finally {
+                    cerrarConexion(conexion);
+                }
+            }), 500, TimeUnit.MILLISECONDS);
+        }
+
+        // Método para descargar un archivo anunciado
+        private void recibirArchivo(String remitente, String nombreArchivo, long tamaño, String id) {
+            hilosArchivos.execute(() -> {
+                Conexion conexion = null;
+                try {
+                    conexion = abrir(puerto + 1);
+                    conexion.socket.setSoTimeout(30000);
+                    conexion.salida.write((nombre + "_RECIBIR_" + remitente + (id != null ? "#" + id : "") + "\n").getBytes());
+                    InputStream is = conexion.entrada;
+                    byte[] buffer = new byte[TAMAÑO_BUFFER];
+                    long total = 0;
+                    int leidos;
+                    while (total < tamaño && (leidos = is.read(buffer)) != -1) {
+                        total += leidos;
+                    }
+                    if (total < tamaño) {
+                        errores.increment();
+                        return;
+                    }
+                    archivosRecibidos.increment();
+                    bytesArchivos.add(total);
+
+                    // Latencia desde el anuncio del emisor hasta la descarga completa
+                    for (UsuarioSimulado emisor : simulados) {
+                        if (emisor.nombre.equals(remitente)) {
+                            Long anunciado = emisor.archivosAnunciados.get(nombreArchivo);
+                            if (anunciado != null) {
+                                latenciaArchivo.registrar((System.nanoTime() - anunciado) / 1000);
+                            }
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    errores.increment();
+                } finally {
+                    cerrarConexion(conexion);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                String mensaje;
+                while (activo && (mensaje = entrada.readLine()) != null) {
+                    int marca = mensaje.indexOf(MARCA);
+                    if (marca >= 0) {
+                        mensajesRecibidos.increment();
+                        try {
+                            long enviado = Long.parseLong(mensaje.substring(marca + MARCA.length()).trim());
+                            long micros = (System.nanoTime() - enviado) / 1000;
+                            if (mensaje.startsWith("[Privado")) {
+                                latenciaPrivado.registrar(micros);
+                            } else {
+                                latenciaSala.registrar(micros);
+                            }
+                        } catch (NumberFormatException e) {
+                            errores.increment();
+                        }
+                    } else if (mensaje.startsWith("ARCHIVO:")) {
+                        // Formato: ARCHIVO:remitente:nombreArchivo:tamaño[:hash[:id]]
+                        String[] partes = mensaje.substring(8).split(":", 5);
+                        if (partes.length >= 3) {
+                            recibirArchivo(partes[0], partes[1], Long.parseLong(partes[2].trim()), partes.length > 4 ? partes[4] : null);
+                        }
+                    } else if (mensaje.equals("PING")) {
+                        salida.println("PONG");
+                    } else if (mensaje.startsWith("Error")) {
+                        errores.increment();
+                    }
+                }
+            } catch (IOException e) {
+                if (activo) {
+                    errores.increment();
+                }
+            }
+        }
+
+        // Método para desconectar al usuario simulado
+        void cerrar() {
+            if (!activo) {
+                return;
+            }
+            salida.println("/salir");
+            activo = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // La conexión ya estaba cerrada
+            }
+        }
+    }
+
+    // Histograma de latencias en microsegundos con cubetas logarítmicas-lineales
+    // (error relativo menor al 6%), seguro para varios hilos
+    static class HistogramaLatencia {
+        private static final int SUBCUBETAS = 32;
+        private final AtomicLongArray cubetas = new AtomicLongArray(64 * SUBCUBETAS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong maximo = new AtomicLong();
+
+        void registrar(long micros) {
+            micros = Math.max(0, micros);
+            cubetas.incrementAndGet(indice(micros));
+            total.increment();
+            maximo.accumulateAndGet(micros, Math::max);
+        }
+
+        private static int indice(long valor) {
+            if (valor < SUBCUBETAS) {
+                return (int) valor;
+            }
+            int exponente = 63 - Long.numberOfLeadingZeros(valor) - 4;
+            int mantisa = (int) (valor >>> exponente) - SUBCUBETAS / 2;
+            return Math.min((exponente + 1) * (SUBCUBETAS / 2) + mantisa + SUBCUBETAS / 2, 64 * SUBCUBETAS - 1);
+        }
+
+        private static long valorDe(int indice) {
+            if (indice < SUBCUBETAS) {
+                return indice;
+            }
+            int exponente = (indice - SUBCUBETAS / 2) / (SUBCUBETAS / 2) - 1;
+            int mantisa = (indice - SUBCUBETAS / 2) % (SUBCUBETAS / 2) + SUBCUBETAS / 2;
+            return (long) mantisa << exponente;
+        }
+
+        long total() {
+            return total.sum();
+        }
+
+        long maximo() {
+            return maximo.get();
+        }
+
+        long percentil(double percentil) {
+            long cuenta = total.sum();
+            if (cuenta == 0) {
+                return 0;
+            }
+            long objetivo = (long) Math.ceil(cuenta * percentil / 100.0);
+            long acumulado = 0;
+            for (int i = 0; i < cubetas.length(); i++) {
+                acumulado += cubetas.get(i);
+                if (acumulado >= objetivo) {
+                    return Math.min(valorDe(i), maximo.get());
+                }
+            }
+            return maximo.get();
+        }
+    }
+
+    // Método principal
+    public static void main(String[] args) throws InterruptedException {
+        GeneradorCarga generador = new GeneradorCarga();
+        generador.leerArgumentos(args);
+        generador.ejecutar();
+    }
+}
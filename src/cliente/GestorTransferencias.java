@@ -0,0 +1,597 @@
+package cliente;
+
+import comun.CanalTLS;
+
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+// Gestor de transferencias de archivos del cliente. Todas las cargas y descargas pasan por
+// un grupo acotado de hilos con una cola por prioridad, informan de su progreso a un oyente
+// y se pueden cancelar; los archivos parciales se eliminan si la transferencia no termina.
+//
+// Los datos se mueven con FileChannel.transferTo/transferFrom directamente entre el archivo y
+// el socket, sin pasar por buffers en el heap. Las descargas se escriben en un archivo
+// ".parcial" preasignado con el tamaño anunciado y sólo se publican con su nombre final,
+// de forma atómica, cuando están completas.
+//
+// Si el anuncio trae el hash del contenido y ya hay un archivo igual en Archivos<usuario>
+// (según IndiceArchivos), la recepción se resuelve en disco con un enlace duro o una copia y
+// se avisa al servidor con /omitirarchivo para que no espere esa descarga.
+//
+// Con TLS los datos tienen que cifrarse en el heap, así que se copian por bloques entre el
+// archivo y el canal cifrado (CanalTLS cifra y descifra directamente sobre el bloque); la
+// sesión TLS de la conexión de chat se reanuda en cada socket de archivos.
+//
+// El número de transferencias simultáneas se configura con -Dchat.cliente.transferencias (3) y el
+// buffer de los sockets de archivos con -Dchat.cliente.bufferSocketArchivos (el del sistema).
+public class GestorTransferencias {
+
+    public enum Tipo { ENVIO, RECEPCION }
+
+    public enum Estado { EN_COLA, EN_CURSO, COMPLETADA, CANCELADA, ERROR }
+
+    // Prioridades: menor número, antes se atiende
+    public static final int PRIORIDAD_PRIVADA = 0;
+    public static final int PRIORIDAD_ENVIO = 1;
+    public static final int PRIORIDAD_SALA = 2;
+
+    private static final String COMANDO_ARCHIVO = "/archivo";
+
+    // Bytes por llamada a transferTo/transferFrom (determina también la frecuencia del progreso)
+    private static final long TAMAÑO_BLOQUE = 256 * 1024;
+
+    // Tamaño del bloque con TLS (mayor que un registro para descifrar sin copia intermedia)
+    private static final int TAMAÑO_BLOQUE_TLS = 64 * 1024;
+
+    // Tiempo sin progreso tras el que se aborta una transferencia
+    private static final long NANOS_SIN_PROGRESO = TimeUnit.SECONDS.toNanos(30);
+
+    private static final ScheduledExecutorService vigilante = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "transferencias-vigilante");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+    private static final int MAX_SIMULTANEAS = Math.max(1, Integer.getInteger("chat.cliente.transferencias", 3));
+
+    // Buffer de los sockets de archivos (SO_SNDBUF y SO_RCVBUF); 0 deja que el sistema lo ajuste.
+    // Se fija antes de conectar para que la ventana TCP pueda crecer hasta él
+    private static final int BUFFER_SOCKET = Integer.getInteger("chat.cliente.bufferSocketArchivos", 0);
+
+    // Intervalo mínimo entre notificaciones de progreso de una misma transferencia
+    private static final long NANOS_NOTIFICACION = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // Oyente de cambios en las transferencias (se llama desde los hilos de transferencia)
+    public interface Oyente {
+        void transferenciaActualizada(Transferencia transferencia);
+    }
+
+    private final String host;
+    private final int puertoArchivos;
+    private final String usuario;
+    private final Consumer<String> enviarComando;
+    private final Consumer<String> mostrarMensaje;
+    private final ThreadPoolExecutor hilos;
+    private final AtomicLong secuencia = new AtomicLong();
+    private final List<Oyente> oyentes = new CopyOnWriteArrayList<>();
+    private final Set<Transferencia> enCurso = ConcurrentHashMap.newKeySet();
+    private final IndiceArchivos indice;
+    private final SSLContext contextoTLS;
+
+    // El servidor asocia una carga con el primer /archivo pendiente del usuario, así que
+    // las cargas de un mismo cliente deben ir de una en una para no cruzar archivos
+    private final Semaphore turnoEnvio = new Semaphore(1, true);
+
+    public GestorTransferencias(String host, int puertoArchivos, String usuario,
+                                Consumer<String> enviarComando, Consumer<String> mostrarMensaje) {
+        this(host, puertoArchivos, usuario, enviarComando, mostrarMensaje, null);
+    }
+
+    // Constructor con TLS (contextoTLS null para conexiones sin cifrar)
+    public GestorTransferencias(String host, int puertoArchivos, String usuario,
+                                Consumer<String> enviarComando, Consumer<String> mostrarMensaje,
+                                SSLContext contextoTLS) {
+        this.host = host;
+        this.contextoTLS = contextoTLS;
+        this.puertoArchivos = puertoArchivos;
+        this.usuario = usuario;
+        this.enviarComando = enviarComando;
+        this.mostrarMensaje = mostrarMensaje;
+        this.indice = new IndiceArchivos(Paths.get("Archivos" + usuario));
+        this.hilos = new ThreadPoolExecutor(MAX_SIMULTANEAS, MAX_SIMULTANEAS, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(), r -> {
+                Thread hilo = new Thread(r, "transferencia");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        this.hilos.allowCoreThreadTimeOut(true);
+
+        // Los canales de socket no respetan SO_TIMEOUT: abortar las transferencias estancadas
+        vigilante.scheduleWithFixedDelay(this::abortarEstancadas, 5, 5, TimeUnit.SECONDS);
+    }
+
+    private void abortarEstancadas() {
+        long ahora = System.nanoTime();
+        for (Transferencia transferencia : enCurso) {
+            if (ahora - transferencia.ultimoProgreso > NANOS_SIN_PROGRESO) {
+                transferencia.error = "Tiempo de espera agotado";
+                cerrarCanal(transferencia);
+            }
+        }
+    }
+
+    private static void cerrarCanal(Transferencia transferencia) {
+        SocketChannel canal = transferencia.canal;
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Ya estaba cerrado
+            }
+        }
+    }
+
+    public void agregarOyente(Oyente oyente) {
+        oyentes.add(oyente);
+    }
+
+    // Método para encolar el envío de un archivo a una sala o a un usuario
+    public Transferencia enviar(String destinatario, File archivo, int prioridad) {
+        Transferencia transferencia = new Transferencia(Tipo.ENVIO, archivo.getName(), destinatario,
+            archivo.length(), prioridad);
+        transferencia.archivo = archivo;
+        encolar(transferencia);
+        return transferencia;
+    }
+
+    // Método para encolar la recepción de un archivo anunciado por el servidor (hash puede ser null)
+    public Transferencia recibir(String remitente, String nombreArchivo, long tamaño, String hash, int prioridad) {
+        return recibir(remitente, nombreArchivo, tamaño, hash, null, prioridad);
+    }
+
+    // Igual, con el identificador del anuncio (null si no lo trae): con él se pide justo ese archivo
+    // aunque el mismo remitente tenga otros pendientes para este usuario
+    public Transferencia recibir(String remitente, String nombreArchivo, long tamaño, String hash, String id, int prioridad) {
+        Transferencia transferencia = new Transferencia(Tipo.RECEPCION, nombreArchivo, remitente, tamaño, prioridad);
+        transferencia.hash = hash;
+        transferencia.idServidor = id;
+        encolar(transferencia);
+        return transferencia;
+    }
+
+    private void encolar(Transferencia transferencia) {
+        notificar(transferencia, true);
+        hilos.execute(transferencia);
+    }
+
+    // Método para cancelar una transferencia en cola o en curso
+    public void cancelar(Transferencia transferencia) {
+        if (transferencia.terminada()) {
+            return;
+        }
+        transferencia.cancelada = true;
+        if (hilos.remove(transferencia)) {
+            // Todavía estaba en cola
+            finalizar(transferencia, Estado.CANCELADA, null);
+            return;
+        }
+        // Cerrar el canal desbloquea la lectura o escritura en curso
+        cerrarCanal(transferencia);
+    }
+
+    // Método para cancelar todo al desconectarse
+    public void cancelarTodas() {
+        for (Runnable tarea : hilos.getQueue().toArray(new Runnable[0])) {
+            cancelar((Transferencia) tarea);
+        }
+        hilos.shutdownNow();
+    }
+
+    // Método para saber si no queda ninguna transferencia en cola ni en curso
+    public boolean estaInactivo() {
+        return hilos.getQueue().isEmpty() && hilos.getActiveCount() == 0;
+    }
+
+    private void notificar(Transferencia transferencia, boolean forzar) {
+        long ahora = System.nanoTime();
+        if (!forzar && ahora - transferencia.ultimaNotificacion < NANOS_NOTIFICACION) {
+            return;
+        }
+        transferencia.ultimaNotificacion = ahora;
+        for (Oyente oyente : oyentes) {
+            oyente.transferenciaActualizada(transferencia);
+        }
+    }
+
+    private void finalizar(Transferencia transferencia, Estado estado, String error) {
+        transferencia.estado = estado;
+        transferencia.error = error;
+        transferencia.fin = System.nanoTime();
+        notificar(transferencia, true);
+    }
+
+    // Método para abrir la conexión de archivos y enviar la línea de identificación
+    private SocketChannel conectar(Transferencia transferencia, String identificacion) throws IOException {
+        SocketChannel canal = SocketChannel.open();
+        try {
+            if (BUFFER_SOCKET > 0) {
+                canal.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SOCKET);
+                canal.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SOCKET);
+            }
+            canal.connect(new InetSocketAddress(host, puertoArchivos));
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+        transferencia.canal = canal;
+        if (transferencia.cancelada) {
+            canal.close();
+            throw new ClosedChannelException();
+        }
+        if (contextoTLS != null) {
+            try {
+                // La caché de sesiones se consulta por puerto: usar el del chat para reanudar su sesión
+                transferencia.tls = CanalTLS.cliente(canal.socket(), contextoTLS, host, puertoArchivos - 1);
+            } catch (IOException e) {
+                canal.close();
+                throw e;
+            }
+            transferencia.tls.getSalida().write((identificacion + "\n").getBytes());
+            return canal;
+        }
+        ByteBuffer linea = ByteBuffer.wrap((identificacion + "\n").getBytes());
+        while (linea.hasRemaining()) {
+            canal.write(linea);
+        }
+        return canal;
+    }
+
+    // Método que realiza un envío
+    private void ejecutarEnvio(Transferencia transferencia) throws Exception {
+        turnoEnvio.acquire();
+        try {
+            if (transferencia.cancelada) {
+                return;
+            }
+            // Notificar al servidor que vamos a enviar un archivo
+            String nombreArchivo = transferencia.archivo.getName().replace(" ", "_"); // Reemplazar espacios
+            String destinatario = transferencia.contraparte;
+            // Si el destinatario contiene espacios, añadir comillas
+            String destino = destinatario.contains(" ") ? "\"" + destinatario + "\"" : destinatario;
+            enviarComando.accept(COMANDO_ARCHIVO + " " + destino + " " + nombreArchivo + " " + transferencia.archivo.length());
+
+            // Esperar un breve momento para que el servidor procese el comando
+            Thread.sleep(500);
+
+            // Enviar nombre de usuario para identificación y después el archivo directamente al socket
+            try (SocketChannel canal = conectar(transferencia, usuario);
+                 FileChannel archivo = FileChannel.open(transferencia.archivo.toPath(), StandardOpenOption.READ)) {
+                long tamaño = archivo.size();
+                long posicion = 0;
+                if (transferencia.tls != null) {
+                    enviarCifrado(transferencia, archivo, tamaño);
+                } else {
+                    while (posicion < tamaño) {
+                        long enviados = archivo.transferTo(posicion, Math.min(TAMAÑO_BLOQUE, tamaño - posicion), canal);
+                        posicion += enviados;
+                        transferencia.progreso(posicion);
+                    }
+                }
+            }
+        } finally {
+            turnoEnvio.release();
+        }
+    }
+
+    // Método que realiza una recepción (guardado automático en Archivos<usuario>)
+    private void ejecutarRecepcion(Transferencia transferencia) throws Exception {
+        Path directorioUsuario = Paths.get("Archivos" + usuario);
+        Files.createDirectories(directorioUsuario);
+
+        // Escribir en un archivo parcial oculto del mismo directorio para poder publicarlo con un renombrado
+        Path parcial = directorioUsuario.resolve("." + transferencia.nombre + "." + transferencia.orden + ".parcial");
+        Files.deleteIfExists(parcial); // Restos de una ejecución anterior interrumpida
+        transferencia.parcial = parcial;
+
+        // Si ya tenemos un archivo con el mismo contenido, no hace falta descargarlo
+        if (transferencia.hash != null && recibirDesdeDisco(transferencia, directorioUsuario, parcial)) {
+            return;
+        }
+
+        // Preasignar el tamaño anunciado para evitar que el archivo crezca a trozos
+        try (RandomAccessFile preasignado = new RandomAccessFile(parcial.toFile(), "rw")) {
+            preasignado.setLength(transferencia.tamaño);
+        }
+
+        String identificacion = usuario + "_RECIBIR_" + transferencia.contraparte
+            + (transferencia.idServidor != null ? "#" + transferencia.idServidor : "");
+        try (SocketChannel canal = conectar(transferencia, identificacion);
+             FileChannel archivo = FileChannel.open(parcial, StandardOpenOption.WRITE)) {
+
+            long posicion = 0;
+            if (transferencia.tls != null) {
+                posicion = recibirCifrado(transferencia, archivo);
+            } else {
+                while (posicion < transferencia.tamaño) {
+                    long recibidos = archivo.transferFrom(canal, posicion, Math.min(TAMAÑO_BLOQUE, transferencia.tamaño - posicion));
+                    if (recibidos == 0) {
+                        // transferFrom devuelve 0 cuando el otro extremo cerró la conexión
+                        break;
+                    }
+                    posicion += recibidos;
+                    transferencia.progreso(posicion);
+                }
+            }
+            if (posicion < transferencia.tamaño) {
+                throw new IOException("La conexión se cerró tras " + posicion + " de " + transferencia.tamaño + " bytes");
+            }
+            archivo.force(false);
+        }
+
+        // Comprobar el contenido antes de publicarlo y registrarlo en el índice
+        String hash = IndiceArchivos.calcularHash(parcial);
+        if (transferencia.hash != null && !transferencia.hash.equals(hash)) {
+            throw new IOException("El archivo recibido está dañado (el hash no coincide)");
+        }
+        Path destino = publicar(parcial, directorioUsuario, transferencia.nombre);
+        transferencia.archivo = destino.toFile();
+        transferencia.parcial = null;
+        indice.agregar(destino, hash);
+    }
+
+    // Método para enviar el archivo por el canal cifrado, por bloques, y cerrar avisando al servidor
+    private void enviarCifrado(Transferencia transferencia, FileChannel archivo, long tamaño) throws IOException {
+        ByteBuffer bloque = ByteBuffer.allocate(TAMAÑO_BLOQUE_TLS);
+        OutputStream salida = transferencia.tls.getSalida();
+        long posicion = 0;
+        while (posicion < tamaño) {
+            int leidos = archivo.read(bloque, posicion);
+            if (leidos < 0) {
+                break;
+            }
+            salida.write(bloque.array(), 0, bloque.position());
+            bloque.clear();
+            posicion += leidos;
+            transferencia.progreso(posicion);
+        }
+        // Esperar a que el servidor cierre tras recibirlo todo: cerrar con datos sin leer (los tickets
+        // de sesión) haría que el sistema respondiera con un RST y el servidor podría perder el final
+        InputStream entrada = transferencia.tls.getEntrada();
+        while (entrada.read(bloque.array()) >= 0) {
+            // Descartar
+        }
+        transferencia.tls.close();
+    }
+
+    // Método para recibir por el canal cifrado hasta el tamaño anunciado; devuelve los bytes recibidos
+    private long recibirCifrado(Transferencia transferencia, FileChannel archivo) throws IOException {
+        byte[] bloque = new byte[TAMAÑO_BLOQUE_TLS];
+        InputStream entrada = transferencia.tls.getEntrada();
+        long posicion = 0;
+        while (posicion < transferencia.tamaño) {
+            int leidos = entrada.read(bloque, 0, (int) Math.min(bloque.length, transferencia.tamaño - posicion));
+            if (leidos < 0) {
+                break;
+            }
+            ByteBuffer datos = ByteBuffer.wrap(bloque, 0, leidos);
+            while (datos.hasRemaining()) {
+                posicion += archivo.write(datos, posicion);
+            }
+            transferencia.progreso(posicion);
+        }
+        return posicion;
+    }
+
+    // Método para resolver una recepción con un archivo local del mismo contenido
+    private boolean recibirDesdeDisco(Transferencia transferencia, Path directorio, Path parcial) throws IOException {
+        Path existente = indice.buscar(transferencia.hash, transferencia.tamaño);
+        if (existente == null) {
+            return false;
+        }
+        Path destino = existente;
+        if (!existente.getFileName().toString().equals(transferencia.nombre)) {
+            // Otro nombre: crear el archivo con el nombre anunciado compartiendo los datos si se puede
+            try {
+                Files.createLink(parcial, existente);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(existente, parcial, StandardCopyOption.REPLACE_EXISTING);
+            }
+            destino = publicar(parcial, directorio, transferencia.nombre);
+            indice.agregar(destino, transferencia.hash);
+        }
+        transferencia.parcial = null;
+        transferencia.archivo = destino.toFile();
+        transferencia.local = true;
+        transferencia.progreso(transferencia.tamaño);
+
+        // El servidor ya no necesita guardar el archivo para este receptor
+        enviarComando.accept("/omitirarchivo " + transferencia.contraparte + " " + transferencia.hash);
+        return true;
+    }
+
+    // Método para dar al archivo completo su nombre final, renombrando si ya existe
+    private Path publicar(Path parcial, Path directorio, String nombreArchivo) throws IOException {
+        String nombreBase = nombreArchivo;
+        String extension = "";
+        int indexPunto = nombreArchivo.lastIndexOf(".");
+        if (indexPunto > 0) {
+            nombreBase = nombreArchivo.substring(0, indexPunto);
+            extension = nombreArchivo.substring(indexPunto);
+        }
+
+        Path destino = directorio.resolve(nombreArchivo);
+        int contador = 1;
+        while (true) {
+            try {
+                // Un enlace duro se crea de forma atómica y falla si el nombre ya existe
+                Files.createLink(destino, parcial);
+                Files.delete(parcial);
+                return destino;
+            } catch (FileAlreadyExistsException e) {
+                destino = directorio.resolve(nombreBase + "(" + contador + ")" + extension);
+                contador++;
+            } catch (UnsupportedOperationException | IOException e) {
+                // Sistemas de archivos sin enlaces duros: renombrado atómico si el nombre está libre
+                if (!Files.exists(destino)) {
+                    return Files.move(parcial, destino, StandardCopyOption.ATOMIC_MOVE);
+                }
+                destino = directorio.resolve(nombreBase + "(" + contador + ")" + extension);
+                contador++;
+            }
+        }
+    }
+
+    // Transferencia individual; es la tarea que ejecuta el grupo de hilos
+    public class Transferencia implements Runnable, Comparable<Transferencia> {
+        private final long orden = secuencia.incrementAndGet();
+        private final Tipo tipo;
+        private final String nombre;
+        private final String contraparte;
+        private final long tamaño;
+        private final int prioridad;
+        private final AtomicLong transferidos = new AtomicLong();
+        private volatile Estado estado = Estado.EN_COLA;
+        private volatile String error;
+        private volatile boolean cancelada;
+        private volatile SocketChannel canal;
+        private volatile CanalTLS tls;
+        private volatile File archivo;
+        private volatile Path parcial;
+        private volatile String hash;
+        private volatile String idServidor;
+        private volatile boolean local;
+        private volatile long ultimoProgreso;
+        private volatile long inicio;
+        private volatile long fin;
+        private volatile long ultimaNotificacion;
+
+        Transferencia(Tipo tipo, String nombre, String contraparte, long tamaño, int prioridad) {
+            this.tipo = tipo;
+            this.nombre = nombre;
+            this.contraparte = contraparte;
+            this.tamaño = tamaño;
+            this.prioridad = prioridad;
+        }
+
+        @Override
+        public void run() {
+            if (cancelada) {
+                finalizar(this, Estado.CANCELADA, null);
+                return;
+            }
+            estado = Estado.EN_CURSO;
+            inicio = System.nanoTime();
+            ultimoProgreso = inicio;
+            enCurso.add(this);
+            notificar(this, true);
+            try {
+                if (tipo == Tipo.ENVIO) {
+                    ejecutarEnvio(this);
+                } else {
+                    ejecutarRecepcion(this);
+                }
+                if (cancelada) {
+                    throw new InterruptedException();
+                }
+                finalizar(this, Estado.COMPLETADA, null);
+                if (tipo == Tipo.ENVIO) {
+                    mostrarMensaje.accept("Has enviado el archivo " + nombre + " a " + contraparte);
+                } else {
+                    mostrarMensaje.accept("Archivo recibido de " + contraparte + ": " + archivo.getName()
+                        + " - Guardado en " + archivo.getAbsolutePath()
+                        + (local ? " (ya estaba en disco, no se descargó)" : ""));
+                }
+            } catch (Exception e) {
+                // Si hubo un error o se canceló, eliminar el archivo parcial
+                Path pendiente = parcial;
+                if (pendiente != null) {
+                    try {
+                        Files.deleteIfExists(pendiente);
+                    } catch (IOException ex) {
+                        pendiente.toFile().deleteOnExit();
+                    }
+                }
+                if (cancelada) {
+                    finalizar(this, Estado.CANCELADA, null);
+                    mostrarMensaje.accept("Transferencia cancelada: " + nombre);
+                } else {
+                    String motivo = error != null ? error : e.getMessage();
+                    finalizar(this, Estado.ERROR, motivo);
+                    mostrarMensaje.accept((tipo == Tipo.ENVIO ? "Error al enviar el archivo: " : "Error al recibir el archivo: ")
+                        + motivo);
+                }
+            } finally {
+                enCurso.remove(this);
+            }
+        }
+
+        // Método para registrar el avance de la transferencia
+        private void progreso(long total) {
+            transferidos.set(total);
+            ultimoProgreso = System.nanoTime();
+            notificar(this, false);
+        }
+
+        @Override
+        public int compareTo(Transferencia otra) {
+            if (prioridad != otra.prioridad) {
+                return Integer.compare(prioridad, otra.prioridad);
+            }
+            return Long.compare(orden, otra.orden);
+        }
+
+        public Tipo getTipo() {
+            return tipo;
+        }
+
+        public String getNombre() {
+            return nombre;
+        }
+
+        public String getContraparte() {
+            return contraparte;
+        }
+
+        public long getTamaño() {
+            return tamaño;
+        }
+
+        public long getTransferidos() {
+            return transferidos.get();
+        }
+
+        public Estado getEstado() {
+            return estado;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean terminada() {
+            return estado == Estado.COMPLETADA || estado == Estado.CANCELADA || estado == Estado.ERROR;
+        }
+
+        // Porcentaje completado (0-100)
+        public int getPorcentaje() {
+            return tamaño <= 0 ? (terminada() ? 100 : 0) : (int) (transferidos.get() * 100 / tamaño);
+        }
+
+        // Velocidad media en bytes por segundo
+        public double getVelocidad() {
+            if (inicio == 0) {
+                return 0;
+            }
+            long hasta = fin != 0 ? fin : System.nanoTime();
+            double segundos = (hasta - inicio) / 1e9;
+            return segundos > 0 ? transferidos.get() / segundos : 0;
+        }
+    }
+}
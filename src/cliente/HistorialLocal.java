@@ -0,0 +1,461 @@
+package cliente;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Historial local de conversaciones con búsqueda de texto completo. Los mensajes de chat (de
+// sala y privados) se añaden a un registro de sólo escritura al final (historial.log) y a un
+// índice invertido en memoria: por cada término, la lista ordenada de mensajes que lo contienen.
+// El índice se guarda cada cierto número de mensajes (historial.idx) junto con la parte del
+// registro que cubre, así que al arrancar sólo se indexa lo que se escribió después.
+//
+// Las escrituras van a un hilo propio para no frenar la recepción; las búsquedas leen del
+// disco únicamente las líneas que coinciden.
+//
+// Formato del registro: una línea por mensaje, "milisegundos\tconversación\ttexto".
+class HistorialLocal {
+
+    // Resultado de una búsqueda
+    static class Resultado {
+        final long fecha;
+        final String conversacion;
+        final String texto;
+
+        Resultado(long fecha, String conversacion, String texto) {
+            this.fecha = fecha;
+            this.conversacion = conversacion;
+            this.texto = texto;
+        }
+    }
+
+    private static final int MAGICO = 0x48495354; // "HIST"
+    private static final int VERSION = 1;
+
+    // Mensajes nuevos tras los que se vuelve a guardar el índice (también se guarda al cerrar)
+    private static final int MENSAJES_POR_GUARDADO = 5000;
+
+    // Longitud máxima de un término indexado
+    private static final int MAX_TERMINO = 40;
+
+    // Prefijo de los términos internos que indexan la conversación de cada mensaje
+    private static final String PREFIJO_CONVERSACION = "\u0000";
+
+    private final Path registro;
+    private final Path archivoIndice;
+    private final ExecutorService escritor = Executors.newSingleThreadExecutor(r -> {
+        Thread hilo = new Thread(r, "historial");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    // Índice: término -> números de mensaje en orden creciente; posición de cada mensaje en el registro
+    private final TreeMap<String, Postings> terminos = new TreeMap<>();
+    private long[] posiciones = new long[1024];
+    private int numMensajes = 0;
+    private long longitudIndexada = 0;
+    private int sinGuardar = 0;
+
+    private FileChannel canalRegistro;
+
+    HistorialLocal(Path directorio) throws IOException {
+        Files.createDirectories(directorio);
+        this.registro = directorio.resolve("historial.log");
+        this.archivoIndice = directorio.resolve("historial.idx");
+        this.canalRegistro = FileChannel.open(registro, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+
+        // Cargar el índice en segundo plano: las búsquedas esperan a que termine
+        escritor.execute(this::abrir);
+    }
+
+    // Método para registrar un mensaje tal como lo envía el servidor; los que no son de chat se ignoran
+    void agregar(String mensaje) {
+        String conversacion = conversacionDe(mensaje);
+        if (conversacion == null) {
+            return;
+        }
+        long fecha = System.currentTimeMillis();
+        escritor.execute(() -> escribir(fecha, conversacion, mensaje));
+    }
+
+    // Método para obtener la conversación de un mensaje: "[Sala] usuario: texto" o "[Privado con X] ..."
+    static String conversacionDe(String mensaje) {
+        if (!mensaje.startsWith("[")) {
+            return null;
+        }
+        int cierre = mensaje.indexOf("] ");
+        if (cierre <= 1 || mensaje.indexOf(": ", cierre) < 0) {
+            return null;
+        }
+        return mensaje.substring(1, cierre);
+    }
+
+    // Método para buscar los mensajes que contienen todos los términos de la consulta; el último
+    // término se trata como prefijo para poder buscar mientras se escribe. Devuelve los más recientes.
+    List<Resultado> buscar(String consulta, int maximo) throws IOException {
+        List<String> partes = tokenizar(consulta);
+        if (partes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        esperarEscritor();
+        int[] coincidencias;
+        long[] lineas;
+        synchronized (this) {
+            coincidencias = null;
+            for (int i = 0; i < partes.size(); i++) {
+                int[] lista = i == partes.size() - 1 ? conPrefijo(partes.get(i)) : exactos(partes.get(i));
+                coincidencias = coincidencias == null ? lista : interseccion(coincidencias, lista);
+                if (coincidencias.length == 0) {
+                    return Collections.emptyList();
+                }
+            }
+            lineas = posicionesDe(coincidencias, maximo);
+        }
+        return leer(lineas);
+    }
+
+    // Método para obtener los últimos mensajes de una conversación
+    List<Resultado> recientes(String conversacion, int maximo) throws IOException {
+        esperarEscritor();
+        long[] lineas;
+        synchronized (this) {
+            lineas = posicionesDe(exactos(PREFIJO_CONVERSACION + conversacion), maximo);
+        }
+        List<Resultado> resultados = leer(lineas);
+        Collections.reverse(resultados);
+        return resultados;
+    }
+
+    // Método para guardar el índice y cerrar el registro
+    void cerrar() {
+        escritor.execute(() -> {
+            guardarIndice();
+            try {
+                canalRegistro.close();
+            } catch (IOException e) {
+                // Ya estaba cerrado
+            }
+        });
+        escritor.shutdown();
+        try {
+            escritor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Espera a que se hayan aplicado los mensajes encolados antes de buscar
+    private void esperarEscritor() {
+        try {
+            escritor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+            // Buscar con lo que haya indexado
+        }
+    }
+
+    // Método que carga el índice guardado y añade lo que el registro tiene después
+    private void abrir() {
+        try {
+            cargarIndice();
+            long longitud = canalRegistro.size();
+            if (longitud < longitudIndexada) {
+                // El registro no corresponde al índice guardado: reconstruirlo entero
+                synchronized (this) {
+                    terminos.clear();
+                    numMensajes = 0;
+                    longitudIndexada = 0;
+                }
+            }
+            if (longitud > longitudIndexada) {
+                indexarDesde(longitudIndexada, longitud);
+                guardarIndice();
+            }
+        } catch (IOException e) {
+            System.err.println("Error al abrir el historial: " + e.getMessage());
+        }
+    }
+
+    private void escribir(long fecha, String conversacion, String mensaje) {
+        // Una línea por mensaje: los saltos de línea del texto se sustituyen
+        String linea = fecha + "\t" + conversacion + "\t" + mensaje.replace('\n', ' ').replace('\r', ' ') + "\n";
+        ByteBuffer datos = ByteBuffer.wrap(linea.getBytes(StandardCharsets.UTF_8));
+        try {
+            long posicion = canalRegistro.size();
+            while (datos.hasRemaining()) {
+                canalRegistro.write(datos, posicion + datos.position());
+            }
+            synchronized (this) {
+                indexar(posicion, conversacion, mensaje);
+                longitudIndexada = posicion + datos.limit();
+            }
+            if (++sinGuardar >= MENSAJES_POR_GUARDADO) {
+                guardarIndice();
+            }
+        } catch (IOException e) {
+            System.err.println("Error al guardar el historial: " + e.getMessage());
+        }
+    }
+
+    // Método para indexar las líneas del registro entre dos posiciones
+    private void indexarDesde(long desde, long hasta) throws IOException {
+        try (FileChannel canal = FileChannel.open(registro, StandardOpenOption.READ);
+             InputStream entrada = new BufferedInputStream(Channels.newInputStream(canal.position(desde)), 64 * 1024)) {
+            ByteArrayOutputStream linea = new ByteArrayOutputStream(256);
+            long posicion = desde;
+            long inicioLinea = desde;
+            int b;
+            while (posicion < hasta && (b = entrada.read()) != -1) {
+                posicion++;
+                if (b != '\n') {
+                    linea.write(b);
+                    continue;
+                }
+                String[] campos = linea.toString(StandardCharsets.UTF_8.name()).split("\t", 3);
+                if (campos.length == 3) {
+                    synchronized (this) {
+                        indexar(inicioLinea, campos[1], campos[2]);
+                    }
+                }
+                linea.reset();
+                inicioLinea = posicion;
+            }
+            synchronized (this) {
+                // Una línea incompleta al final (cierre brusco) se vuelve a leer la próxima vez
+                longitudIndexada = inicioLinea;
+            }
+        }
+    }
+
+    // Método para añadir un mensaje al índice (con el monitor tomado)
+    private void indexar(long posicion, String conversacion, String mensaje) {
+        if (numMensajes == posiciones.length) {
+            posiciones = Arrays.copyOf(posiciones, posiciones.length * 2);
+        }
+        int numero = numMensajes++;
+        posiciones[numero] = posicion;
+        terminos.computeIfAbsent(PREFIJO_CONVERSACION + conversacion, t -> new Postings()).agregar(numero);
+        for (String termino : new HashSet<>(tokenizar(mensaje))) {
+            terminos.computeIfAbsent(termino, t -> new Postings()).agregar(numero);
+        }
+    }
+
+    // Método para partir un texto en términos: minúsculas, sin acentos, letras y dígitos
+    static List<String> tokenizar(String texto) {
+        String normalizado = Normalizer.normalize(texto.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        List<String> resultado = new ArrayList<>();
+        StringBuilder actual = new StringBuilder();
+        for (int i = 0; i <= normalizado.length(); i++) {
+            char c = i < normalizado.length() ? normalizado.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (actual.length() < MAX_TERMINO) {
+                    actual.append(c);
+                }
+            } else if (actual.length() > 0) {
+                resultado.add(actual.toString());
+                actual.setLength(0);
+            }
+        }
+        return resultado;
+    }
+
+    private int[] exactos(String termino) {
+        Postings lista = terminos.get(termino);
+        return lista != null ? lista.comoArreglo() : new int[0];
+    }
+
+    // Unión ordenada de las listas de todos los términos que empiezan por el prefijo
+    private int[] conPrefijo(String prefijo) {
+        SortedMap<String, Postings> rango = terminos.subMap(prefijo, prefijo + Character.MAX_VALUE);
+        if (rango.size() == 1) {
+            return rango.values().iterator().next().comoArreglo();
+        }
+        BitSet union = new BitSet(numMensajes);
+        for (Postings lista : rango.values()) {
+            for (int i = 0; i < lista.tamaño; i++) {
+                union.set(lista.numeros[i]);
+            }
+        }
+        return union.stream().toArray();
+    }
+
+    private static int[] interseccion(int[] a, int[] b) {
+        int[] resultado = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                resultado[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(resultado, n);
+    }
+
+    // Posiciones en el registro de los últimos "maximo" mensajes, del más reciente al más antiguo
+    private long[] posicionesDe(int[] numeros, int maximo) {
+        int cuantos = Math.min(maximo, numeros.length);
+        long[] resultado = new long[cuantos];
+        for (int i = 0; i < cuantos; i++) {
+            resultado[i] = posiciones[numeros[numeros.length - 1 - i]];
+        }
+        return resultado;
+    }
+
+    // Método para leer del registro las líneas que empiezan en las posiciones indicadas
+    private List<Resultado> leer(long[] lineas) throws IOException {
+        List<Resultado> resultados = new ArrayList<>(lineas.length);
+        try (FileChannel canal = FileChannel.open(registro, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long posicion : lineas) {
+                buffer.clear();
+                canal.read(buffer, posicion);
+                buffer.flip();
+                int fin = 0;
+                while (fin < buffer.limit() && buffer.get(fin) != '\n') {
+                    fin++;
+                }
+                String[] campos = new String(buffer.array(), 0, fin, StandardCharsets.UTF_8).split("\t", 3);
+                if (campos.length == 3) {
+                    try {
+                        resultados.add(new Resultado(Long.parseLong(campos[0]), campos[1], campos[2]));
+                    } catch (NumberFormatException e) {
+                        // Línea dañada: omitirla
+                    }
+                }
+            }
+        }
+        return resultados;
+    }
+
+    // Método para guardar el índice de forma atómica (archivo temporal y renombrado)
+    private void guardarIndice() {
+        Path temporal = archivoIndice.resolveSibling(archivoIndice.getFileName() + ".tmp");
+        try {
+            synchronized (this) {
+                try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal), 64 * 1024))) {
+                    dos.writeInt(MAGICO);
+                    dos.writeInt(VERSION);
+                    dos.writeLong(longitudIndexada);
+                    dos.writeInt(numMensajes);
+                    for (int i = 0; i < numMensajes; i++) {
+                        dos.writeLong(posiciones[i]);
+                    }
+                    dos.writeInt(terminos.size());
+                    for (Map.Entry<String, Postings> entrada : terminos.entrySet()) {
+                        dos.writeUTF(entrada.getKey());
+                        entrada.getValue().escribir(dos);
+                    }
+                }
+                sinGuardar = 0;
+            }
+            Files.move(temporal, archivoIndice, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error al guardar el índice del historial: " + e.getMessage());
+        }
+    }
+
+    private void cargarIndice() {
+        if (!Files.exists(archivoIndice)) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(archivoIndice), 64 * 1024))) {
+            if (dis.readInt() != MAGICO || dis.readInt() != VERSION) {
+                return;
+            }
+            long longitud = dis.readLong();
+            int mensajes = dis.readInt();
+            long[] leidas = new long[Math.max(1024, mensajes)];
+            for (int i = 0; i < mensajes; i++) {
+                leidas[i] = dis.readLong();
+            }
+            int numTerminos = dis.readInt();
+            TreeMap<String, Postings> leidos = new TreeMap<>();
+            for (int i = 0; i < numTerminos; i++) {
+                leidos.put(dis.readUTF(), Postings.leer(dis));
+            }
+            synchronized (this) {
+                terminos.clear();
+                terminos.putAll(leidos);
+                posiciones = leidas;
+                numMensajes = mensajes;
+                longitudIndexada = longitud;
+            }
+        } catch (IOException e) {
+            // Índice dañado: se reconstruye desde el registro
+            System.err.println("Índice del historial dañado, se reconstruirá: " + e.getMessage());
+        }
+    }
+
+    // Lista creciente de números de mensaje; se guarda con diferencias en formato de longitud variable
+    private static class Postings {
+        int[] numeros = new int[4];
+        int tamaño = 0;
+
+        void agregar(int numero) {
+            if (tamaño > 0 && numeros[tamaño - 1] == numero) {
+                return;
+            }
+            if (tamaño == numeros.length) {
+                numeros = Arrays.copyOf(numeros, tamaño * 2);
+            }
+            numeros[tamaño++] = numero;
+        }
+
+        int[] comoArreglo() {
+            return Arrays.copyOf(numeros, tamaño);
+        }
+
+        void escribir(DataOutputStream dos) throws IOException {
+            dos.writeInt(tamaño);
+            int anterior = 0;
+            for (int i = 0; i < tamaño; i++) {
+                int delta = numeros[i] - anterior;
+                anterior = numeros[i];
+                while ((delta & ~0x7F) != 0) {
+                    dos.writeByte((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                dos.writeByte(delta);
+            }
+        }
+
+        static Postings leer(DataInputStream dis) throws IOException {
+            Postings lista = new Postings();
+            int tamaño = dis.readInt();
+            lista.numeros = new int[Math.max(4, tamaño)];
+            int anterior = 0;
+            for (int i = 0; i < tamaño; i++) {
+                int delta = 0;
+                int desplazamiento = 0;
+                int b;
+                do {
+                    b = dis.readUnsignedByte();
+                    delta |= (b & 0x7F) << desplazamiento;
+                    desplazamiento += 7;
+                } while ((b & 0x80) != 0);
+                anterior += delta;
+                lista.numeros[i] = anterior;
+            }
+            lista.tamaño = tamaño;
+            return lista;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package cliente;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Índice local de los archivos recibidos (Archivos<usuario>) por hash de contenido SHA-256.
+// Permite servir desde disco un archivo que se vuelve a anunciar sin descargarlo otra vez.
+// Se guarda en Archivos<usuario>/.indice (hash, tamaño, fecha y nombre por línea) y al cargarlo
+// sólo se recalcula el hash de los archivos nuevos o modificados.
+class IndiceArchivos {
+
+    private static final String NOMBRE_INDICE = ".indice";
+
+    // Archivo indexado; la fecha y el tamaño permiten detectar cambios sin volver a leerlo
+    private static class Entrada {
+        final String hash;
+        final String nombre;
+        final long tamaño;
+        final long modificado;
+
+        Entrada(String hash, String nombre, long tamaño, long modificado) {
+            this.hash = hash;
+            this.nombre = nombre;
+            this.tamaño = tamaño;
+            this.modificado = modificado;
+        }
+    }
+
+    private final Path directorio;
+    private final Map<String, Entrada> porNombre = new HashMap<>();
+    private final Map<String, Entrada> porHash = new HashMap<>();
+    private boolean cargado = false;
+
+    IndiceArchivos(Path directorio) {
+        this.directorio = directorio;
+    }
+
+    // Método para buscar un archivo con ese contenido; devuelve null si no hay ninguno válido
+    synchronized Path buscar(String hash, long tamaño) throws IOException {
+        cargar();
+        Entrada entrada = porHash.get(hash);
+        if (entrada == null || entrada.tamaño != tamaño) {
+            return null;
+        }
+        Path archivo = directorio.resolve(entrada.nombre);
+        Entrada actual = indexar(archivo, entrada);
+        if (actual == null || !actual.hash.equals(hash)) {
+            // El archivo se borró o se modificó desde que se indexó
+            guardar();
+            return null;
+        }
+        return archivo;
+    }
+
+    // Método para registrar un archivo recién recibido cuyo hash ya se conoce
+    synchronized void agregar(Path archivo, String hash) throws IOException {
+        cargar();
+        poner(new Entrada(hash, archivo.getFileName().toString(), Files.size(archivo),
+            Files.getLastModifiedTime(archivo).toMillis()));
+        guardar();
+    }
+
+    private void poner(Entrada entrada) {
+        Entrada anterior = porNombre.put(entrada.nombre, entrada);
+        if (anterior != null && porHash.get(anterior.hash) == anterior) {
+            porHash.remove(anterior.hash);
+        }
+        porHash.putIfAbsent(entrada.hash, entrada);
+    }
+
+    private void quitar(String nombre) {
+        Entrada anterior = porNombre.remove(nombre);
+        if (anterior != null && porHash.get(anterior.hash) == anterior) {
+            porHash.remove(anterior.hash);
+            // Si otro archivo tiene el mismo contenido, pasa a representarlo
+            for (Entrada otra : porNombre.values()) {
+                if (otra.hash.equals(anterior.hash)) {
+                    porHash.put(otra.hash, otra);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Método para comprobar un archivo contra su entrada y recalcular el hash si cambió
+    private Entrada indexar(Path archivo, Entrada conocida) throws IOException {
+        String nombre = archivo.getFileName().toString();
+        if (!Files.isRegularFile(archivo)) {
+            quitar(nombre);
+            return null;
+        }
+        long tamaño = Files.size(archivo);
+        long modificado = Files.getLastModifiedTime(archivo).toMillis();
+        if (conocida != null && conocida.tamaño == tamaño && conocida.modificado == modificado) {
+            return conocida;
+        }
+        Entrada nueva = new Entrada(calcularHash(archivo), nombre, tamaño, modificado);
+        quitar(nombre);
+        poner(nueva);
+        return nueva;
+    }
+
+    // Método para leer el índice guardado y ponerlo al día con el contenido del directorio
+    private void cargar() throws IOException {
+        if (cargado) {
+            return;
+        }
+        cargado = true;
+        if (!Files.isDirectory(directorio)) {
+            return;
+        }
+
+        Map<String, Entrada> guardadas = new HashMap<>();
+        Path indice = directorio.resolve(NOMBRE_INDICE);
+        if (Files.exists(indice)) {
+            for (String linea : Files.readAllLines(indice)) {
+                String[] partes = linea.split("\t", 4);
+                if (partes.length == 4) {
+                    try {
+                        guardadas.put(partes[3], new Entrada(partes[0], partes[3],
+                            Long.parseLong(partes[1]), Long.parseLong(partes[2])));
+                    } catch (NumberFormatException e) {
+                        // Línea dañada: el archivo se volverá a indexar
+                    }
+                }
+            }
+        }
+
+        // Los archivos ocultos son parciales o el propio índice
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, p -> !p.getFileName().toString().startsWith("."))) {
+            for (Path archivo : archivos) {
+                Entrada conocida = guardadas.get(archivo.getFileName().toString());
+                if (conocida != null) {
+                    poner(conocida);
+                }
+                indexar(archivo, conocida);
+            }
+        }
+        guardar();
+    }
+
+    // Método para guardar el índice de forma atómica
+    private void guardar() throws IOException {
+        if (!Files.isDirectory(directorio)) {
+            return;
+        }
+        StringBuilder contenido = new StringBuilder();
+        for (Entrada entrada : porNombre.values()) {
+            contenido.append(entrada.hash).append('\t').append(entrada.tamaño).append('\t')
+                     .append(entrada.modificado).append('\t').append(entrada.nombre).append('\n');
+        }
+        Path temporal = directorio.resolve(NOMBRE_INDICE + ".tmp");
+        Files.write(temporal, contenido.toString().getBytes());
+        Files.move(temporal, directorio.resolve(NOMBRE_INDICE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Método para calcular el hash SHA-256 de un archivo en hexadecimal
+    static String calcularHash(Path archivo) throws IOException {
+        MessageDigest resumen;
+        try {
+            resumen = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Toda JVM debe incluir SHA-256
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            while (canal.read(buffer) != -1) {
+                buffer.flip();
+                resumen.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder texto = new StringBuilder(64);
+        for (byte b : resumen.digest()) {
+            texto.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return texto.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package cliente;
+
+import javax.swing.AbstractListModel;
+import java.util.*;
+
+// Modelo de lista ordenado para las listas de usuarios y salas. Las altas y bajas individuales
+// se insertan con búsqueda binaria y disparan un único evento de una fila. Cuando llega la lista
+// completa desde el servidor se compara con la actual y sólo se notifican las diferencias; si son
+// demasiadas se reemplaza todo con un número constante de eventos.
+public class ModeloListaOrdenada extends AbstractListModel<String> {
+
+    // A partir de cuántas diferencias conviene reemplazar la lista completa
+    private static final int MAX_CAMBIOS_INDIVIDUALES = 64;
+
+    private static final Comparator<String> ORDEN =
+        String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private ArrayList<String> elementos = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return elementos.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return elementos.get(index);
+    }
+
+    // Método para obtener la posición de un elemento (-1 si no está)
+    public int indiceDe(String elemento) {
+        int indice = Collections.binarySearch(elementos, elemento, ORDEN);
+        return indice >= 0 ? indice : -1;
+    }
+
+    // Método para insertar un elemento en su posición ordenada
+    public void agregar(String elemento) {
+        int indice = Collections.binarySearch(elementos, elemento, ORDEN);
+        if (indice >= 0) {
+            return;
+        }
+        indice = -indice - 1;
+        elementos.add(indice, elemento);
+        fireIntervalAdded(this, indice, indice);
+    }
+
+    // Método para quitar un elemento
+    public void eliminar(String elemento) {
+        int indice = Collections.binarySearch(elementos, elemento, ORDEN);
+        if (indice >= 0) {
+            elementos.remove(indice);
+            fireIntervalRemoved(this, indice, indice);
+        }
+    }
+
+    // Método para sustituir el contenido por una instantánea, notificando sólo las diferencias
+    public void reemplazarTodo(Collection<String> nuevos) {
+        TreeSet<String> conjunto = new TreeSet<>(ORDEN);
+        conjunto.addAll(nuevos);
+        ArrayList<String> ordenados = new ArrayList<>(conjunto);
+
+        // Recorrer ambas listas ordenadas a la vez para encontrar altas y bajas
+        List<String> altas = new ArrayList<>();
+        List<String> bajas = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < elementos.size() || j < ordenados.size()) {
+            int comparacion;
+            if (i == elementos.size()) {
+                comparacion = 1;
+            } else if (j == ordenados.size()) {
+                comparacion = -1;
+            } else {
+                comparacion = ORDEN.compare(elementos.get(i), ordenados.get(j));
+            }
+            if (comparacion == 0) {
+                i++;
+                j++;
+            } else if (comparacion < 0) {
+                bajas.add(elementos.get(i++));
+            } else {
+                altas.add(ordenados.get(j++));
+            }
+            if (altas.size() + bajas.size() > MAX_CAMBIOS_INDIVIDUALES) {
+                reemplazarEnBloque(ordenados);
+                return;
+            }
+        }
+
+        for (String baja : bajas) {
+            eliminar(baja);
+        }
+        for (String alta : altas) {
+            agregar(alta);
+        }
+    }
+
+    // Método para reemplazar toda la lista con a lo sumo dos eventos
+    private void reemplazarEnBloque(ArrayList<String> ordenados) {
+        int anterior = elementos.size();
+        int nuevo = ordenados.size();
+        elementos = ordenados;
+        if (nuevo > anterior) {
+            if (anterior > 0) {
+                fireContentsChanged(this, 0, anterior - 1);
+            }
+            fireIntervalAdded(this, anterior, nuevo - 1);
+        } else {
+            if (nuevo < anterior) {
+                fireIntervalRemoved(this, nuevo, anterior - 1);
+            }
+            if (nuevo > 0) {
+                fireContentsChanged(this, 0, nuevo - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package cliente;
+
+import javax.swing.AbstractListModel;
+import java.awt.FontMetrics;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Modelo acotado para la vista de mensajes. Guarda como máximo "capacidad" mensajes y los
+// expone ya partidos en líneas visuales del ancho de la vista, de modo que cada fila tiene
+// la misma altura y la lista sólo necesita dibujar las filas visibles. Al superar la capacidad
+// se descartan los mensajes más antiguos, así que la memoria y el coste por mensaje no crecen
+// con la duración de la sesión.
+public class ModeloMensajes extends AbstractListModel<ModeloMensajes.Linea> {
+
+    // Línea visual de un mensaje
+    public static class Linea {
+        final String texto;
+        final boolean privado;
+
+        Linea(String texto, boolean privado) {
+            this.texto = texto;
+            this.privado = privado;
+        }
+
+        @Override
+        public String toString() {
+            return texto;
+        }
+    }
+
+    // Mensaje original junto con las líneas en que se partió
+    private static class Mensaje {
+        final String texto;
+        final boolean privado;
+        int numLineas;
+
+        Mensaje(String texto, boolean privado) {
+            this.texto = texto;
+            this.privado = privado;
+        }
+    }
+
+    private final int capacidad;
+    private final ArrayDeque<Mensaje> mensajes = new ArrayDeque<>();
+    private final BufferCircular<Linea> lineas = new BufferCircular<>();
+    private int ancho = 0;
+    private FontMetrics metricas;
+
+    public ModeloMensajes(int capacidad) {
+        this.capacidad = capacidad;
+    }
+
+    @Override
+    public int getSize() {
+        return lineas.size();
+    }
+
+    @Override
+    public Linea getElementAt(int index) {
+        return lineas.get(index);
+    }
+
+    // Método para agregar varios mensajes con un único evento de inserción
+    public void agregar(List<String> nuevos) {
+        if (nuevos.isEmpty()) {
+            return;
+        }
+        // En una ráfaga mayor que la capacidad, los primeros se descartarían enseguida: no partirlos
+        if (nuevos.size() > capacidad) {
+            nuevos = nuevos.subList(nuevos.size() - capacidad, nuevos.size());
+        }
+        int inicio = lineas.size();
+        for (String texto : nuevos) {
+            Mensaje mensaje = new Mensaje(texto, texto.contains("[Privado"));
+            mensaje.numLineas = partir(mensaje);
+            mensajes.addLast(mensaje);
+        }
+        if (lineas.size() > inicio) {
+            fireIntervalAdded(this, inicio, lineas.size() - 1);
+        }
+
+        // Descartar los mensajes más antiguos que exceden la capacidad
+        int lineasDescartadas = 0;
+        while (mensajes.size() > capacidad) {
+            lineasDescartadas += mensajes.removeFirst().numLineas;
+        }
+        if (lineasDescartadas > 0) {
+            lineas.eliminarPrimeros(lineasDescartadas);
+            fireIntervalRemoved(this, 0, lineasDescartadas - 1);
+        }
+    }
+
+    public void agregar(String texto) {
+        List<String> uno = new ArrayList<>(1);
+        uno.add(texto);
+        agregar(uno);
+    }
+
+    // Método para insertar mensajes antes de los actuales (p. ej. historial leído en segundo plano
+    // que termina cuando ya llegaron mensajes nuevos); si no caben todos, se quedan los más recientes
+    public void agregarAlPrincipio(List<String> anteriores) {
+        int espacio = capacidad - mensajes.size();
+        if (anteriores.isEmpty() || espacio <= 0) {
+            return;
+        }
+        if (anteriores.size() > espacio) {
+            anteriores = anteriores.subList(anteriores.size() - espacio, anteriores.size());
+        }
+        for (int i = anteriores.size() - 1; i >= 0; i--) {
+            String texto = anteriores.get(i);
+            mensajes.addFirst(new Mensaje(texto, texto.contains("[Privado")));
+        }
+        repartirTodo();
+    }
+
+    // Método para vaciar el modelo
+    public void limpiar() {
+        int tamaño = lineas.size();
+        mensajes.clear();
+        lineas.limpiar();
+        if (tamaño > 0) {
+            fireIntervalRemoved(this, 0, tamaño - 1);
+        }
+    }
+
+    // Método para volver a partir todas las líneas cuando cambia el ancho disponible
+    public void setAncho(int nuevoAncho, FontMetrics nuevasMetricas) {
+        if (nuevoAncho == ancho && nuevasMetricas.equals(metricas)) {
+            return;
+        }
+        ancho = nuevoAncho;
+        metricas = nuevasMetricas;
+        repartirTodo();
+    }
+
+    // Método para volver a generar las líneas de todos los mensajes
+    private void repartirTodo() {
+        int tamaño = lineas.size();
+        lineas.limpiar();
+        if (tamaño > 0) {
+            fireIntervalRemoved(this, 0, tamaño - 1);
+        }
+        for (Mensaje mensaje : mensajes) {
+            mensaje.numLineas = partir(mensaje);
+        }
+        if (lineas.size() > 0) {
+            fireIntervalAdded(this, 0, lineas.size() - 1);
+        }
+    }
+
+    // Método para partir un mensaje en líneas por palabras según el ancho actual
+    private int partir(Mensaje mensaje) {
+        int antes = lineas.size();
+        if (mensaje.privado) {
+            lineas.agregar(new Linea("----------------------------------", true));
+        }
+        for (String parrafo : mensaje.texto.split("\n", -1)) {
+            if (metricas == null || ancho <= 0 || metricas.stringWidth(parrafo) <= ancho) {
+                lineas.agregar(new Linea(parrafo, mensaje.privado));
+                continue;
+            }
+
+            StringBuilder actual = new StringBuilder();
+            int anchoActual = 0;
+            int anchoEspacio = metricas.charWidth(' ');
+            for (String palabra : parrafo.split(" ")) {
+                int anchoPalabra = metricas.stringWidth(palabra);
+
+                // Palabras más anchas que la vista se cortan por caracteres
+                while (anchoPalabra > ancho) {
+                    if (actual.length() > 0) {
+                        lineas.agregar(new Linea(actual.toString(), mensaje.privado));
+                        actual.setLength(0);
+                        anchoActual = 0;
+                    }
+                    int corte = 1;
+                    while (corte < palabra.length() && metricas.stringWidth(palabra.substring(0, corte + 1)) <= ancho) {
+                        corte++;
+                    }
+                    lineas.agregar(new Linea(palabra.substring(0, corte), mensaje.privado));
+                    palabra = palabra.substring(corte);
+                    anchoPalabra = metricas.stringWidth(palabra);
+                }
+                if (palabra.isEmpty()) {
+                    continue;
+                }
+
+                int necesario = actual.length() == 0 ? anchoPalabra : anchoActual + anchoEspacio + anchoPalabra;
+                if (necesario > ancho && actual.length() > 0) {
+                    lineas.agregar(new Linea(actual.toString(), mensaje.privado));
+                    actual.setLength(0);
+                    necesario = anchoPalabra;
+                }
+                if (actual.length() > 0) {
+                    actual.append(' ');
+                }
+                actual.append(palabra);
+                anchoActual = necesario;
+            }
+            lineas.agregar(new Linea(actual.toString(), mensaje.privado));
+        }
+        if (mensaje.privado) {
+            lineas.agregar(new Linea("----------------------------------", true));
+        }
+        return lineas.size() - antes;
+    }
+
+    // Lista circular con acceso por índice y eliminación barata del principio
+    private static class BufferCircular<T> {
+        private Object[] elementos = new Object[256];
+        private int inicio = 0;
+        private int tamaño = 0;
+
+        int size() {
+            return tamaño;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(int indice) {
+            if (indice < 0 || indice >= tamaño) {
+                throw new IndexOutOfBoundsException("Índice: " + indice + ", tamaño: " + tamaño);
+            }
+            return (T) elementos[(inicio + indice) % elementos.length];
+        }
+
+        void agregar(T elemento) {
+            if (tamaño == elementos.length) {
+                Object[] nuevos = new Object[elementos.length * 2];
+                for (int i = 0; i < tamaño; i++) {
+                    nuevos[i] = elementos[(inicio + i) % elementos.length];
+                }
+                elementos = nuevos;
+                inicio = 0;
+            }
+            elementos[(inicio + tamaño) % elementos.length] = elemento;
+            tamaño++;
+        }
+
+        void eliminarPrimeros(int cantidad) {
+            for (int i = 0; i < cantidad; i++) {
+                elementos[(inicio + i) % elementos.length] = null;
+            }
+            inicio = (inicio + cantidad) % elementos.length;
+            tamaño -= cantidad;
+        }
+
+        void limpiar() {
+            elementos = new Object[256];
+            inicio = 0;
+            tamaño = 0;
+        }
+    }
+}
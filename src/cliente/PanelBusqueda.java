@@ -0,0 +1,113 @@
+package cliente;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+// Caja de búsqueda sobre el historial local. Busca mientras se escribe (con una pequeña
+// espera para no lanzar una búsqueda por tecla) y muestra los mensajes encontrados en todas
+// las salas y chats privados, del más reciente al más antiguo, en una ventana aparte.
+public class PanelBusqueda extends JPanel {
+
+    private static final int MAX_RESULTADOS = 200;
+    private static final int MS_ESPERA_TECLEO = 250;
+
+    private final JTextField campo = new JTextField();
+    private final DefaultListModel<String> modeloResultados = new DefaultListModel<>();
+    private final JLabel estado = new JLabel(" ");
+    private final javax.swing.Timer temporizador = new javax.swing.Timer(MS_ESPERA_TECLEO, e -> buscar());
+    private HistorialLocal historial;
+    private JDialog ventanaResultados;
+
+    public PanelBusqueda() {
+        super(new BorderLayout(5, 0));
+        setBorder(BorderFactory.createEmptyBorder(0, 0, 5, 0));
+        add(new JLabel("Buscar en el historial:"), BorderLayout.WEST);
+        add(campo, BorderLayout.CENTER);
+
+        temporizador.setRepeats(false);
+        campo.addActionListener(e -> buscar());
+        campo.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                temporizador.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                temporizador.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                temporizador.restart();
+            }
+        });
+    }
+
+    void setHistorial(HistorialLocal historial) {
+        this.historial = historial;
+    }
+
+    private void buscar() {
+        temporizador.stop();
+        String consulta = campo.getText().trim();
+        if (historial == null || consulta.isEmpty()) {
+            return;
+        }
+        // La búsqueda lee del disco: hacerla fuera del hilo de eventos
+        new SwingWorker<List<HistorialLocal.Resultado>, Void>() {
+            private long inicio;
+
+            @Override
+            protected List<HistorialLocal.Resultado> doInBackground() throws Exception {
+                inicio = System.nanoTime();
+                return historial.buscar(consulta, MAX_RESULTADOS);
+            }
+
+            @Override
+            protected void done() {
+                // Descartar el resultado si mientras tanto cambió la consulta
+                if (!consulta.equals(campo.getText().trim())) {
+                    return;
+                }
+                try {
+                    mostrarResultados(consulta, get(), (System.nanoTime() - inicio) / 1_000_000);
+                } catch (Exception e) {
+                    estado.setText("Error al buscar: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private void mostrarResultados(String consulta, List<HistorialLocal.Resultado> resultados, long ms) {
+        if (ventanaResultados == null) {
+            crearVentanaResultados();
+        }
+        SimpleDateFormat formato = new SimpleDateFormat("dd/MM/yy HH:mm");
+        modeloResultados.clear();
+        for (HistorialLocal.Resultado resultado : resultados) {
+            modeloResultados.addElement(formato.format(new Date(resultado.fecha)) + "  " + resultado.texto);
+        }
+        estado.setText(resultados.size() + (resultados.size() == MAX_RESULTADOS ? "+" : "")
+            + " resultados para \"" + consulta + "\" en " + ms + " ms");
+        if (!ventanaResultados.isVisible()) {
+            ventanaResultados.setVisible(true);
+            campo.requestFocusInWindow();
+        }
+    }
+
+    private void crearVentanaResultados() {
+        Window propietaria = SwingUtilities.getWindowAncestor(this);
+        ventanaResultados = new JDialog(propietaria, "Resultados de la búsqueda", Dialog.ModalityType.MODELESS);
+        JList<String> lista = new JList<>(modeloResultados);
+        ventanaResultados.add(new JScrollPane(lista), BorderLayout.CENTER);
+        ventanaResultados.add(estado, BorderLayout.SOUTH);
+        ventanaResultados.setSize(600, 400);
+        ventanaResultados.setLocationRelativeTo(propietaria);
+    }
+}
@@ -0,0 +1,127 @@
+package cliente;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+// Panel que muestra las transferencias de archivos con su progreso y velocidad, y permite
+// cancelarlas. Las notificaciones del gestor se aplican en el hilo de eventos a un ritmo fijo
+// para no generar una actualización de la interfaz por cada bloque transferido.
+public class PanelTransferencias extends JPanel implements GestorTransferencias.Oyente {
+
+    // Transferencias terminadas que se conservan en la lista
+    private static final int MAX_TERMINADAS = 20;
+
+    private final DefaultListModel<GestorTransferencias.Transferencia> modelo = new DefaultListModel<>();
+    private final JList<GestorTransferencias.Transferencia> lista = new JList<>(modelo);
+    private final Set<GestorTransferencias.Transferencia> cambiadas = new LinkedHashSet<>();
+    private GestorTransferencias gestor;
+
+    public PanelTransferencias() {
+        super(new BorderLayout());
+        setBorder(BorderFactory.createTitledBorder("Transferencias"));
+
+        lista.setCellRenderer(new Renderizador());
+        lista.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        add(new JScrollPane(lista), BorderLayout.CENTER);
+
+        JButton botonCancelar = new JButton("Cancelar");
+        botonCancelar.addActionListener(e -> {
+            GestorTransferencias.Transferencia seleccionada = lista.getSelectedValue();
+            if (seleccionada != null && gestor != null) {
+                gestor.cancelar(seleccionada);
+            }
+        });
+        JPanel panelBotones = new JPanel();
+        panelBotones.add(botonCancelar);
+        add(panelBotones, BorderLayout.SOUTH);
+
+        // Aplicar los cambios acumulados cuatro veces por segundo
+        new javax.swing.Timer(250, e -> aplicarCambios()).start();
+    }
+
+    public void setGestor(GestorTransferencias gestor) {
+        this.gestor = gestor;
+        gestor.agregarOyente(this);
+    }
+
+    @Override
+    public void transferenciaActualizada(GestorTransferencias.Transferencia transferencia) {
+        synchronized (cambiadas) {
+            cambiadas.add(transferencia);
+        }
+    }
+
+    private void aplicarCambios() {
+        List<GestorTransferencias.Transferencia> pendientes;
+        synchronized (cambiadas) {
+            if (cambiadas.isEmpty()) {
+                return;
+            }
+            pendientes = new ArrayList<>(cambiadas);
+            cambiadas.clear();
+        }
+        for (GestorTransferencias.Transferencia transferencia : pendientes) {
+            int indice = modelo.indexOf(transferencia);
+            if (indice < 0) {
+                modelo.addElement(transferencia);
+            } else {
+                modelo.set(indice, transferencia);
+            }
+        }
+
+        // Quitar las terminadas más antiguas
+        int terminadas = 0;
+        for (int i = modelo.size() - 1; i >= 0; i--) {
+            if (modelo.get(i).terminada() && ++terminadas > MAX_TERMINADAS) {
+                modelo.remove(i);
+            }
+        }
+    }
+
+    private static String formatearBytes(double bytes) {
+        if (bytes >= 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024 * 1024));
+        }
+        if (bytes >= 1024) {
+            return String.format("%.1f KB", bytes / 1024);
+        }
+        return String.format("%.0f B", bytes);
+    }
+
+    // Renderizador con nombre, estado, velocidad y barra de progreso
+    private static class Renderizador extends JPanel implements ListCellRenderer<GestorTransferencias.Transferencia> {
+        private final JLabel etiqueta = new JLabel();
+        private final JProgressBar barra = new JProgressBar(0, 100);
+
+        Renderizador() {
+            super(new BorderLayout(2, 2));
+            setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
+            barra.setStringPainted(true);
+            add(etiqueta, BorderLayout.NORTH);
+            add(barra, BorderLayout.CENTER);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends GestorTransferencias.Transferencia> list,
+                                                      GestorTransferencias.Transferencia t, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            String flecha = t.getTipo() == GestorTransferencias.Tipo.ENVIO ? "↑ " : "↓ ";
+            String detalle;
+            switch (t.getEstado()) {
+                case EN_CURSO: detalle = formatearBytes(t.getVelocidad()) + "/s"; break;
+                case EN_COLA: detalle = "en cola"; break;
+                case COMPLETADA: detalle = "completada"; break;
+                case CANCELADA: detalle = "cancelada"; break;
+                default: detalle = "error: " + t.getError();
+            }
+            etiqueta.setText(flecha + t.getNombre() + " (" + t.getContraparte() + ") - " + detalle);
+            barra.setValue(t.getPorcentaje());
+            barra.setString(formatearBytes(t.getTransferidos()) + " / " + formatearBytes(t.getTamaño()));
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            etiqueta.setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+            return this;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package cliente;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+// Recepción de los mensajes de la sala actual por multicast cuando el servidor lo ofrece
+// (MULTICAST:sala|grupo|puerto|época). Tras unirse al grupo se confirma con /multicast y el
+// servidor deja de mandar esos mensajes por TCP a partir de la secuencia de MULTICAST_OK.
+//
+// Los datagramas se entregan en orden de secuencia: los que llegan adelantados esperan a que se
+// rellene el hueco, que se pide por TCP con /reparar; los latidos del servidor revelan las
+// pérdidas del final. Si el servidor ya no guarda algún mensaje (PERDIDOS:) se avisa y se sigue.
+//
+// La interfaz de red es la de la conexión TCP (en una sola máquina, la de loopback) salvo que se
+// indique con -Dchat.cliente.multicastInterfaz; -Dchat.cliente.multicast=false lo desactiva.
+final class ReceptorMulticast {
+
+    private static final int MAX_DATAGRAMA = 65536;
+    // Mensajes adelantados que se guardan como mucho mientras se espera una reparación
+    private static final int MAX_PENDIENTES = 4096;
+    // Si una reparación no llega en este tiempo se vuelve a pedir con el siguiente latido
+    private static final long MS_REPETIR_REPARACION = 2000;
+    // Marca de un mensaje que el servidor ya no guarda (se compara por identidad)
+    private static final String PERDIDO = new String("");
+
+    // Estado de la sala recibida por multicast
+    private static final class Flujo {
+        private final String sala;
+        private final long epoca;
+        private final TreeMap<Long, String> pendientes = new TreeMap<>();
+        private boolean confirmado;
+        private long esperado;
+        private long pedidoHasta;
+        private long msPedido;
+
+        private Flujo(String sala, long epoca) {
+            this.sala = sala;
+            this.epoca = epoca;
+        }
+    }
+
+    private final InetAddress direccionLocal;
+    private final Consumer<String> entregar;
+    private final Consumer<String> enviarComando;
+    private DatagramChannel canal;
+    private int puerto;
+    private MembershipKey membresia;
+    private Flujo flujo;
+
+    // direccionLocal es la de la conexión TCP; entregar recibe los mensajes para mostrar y
+    // enviarComando manda comandos al servidor por la conexión TCP
+    ReceptorMulticast(InetAddress direccionLocal, Consumer<String> entregar, Consumer<String> enviarComando) {
+        this.direccionLocal = direccionLocal;
+        this.entregar = entregar;
+        this.enviarComando = enviarComando;
+    }
+
+    static boolean activado() {
+        return Boolean.parseBoolean(System.getProperty("chat.cliente.multicast", "true"));
+    }
+
+    // Método para atender el anuncio de una sala: unirse a su grupo y confirmarlo al servidor.
+    // Si no se puede (sin multicast en la red o en la interfaz) la sala sigue llegando por TCP
+    synchronized void anunciado(String sala, String grupo, int puertoGrupo, long epoca) {
+        flujo = null;
+        try {
+            InetAddress direccionGrupo = InetAddress.getByName(grupo);
+            NetworkInterface interfaz = interfaz();
+            if (interfaz == null || !direccionGrupo.isMulticastAddress()) {
+                return;
+            }
+            if (canal == null || puerto != puertoGrupo) {
+                cerrar();
+                abrir(puertoGrupo);
+            }
+            if (membresia == null || !membresia.group().equals(direccionGrupo)) {
+                if (membresia != null) {
+                    membresia.drop();
+                }
+                membresia = canal.join(direccionGrupo, interfaz);
+            }
+            flujo = new Flujo(sala, epoca);
+            enviarComando.accept("/multicast " + sala);
+        } catch (IOException e) {
+            // Se sigue recibiendo la sala por TCP
+            cerrar();
+        }
+    }
+
+    // El servidor ya no manda la sala por TCP después de la secuencia indicada
+    synchronized void confirmado(String sala, long secuencia) {
+        if (flujo == null || !flujo.sala.equals(sala)) {
+            return;
+        }
+        flujo.confirmado = true;
+        flujo.esperado = secuencia + 1;
+        flujo.pedidoHasta = secuencia;
+        flujo.pendientes.headMap(flujo.esperado).clear();
+        entregarContiguos();
+    }
+
+    // Mensaje reenviado por TCP tras pedir un hueco
+    synchronized void reparado(String sala, long secuencia, String texto) {
+        if (flujo != null && flujo.sala.equals(sala)) {
+            recibir(secuencia, texto);
+        }
+    }
+
+    // Mensajes que el servidor ya no guarda: se saltan con un aviso
+    synchronized void perdidos(String sala, long desde, long hasta) {
+        if (flujo == null || !flujo.sala.equals(sala) || !flujo.confirmado || hasta < flujo.esperado) {
+            return;
+        }
+        // Se marcan en su lugar por si aún faltan mensajes anteriores al tramo
+        for (long secuencia = Math.max(desde, flujo.esperado); secuencia <= hasta && flujo.pendientes.size() < MAX_PENDIENTES; secuencia++) {
+            flujo.pendientes.putIfAbsent(secuencia, PERDIDO);
+        }
+        entregarContiguos();
+    }
+
+    // Método para dejar de entregar la sala (cambio de sala o sesión nueva) hasta el próximo anuncio
+    synchronized void reiniciar() {
+        flujo = null;
+    }
+
+    // Método para cerrar el canal y abandonar el grupo
+    synchronized void cerrar() {
+        flujo = null;
+        membresia = null;
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Ya no se usa
+            }
+            canal = null;
+        }
+    }
+
+    private NetworkInterface interfaz() throws SocketException {
+        String nombre = System.getProperty("chat.cliente.multicastInterfaz");
+        if (nombre != null) {
+            return NetworkInterface.getByName(nombre);
+        }
+        return NetworkInterface.getByInetAddress(direccionLocal);
+    }
+
+    private void abrir(int puertoGrupo) throws IOException {
+        DatagramChannel nuevo = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            // Varios clientes en la misma máquina comparten el puerto del grupo
+            nuevo.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            nuevo.bind(new InetSocketAddress(puertoGrupo));
+        } catch (IOException e) {
+            nuevo.close();
+            throw e;
+        }
+        canal = nuevo;
+        puerto = puertoGrupo;
+        Thread hilo = new Thread(() -> recibirDatagramas(nuevo), "receptor-multicast");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    private void recibirDatagramas(DatagramChannel origen) {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAMA);
+        try {
+            while (true) {
+                buffer.clear();
+                origen.receive(buffer);
+                buffer.flip();
+                procesar(StandardCharsets.UTF_8.decode(buffer).toString());
+            }
+        } catch (ClosedChannelException e) {
+            // Cierre normal
+        } catch (IOException e) {
+            synchronized (this) {
+                if (canal == origen) {
+                    cerrar();
+                }
+            }
+        }
+    }
+
+    // M|época|sala|secuencia|texto o L|época|sala|secuencia
+    private synchronized void procesar(String datagrama) {
+        String[] partes = datagrama.split("\\|", 5);
+        if (flujo == null || partes.length < 4 || !partes[2].equals(flujo.sala)) {
+            return;
+        }
+        try {
+            if (Long.parseLong(partes[1]) != flujo.epoca) {
+                return;
+            }
+            long secuencia = Long.parseLong(partes[3]);
+            if (partes[0].equals("M") && partes.length == 5) {
+                recibir(secuencia, partes[4]);
+            } else if (partes[0].equals("L")) {
+                latido(secuencia);
+            }
+        } catch (NumberFormatException e) {
+            // Datagrama ajeno al chat en el mismo grupo
+        }
+    }
+
+    private void recibir(long secuencia, String texto) {
+        if (!flujo.confirmado) {
+            // Hasta la confirmación no se sabe desde dónde entregar: se guardan por si hacen falta
+            if (flujo.pendientes.size() < MAX_PENDIENTES) {
+                flujo.pendientes.put(secuencia, texto);
+            }
+            return;
+        }
+        if (secuencia < flujo.esperado) {
+            return;
+        }
+        flujo.pendientes.put(secuencia, texto);
+        // Si el hueco no se rellena y se acumula demasiado, se da por perdido
+        if (flujo.pendientes.size() > MAX_PENDIENTES) {
+            long siguiente = flujo.pendientes.firstKey();
+            avisarPerdidos(siguiente - flujo.esperado);
+            flujo.esperado = siguiente;
+        }
+        entregarContiguos();
+        if (!flujo.pendientes.isEmpty()) {
+            pedirHasta(flujo.pendientes.firstKey() - 1);
+        }
+    }
+
+    private void latido(long ultima) {
+        if (!flujo.confirmado || ultima < flujo.esperado) {
+            return;
+        }
+        // Repetir la petición si la anterior no se respondió a tiempo
+        if (flujo.pedidoHasta >= flujo.esperado && System.currentTimeMillis() - flujo.msPedido > MS_REPETIR_REPARACION) {
+            flujo.pedidoHasta = flujo.esperado - 1;
+        }
+        // Hasta la última secuencia, aunque el tramo incluya alguno ya recibido adelantado
+        pedirHasta(ultima);
+    }
+
+    private void pedirHasta(long hasta) {
+        long desde = Math.max(flujo.esperado, flujo.pedidoHasta + 1);
+        if (hasta < desde) {
+            return;
+        }
+        flujo.pedidoHasta = hasta;
+        flujo.msPedido = System.currentTimeMillis();
+        enviarComando.accept("/reparar " + flujo.sala + " " + desde + " " + hasta);
+    }
+
+    private void entregarContiguos() {
+        flujo.pendientes.headMap(flujo.esperado).clear();
+        int perdidos = 0;
+        String texto;
+        while ((texto = flujo.pendientes.remove(flujo.esperado)) != null) {
+            flujo.esperado++;
+            if (texto == PERDIDO) {
+                perdidos++;
+                continue;
+            }
+            if (perdidos > 0) {
+                avisarPerdidos(perdidos);
+                perdidos = 0;
+            }
+            entregar.accept(texto);
+        }
+        if (perdidos > 0) {
+            avisarPerdidos(perdidos);
+        }
+    }
+
+    private void avisarPerdidos(long cantidad) {
+        entregar.accept("Aviso: Se perdieron " + cantidad + " mensajes de la sala " + flujo.sala + ".");
+    }
+}
@@ -0,0 +1,101 @@
+package cliente;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.List;
+
+// Vista de mensajes virtualizada: una JList de altura de fila fija sobre un ModeloMensajes
+// acotado, de modo que sólo se dibujan las filas visibles y añadir un mensaje cuesta lo mismo
+// al principio que al final de la jornada. Sustituye al JTextArea que crecía sin límite.
+public class VistaMensajes extends JScrollPane {
+
+    // Máximo de mensajes que se conservan en la vista (configurable con -Dchat.cliente.maxMensajes)
+    private static final int MAX_MENSAJES = Integer.getInteger("chat.cliente.maxMensajes", 2000);
+
+    private static final Color COLOR_PRIVADO = new Color(0, 70, 160);
+
+    private final ModeloMensajes modelo = new ModeloMensajes(MAX_MENSAJES);
+    private final JList<ModeloMensajes.Linea> lista = new JList<>(modelo);
+
+    public VistaMensajes() {
+        setViewportView(lista);
+        setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
+        setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+
+        // Altura fija: la lista no necesita medir cada fila para calcular su tamaño
+        lista.setFixedCellHeight(lista.getFontMetrics(lista.getFont()).getHeight() + 2);
+        lista.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, false);
+                if (!isSelected && value instanceof ModeloMensajes.Linea && ((ModeloMensajes.Linea) value).privado) {
+                    setForeground(COLOR_PRIVADO);
+                }
+                return this;
+            }
+        });
+
+        // Volver a partir las líneas cuando cambia el ancho de la vista
+        getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                actualizarAncho();
+            }
+        });
+    }
+
+    private void actualizarAncho() {
+        Insets margen = lista.getInsets();
+        // Descontar el margen interno del renderizador
+        int ancho = getViewport().getExtentSize().width - margen.left - margen.right - 6;
+        if (ancho > 0) {
+            boolean alFinal = estaAlFinal();
+            modelo.setAncho(ancho, lista.getFontMetrics(lista.getFont()));
+            if (alFinal) {
+                desplazarAlFinal();
+            }
+        }
+    }
+
+    // Método para agregar mensajes (debe llamarse desde el hilo de eventos de Swing)
+    public void agregar(List<String> mensajes) {
+        boolean alFinal = estaAlFinal();
+        modelo.agregar(mensajes);
+        // Sólo seguir los mensajes nuevos si el usuario no se ha desplazado hacia arriba
+        if (alFinal) {
+            desplazarAlFinal();
+        }
+    }
+
+    public void agregar(String mensaje) {
+        agregar(java.util.Collections.singletonList(mensaje));
+    }
+
+    // Método para agregar mensajes antes de los que ya se muestran (debe llamarse desde el hilo de eventos)
+    public void agregarAlPrincipio(List<String> mensajes) {
+        boolean alFinal = estaAlFinal();
+        modelo.agregarAlPrincipio(mensajes);
+        if (alFinal) {
+            desplazarAlFinal();
+        }
+    }
+
+    // Método para vaciar la vista (p. ej. al cambiar de sala)
+    public void limpiar() {
+        modelo.limpiar();
+    }
+
+    private boolean estaAlFinal() {
+        JScrollBar barra = getVerticalScrollBar();
+        return barra.getValue() + barra.getVisibleAmount() >= barra.getMaximum() - lista.getFixedCellHeight();
+    }
+
+    private void desplazarAlFinal() {
+        int ultima = modelo.getSize() - 1;
+        if (ultima >= 0) {
+            lista.ensureIndexIsVisible(ultima);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package comun;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+// Conexión TLS sobre un socket normal usando SSLEngine, compartida por el servidor y el cliente.
+// Expone flujos de entrada y salida bloqueantes para que encaje con el resto del código sin
+// hilos adicionales: el handshake se hace en el hilo que abre la conexión, la lectura y la
+// escritura cifran con sus propios buffers (sólo hay un hilo en cada sentido) y las lecturas y
+// escrituras grandes se descifran y cifran directamente sobre el arreglo del llamador.
+//
+// Las sesiones se guardan en la caché del SSLContext, así que las conexiones siguientes al
+// mismo servidor (p. ej. los sockets de archivos) se reanudan sin handshake completo. Para
+// aprovecharlo hay que usar un único SSLContext por proceso.
+public final class CanalTLS implements Closeable {
+
+    private static final ByteBuffer VACIO = ByteBuffer.allocate(0);
+
+    private final Socket socket;
+    private final SSLEngine motor;
+    private final InputStream entradaRed;
+    private final OutputStream salidaRed;
+
+    // Buffers de lectura (se usan sólo bajo el cerrojo de lectura)
+    private ByteBuffer redEntrante;
+    private ByteBuffer aplicacionEntrante;
+    // Buffer de escritura (se usa sólo bajo el cerrojo de escritura)
+    private ByteBuffer redSaliente;
+
+    private final Object cerrojoLectura = new Object();
+    private final Object cerrojoEscritura = new Object();
+    private boolean finEntrada;
+    private boolean reanudada;
+    private long nanosHandshake;
+
+    private final InputStream entrada = new Entrada();
+    private final OutputStream salida = new Salida();
+
+    private CanalTLS(Socket socket, SSLEngine motor) throws IOException {
+        this.socket = socket;
+        this.motor = motor;
+        this.entradaRed = socket.getInputStream();
+        this.salidaRed = socket.getOutputStream();
+        SSLSession sesion = motor.getSession();
+        redEntrante = ByteBuffer.allocate(sesion.getPacketBufferSize());
+        aplicacionEntrante = ByteBuffer.allocate(sesion.getApplicationBufferSize());
+        redSaliente = ByteBuffer.allocate(sesion.getPacketBufferSize());
+    }
+
+    // Método para aceptar una conexión TLS en el servidor (hace el handshake)
+    public static CanalTLS servidor(Socket socket, SSLContext contexto) throws IOException {
+        SSLEngine motor = contexto.createSSLEngine();
+        motor.setUseClientMode(false);
+        return abrir(socket, motor);
+    }
+
+    // Método para abrir una conexión TLS desde el cliente; el host y el puerto identifican la
+    // sesión que se intenta reanudar
+    public static CanalTLS cliente(Socket socket, SSLContext contexto, String host, int puerto) throws IOException {
+        SSLEngine motor = contexto.createSSLEngine(host, puerto);
+        motor.setUseClientMode(true);
+        SSLParameters parametros = motor.getSSLParameters();
+        parametros.setEndpointIdentificationAlgorithm("HTTPS");
+        motor.setSSLParameters(parametros);
+        return abrir(socket, motor);
+    }
+
+    private static CanalTLS abrir(Socket socket, SSLEngine motor) throws IOException {
+        CanalTLS canal = new CanalTLS(socket, motor);
+        try {
+            canal.handshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return canal;
+    }
+
+    // Método para crear un contexto TLS. El almacén de claves (PKCS12 o JKS) es obligatorio en el
+    // servidor; el de confianza es opcional (si falta se usan las CA de la JVM).
+    public static SSLContext crearContexto(Path almacen, char[] clave, Path confianza, char[] claveConfianza,
+                                           int tamañoCache, int segundosSesion) throws IOException {
+        try {
+            KeyManager[] claves = null;
+            if (almacen != null) {
+                KeyManagerFactory fabrica = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                fabrica.init(cargarAlmacen(almacen, clave), clave);
+                claves = fabrica.getKeyManagers();
+            }
+            TrustManager[] confiables = null;
+            if (confianza != null) {
+                TrustManagerFactory fabrica = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                fabrica.init(cargarAlmacen(confianza, claveConfianza));
+                confiables = fabrica.getTrustManagers();
+            }
+            SSLContext contexto = SSLContext.getInstance("TLS");
+            contexto.init(claves, confiables, null);
+            for (SSLSessionContext sesiones : new SSLSessionContext[] {contexto.getServerSessionContext(), contexto.getClientSessionContext()}) {
+                sesiones.setSessionCacheSize(tamañoCache);
+                sesiones.setSessionTimeout(segundosSesion);
+            }
+            return contexto;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo configurar TLS: " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore cargarAlmacen(Path ruta, char[] clave) throws IOException, GeneralSecurityException {
+        if (!Files.isRegularFile(ruta)) {
+            throw new FileNotFoundException("No existe el almacén " + ruta);
+        }
+        return KeyStore.getInstance(ruta.toFile(), clave);
+    }
+
+    public InputStream getEntrada() {
+        return entrada;
+    }
+
+    public OutputStream getSalida() {
+        return salida;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // true si la sesión se reanudó de la caché en lugar de hacer un handshake completo
+    public boolean isReanudada() {
+        return reanudada;
+    }
+
+    public long getNanosHandshake() {
+        return nanosHandshake;
+    }
+
+    public String getProtocolo() {
+        return motor.getSession().getProtocol();
+    }
+
+    // Método para cerrar enviando el aviso de cierre TLS (sin esperar la respuesta)
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (cerrojoEscritura) {
+                motor.closeOutbound();
+                while (!motor.isOutboundDone()) {
+                    redSaliente.clear();
+                    SSLEngineResult resultado = motor.wrap(VACIO, redSaliente);
+                    if (resultado.bytesProduced() == 0) {
+                        break;
+                    }
+                    enviarRed();
+                }
+            }
+        } catch (IOException e) {
+            // El otro extremo ya cerró: no hay a quién avisar
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Método para completar el handshake antes de empezar a intercambiar datos
+    private void handshake() throws IOException {
+        long inicio = System.nanoTime();
+        long inicioMs = System.currentTimeMillis();
+        motor.beginHandshake();
+        SSLEngineResult.HandshakeStatus estado = motor.getHandshakeStatus();
+        while (estado != SSLEngineResult.HandshakeStatus.FINISHED
+               && estado != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (estado) {
+                case NEED_WRAP:
+                    synchronized (cerrojoEscritura) {
+                        estado = envolverControl();
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    synchronized (cerrojoLectura) {
+                        estado = desenvolver();
+                        if (finEntrada) {
+                            throw new EOFException("Conexión cerrada durante el handshake TLS");
+                        }
+                    }
+                    break;
+                case NEED_TASK:
+                    ejecutarTareas();
+                    estado = motor.getHandshakeStatus();
+                    break;
+                default:
+                    estado = motor.getHandshakeStatus();
+            }
+        }
+        nanosHandshake = System.nanoTime() - inicio;
+        // Una sesión reanudada conserva la fecha de creación de la original
+        reanudada = motor.getSession().getCreationTime() < inicioMs;
+    }
+
+    private void ejecutarTareas() {
+        Runnable tarea;
+        while ((tarea = motor.getDelegatedTask()) != null) {
+            tarea.run();
+        }
+    }
+
+    // Método para producir y enviar un mensaje de control (handshake, tickets, actualización de claves)
+    private SSLEngineResult.HandshakeStatus envolverControl() throws IOException {
+        redSaliente.clear();
+        SSLEngineResult resultado = motor.wrap(VACIO, redSaliente);
+        if (resultado.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            redSaliente = ByteBuffer.allocate(motor.getSession().getPacketBufferSize());
+            return motor.getHandshakeStatus();
+        }
+        if (resultado.getStatus() == SSLEngineResult.Status.CLOSED && resultado.bytesProduced() == 0) {
+            throw new SSLException("Conexión TLS cerrada");
+        }
+        enviarRed();
+        return resultado.getHandshakeStatus();
+    }
+
+    private void enviarRed() throws IOException {
+        salidaRed.write(redSaliente.array(), 0, redSaliente.position());
+        salidaRed.flush();
+    }
+
+    // Método para descifrar el siguiente registro en aplicacionEntrante (o en destino si cabe
+    // directamente); lee más bytes de la red cuando hace falta
+    private SSLEngineResult.HandshakeStatus desenvolver() throws IOException {
+        return desenvolver(aplicacionEntrante);
+    }
+
+    private SSLEngineResult.HandshakeStatus desenvolver(ByteBuffer destino) throws IOException {
+        while (true) {
+            redEntrante.flip();
+            SSLEngineResult resultado;
+            try {
+                resultado = motor.unwrap(redEntrante, destino);
+            } finally {
+                redEntrante.compact();
+            }
+            switch (resultado.getStatus()) {
+                case OK:
+                    return resultado.getHandshakeStatus();
+                case CLOSED:
+                    finEntrada = true;
+                    return resultado.getHandshakeStatus();
+                case BUFFER_OVERFLOW:
+                    if (destino != aplicacionEntrante) {
+                        // No cabe en el arreglo del llamador: usar el buffer propio
+                        destino = aplicacionEntrante;
+                    } else {
+                        aplicacionEntrante = ampliar(aplicacionEntrante, motor.getSession().getApplicationBufferSize());
+                        destino = aplicacionEntrante;
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (redEntrante.remaining() == 0) {
+                        redEntrante = ampliar(redEntrante, motor.getSession().getPacketBufferSize());
+                    }
+                    int leidos = entradaRed.read(redEntrante.array(), redEntrante.arrayOffset() + redEntrante.position(),
+                                                 redEntrante.remaining());
+                    if (leidos < 0) {
+                        finEntrada = true;
+                        try {
+                            motor.closeInbound();
+                        } catch (SSLException e) {
+                            // Cierre sin aviso TLS: se trata como fin de la conexión
+                        }
+                        return motor.getHandshakeStatus();
+                    }
+                    redEntrante.position(redEntrante.position() + leidos);
+                    break;
+                default:
+                    throw new SSLException("Estado TLS inesperado: " + resultado.getStatus());
+            }
+        }
+    }
+
+    private static ByteBuffer ampliar(ByteBuffer buffer, int minimo) {
+        ByteBuffer mayor = ByteBuffer.allocate(Math.max(minimo, buffer.capacity() * 2));
+        buffer.flip();
+        mayor.put(buffer);
+        return mayor;
+    }
+
+    // Método para atender lo que pide el motor tras descifrar (tickets de sesión, actualización de claves)
+    private void atender(SSLEngineResult.HandshakeStatus estado) throws IOException {
+        while (true) {
+            if (estado == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                ejecutarTareas();
+                estado = motor.getHandshakeStatus();
+            } else if (estado == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                synchronized (cerrojoEscritura) {
+                    estado = envolverControl();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Flujo de entrada: entrega los datos descifrados
+    private final class Entrada extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] uno = new byte[1];
+            int leidos = read(uno, 0, 1);
+            return leidos < 0 ? -1 : uno[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int desde, int longitud) throws IOException {
+            if (longitud == 0) {
+                return 0;
+            }
+            synchronized (cerrojoLectura) {
+                while (true) {
+                    if (aplicacionEntrante.position() > 0) {
+                        aplicacionEntrante.flip();
+                        int n = Math.min(longitud, aplicacionEntrante.remaining());
+                        aplicacionEntrante.get(b, desde, n);
+                        aplicacionEntrante.compact();
+                        return n;
+                    }
+                    if (finEntrada) {
+                        return -1;
+                    }
+                    // Si el arreglo del llamador admite un registro entero, descifrar directamente en él
+                    ByteBuffer destino = longitud >= motor.getSession().getApplicationBufferSize()
+                        ? ByteBuffer.wrap(b, desde, longitud) : aplicacionEntrante;
+                    atender(desenvolver(destino));
+                    if (destino != aplicacionEntrante && destino.position() > desde) {
+                        return destino.position() - desde;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (cerrojoLectura) {
+                return aplicacionEntrante.position();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            CanalTLS.this.close();
+        }
+    }
+
+    // Flujo de salida: cifra y envía un registro por cada bloque de hasta 16 KB
+    private final class Salida extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int desde, int longitud) throws IOException {
+            ByteBuffer origen = ByteBuffer.wrap(b, desde, longitud);
+            synchronized (cerrojoEscritura) {
+                while (origen.hasRemaining()) {
+                    redSaliente.clear();
+                    SSLEngineResult resultado = motor.wrap(origen, redSaliente);
+                    switch (resultado.getStatus()) {
+                        case OK:
+                            enviarRed();
+                            break;
+                        case BUFFER_OVERFLOW:
+                            redSaliente = ByteBuffer.allocate(motor.getSession().getPacketBufferSize());
+                            break;
+                        default:
+                            throw new SSLException("Conexión TLS cerrada");
+                    }
+                    if (resultado.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        ejecutarTareas();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            CanalTLS.this.close();
+        }
+    }
+}
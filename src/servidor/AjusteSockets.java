@@ -0,0 +1,178 @@
+package servidor;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Opciones de socket del servidor con dos perfiles: las conexiones de chat priorizan la latencia
+// (TCP_NODELAY, líneas cortas que no deben esperar a juntarse con otras) y las de archivos el
+// rendimiento, con un ajuste por transferencia según lo que se mide en sus primeros bloques.
+//
+// Una transferencia empieza con bloques de chat.transferencias.bloqueInicial y mide el rendimiento
+// en ventanas de chat.transferencias.bytesVentana bytes; mientras un bloque mayor (la siguiente
+// clase de PoolBuffers) mejore el rendimiento se sigue subiendo. Al terminar la medición se estima
+// el producto ancho de banda por retardo con el RTT del usuario (medido con PING/PONG en su
+// conexión de chat) y, si el buffer del socket es menor que el doble, se amplía dentro de los
+// límites configurados. Los buffers sólo se amplían: el sistema ya los ajusta por su cuenta y
+// fijarlos por debajo de lo que eligió sólo reduciría la ventana.
+//
+// Configuración:
+//   chat.sockets.chatSinRetraso           TCP_NODELAY en las conexiones de chat (true)
+//   chat.sockets.chatBufferEnvio          SO_SNDBUF de las conexiones de chat; 0 deja el del sistema (0)
+//   chat.sockets.chatBufferRecepcion      SO_RCVBUF de las conexiones de chat; 0 deja el del sistema (0)
+//   chat.transferencias.bloqueInicial     bytes por lectura o escritura al empezar (4096)
+//   chat.transferencias.bloqueMax         bytes por lectura o escritura como máximo (65536)
+//   chat.transferencias.bytesVentana      bytes por ventana de medición (262144)
+//   chat.transferencias.bufferSocketMin   buffer de socket mínimo tras medir (65536)
+//   chat.transferencias.bufferSocketMax   buffer de socket máximo; 0 desactiva el ajuste (4194304)
+//   chat.transferencias.msRttSupuesto     RTT supuesto si el usuario aún no tiene uno medido (1)
+final class AjusteSockets {
+
+    private static final boolean CHAT_SIN_RETRASO = Configuracion.booleano("sockets.chatSinRetraso", true);
+    private static final int CHAT_BUFFER_ENVIO = Configuracion.entero("sockets.chatBufferEnvio", 0);
+    private static final int CHAT_BUFFER_RECEPCION = Configuracion.entero("sockets.chatBufferRecepcion", 0);
+
+    private static final int BLOQUE_MAX = Math.max(PoolBuffers.PEQUEÑO, Configuracion.entero("transferencias.bloqueMax", PoolBuffers.GRANDE));
+    private static final int BLOQUE_INICIAL = Math.min(BLOQUE_MAX, Math.max(512, Configuracion.entero("transferencias.bloqueInicial", 4096)));
+    private static final long BYTES_VENTANA = Math.max(BLOQUE_MAX, Configuracion.largo("transferencias.bytesVentana", 256 * 1024));
+    private static final int BUFFER_SOCKET_MIN = Configuracion.entero("transferencias.bufferSocketMin", 64 * 1024);
+    private static final int BUFFER_SOCKET_MAX = Configuracion.entero("transferencias.bufferSocketMax", 4 * 1024 * 1024);
+    private static final long NANOS_RTT_SUPUESTO = TimeUnit.MILLISECONDS.toNanos(Configuracion.largo("transferencias.msRttSupuesto", 1));
+
+    // Un bloque mayor se conserva sólo si mejora el rendimiento al menos este factor
+    private static final double MEJORA_MINIMA = 1.05;
+
+    private static final LongAdder medidas = Metricas.contador("transferencias.medidas");
+    private static final LongAdder bloquesAmpliados = Metricas.contador("transferencias.bloques_ampliados");
+    private static final LongAdder buffersAmpliados = Metricas.contador("transferencias.buffers_socket_ampliados");
+    private static final LongAdder erroresOpciones = Metricas.contador("sockets.errores_opciones");
+    private static final AtomicLong ultimoKbps = new AtomicLong();
+    private static final AtomicLong ultimoBloque = new AtomicLong();
+    private static final AtomicLong ultimoBufferSocket = new AtomicLong();
+
+    static {
+        Metricas.indicador("transferencias.ultimo_kbps", ultimoKbps::get);
+        Metricas.indicador("transferencias.ultimo_bloque", ultimoBloque::get);
+        Metricas.indicador("transferencias.ultimo_buffer_socket", ultimoBufferSocket::get);
+    }
+
+    private final Socket socket;
+    private final boolean envio;
+    private final long nanosRtt;
+    private final int bloqueMax;
+    private int bloque;
+    private long inicioVentana = System.nanoTime();
+    private long bytesVentana;
+    // Mejor rendimiento medido (bytes por nanosegundo) y el bloque con el que se obtuvo
+    private double mejorTasa;
+    private int mejorBloque;
+    private boolean terminado;
+
+    private AjusteSockets(Socket socket, boolean envio, long nanosRtt, int bloqueFijo) {
+        this.socket = socket;
+        this.envio = envio;
+        this.nanosRtt = nanosRtt > 0 ? nanosRtt : NANOS_RTT_SUPUESTO;
+        this.bloque = bloqueFijo > 0 ? bloqueFijo : BLOQUE_INICIAL;
+        this.bloqueMax = bloqueFijo > 0 ? bloqueFijo : BLOQUE_MAX;
+    }
+
+    // Método para aplicar el perfil de latencia a una conexión de chat recién aceptada
+    static void configurarChat(Socket socket) {
+        try {
+            socket.setTcpNoDelay(CHAT_SIN_RETRASO);
+            if (CHAT_BUFFER_ENVIO > 0) {
+                socket.setSendBufferSize(CHAT_BUFFER_ENVIO);
+            }
+            if (CHAT_BUFFER_RECEPCION > 0) {
+                socket.setReceiveBufferSize(CHAT_BUFFER_RECEPCION);
+            }
+        } catch (SocketException e) {
+            erroresOpciones.increment();
+            Registro.muestreado("sockets.error_opciones", "perfil", "chat", "error", e.getMessage());
+        }
+    }
+
+    // Ajuste para una transferencia; envio indica si el servidor escribe (descarga del cliente) o
+    // lee (carga), nanosRtt es el RTT medido del usuario (0 si no se conoce) y bloqueFijo, si es
+    // mayor que 0, fija el tamaño del bloque (con TLS, que necesita bloques de un registro completo)
+    static AjusteSockets paraTransferencia(Socket socket, boolean envio, long nanosRtt, int bloqueFijo) {
+        return new AjusteSockets(socket, envio, nanosRtt, bloqueFijo);
+    }
+
+    // Bytes que conviene leer o escribir en cada llamada
+    int bloque() {
+        return bloque;
+    }
+
+    // Método para registrar los bytes movidos en un bloque; durante la medición puede cambiar bloque()
+    void registrar(int bytes) {
+        if (terminado || bytes <= 0) {
+            return;
+        }
+        bytesVentana += bytes;
+        if (bytesVentana < BYTES_VENTANA) {
+            return;
+        }
+        long ahora = System.nanoTime();
+        double tasa = (double) bytesVentana / Math.max(1, ahora - inicioVentana);
+        if (tasa > mejorTasa * MEJORA_MINIMA) {
+            mejorTasa = tasa;
+            mejorBloque = bloque;
+            if (bloque < bloqueMax) {
+                // Probar la siguiente clase de tamaño en una ventana nueva
+                bloque = Math.min(bloqueMax, bloque * 4);
+                bytesVentana = 0;
+                inicioVentana = ahora;
+                return;
+            }
+        }
+        terminar();
+    }
+
+    private void terminar() {
+        terminado = true;
+        bloque = mejorBloque;
+        medidas.increment();
+        if (bloque > BLOQUE_INICIAL) {
+            bloquesAmpliados.increment();
+        }
+        long kbps = (long) (mejorTasa * 1e9 / 1024);
+        int buffer = ajustarBufferSocket();
+        ultimoKbps.set(kbps);
+        ultimoBloque.set(bloque);
+        ultimoBufferSocket.set(buffer);
+        Registro.depuracion("transferencia.ajuste", "sentido", envio ? "envio" : "recepcion", "kbps", kbps,
+                            "usRtt", TimeUnit.NANOSECONDS.toMicros(nanosRtt), "bloque", bloque, "bufferSocket", buffer);
+    }
+
+    // Amplía el buffer del socket hasta el doble del producto ancho de banda por retardo;
+    // devuelve el tamaño que queda
+    private int ajustarBufferSocket() {
+        try {
+            int actual = envio ? socket.getSendBufferSize() : socket.getReceiveBufferSize();
+            if (BUFFER_SOCKET_MAX <= 0) {
+                return actual;
+            }
+            long productoRetardo = (long) (mejorTasa * nanosRtt);
+            int objetivo = (int) Math.min(BUFFER_SOCKET_MAX, Math.max(BUFFER_SOCKET_MIN, 2 * productoRetardo));
+            if (objetivo <= actual) {
+                return actual;
+            }
+            if (envio) {
+                socket.setSendBufferSize(objetivo);
+                actual = socket.getSendBufferSize();
+            } else {
+                socket.setReceiveBufferSize(objetivo);
+                actual = socket.getReceiveBufferSize();
+            }
+            buffersAmpliados.increment();
+            return actual;
+        } catch (SocketException e) {
+            erroresOpciones.increment();
+            Registro.muestreado("sockets.error_opciones", "perfil", "archivos", "error", e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package servidor;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Cola de salida de una conexión. Los hilos que difunden mensajes sólo encolan; un hilo
+// escritor por conexión es el único que se bloquea en el socket. Así un cliente que deja de
+// leer no detiene a los demás, y el servidor puede medir su atraso y actuar en consecuencia.
+//
+// Los mensajes se codifican en un buffer de PoolBuffers que sólo se retiene mientras hay algo
+// que escribir: una conexión ociosa no ocupa memoria de E/S.
+//
+// Configuración:
+//   chat.salida.umbralRetraso   mensajes en cola para considerar la conexión retrasada (256)
+//   chat.salida.maxCola         mensajes en cola para considerarla muerta (8192)
+//   chat.salida.msRetraso       ms sin progreso con datos pendientes para marcarla retrasada (2000)
+//   chat.salida.msMuerta        ms sin progreso con datos pendientes para expulsarla (30000)
+public class ColaSalida {
+
+    public enum Estado { SANA, RETRASADA, MUERTA }
+
+    // Clase de mensaje, para decidir qué se puede degradar cuando la conexión va atrasada
+    public enum Clase { CONTROL, CHAT, PRESENCIA }
+
+    private static final int UMBRAL_RETRASO = Configuracion.entero("salida.umbralRetraso", 256);
+    private static final int MAX_COLA = Configuracion.entero("salida.maxCola", 8192);
+    private static final long NANOS_RETRASO = TimeUnit.MILLISECONDS.toNanos(Configuracion.largo("salida.msRetraso", 2000));
+    private static final long NANOS_MUERTA = TimeUnit.MILLISECONDS.toNanos(Configuracion.largo("salida.msMuerta", 30000));
+
+    // Tiempo máximo para vaciar la cola al cerrar antes de forzar el cierre del socket
+    private static final long MS_CIERRE = 2000;
+
+    private static final LongAdder mensajesEscritos = Metricas.contador("salida.mensajes");
+    private static final LongAdder presenciaDescartada = Metricas.contador("salida.presencia_descartada");
+    private static final LongAdder chatResumido = Metricas.contador("salida.chat_resumido");
+
+    private static final ScheduledExecutorService cierres = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "salida-cierres");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    private static final byte[] SALTO = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+    private final Socket socket;
+    private final OutputStream salida;
+    private final CharsetEncoder codificador = Charset.defaultCharset().newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Buffer prestado mientras hay mensajes por escribir; sólo lo usa el hilo escritor
+    private ByteBuffer buffer;
+    private final Thread hilo;
+    private final ConcurrentLinkedQueue<String> cola = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendientes = new AtomicInteger();
+    private volatile long ultimoProgreso = System.nanoTime();
+    private volatile boolean esperando;
+    private volatile boolean cerrando;
+
+    // Mensajes de chat omitidos por sala mientras la conexión estaba retrasada
+    private final Map<String, AtomicInteger> chatOmitido = new ConcurrentHashMap<>();
+    private final AtomicBoolean presenciaOmitida = new AtomicBoolean();
+    private volatile Runnable alRecuperarse;
+
+    public ColaSalida(Socket socket, String nombre) throws IOException {
+        this(socket, socket.getOutputStream(), nombre);
+    }
+
+    // Constructor para escribir en un flujo propio sobre el socket (p. ej. cifrado con TLS)
+    public ColaSalida(Socket socket, OutputStream salida, String nombre) {
+        this.socket = socket;
+        this.salida = salida;
+        this.hilo = new Thread(this::escribir, "salida-" + nombre);
+        this.hilo.setDaemon(true);
+        this.hilo.start();
+    }
+
+    // Acción a ejecutar cuando la conexión se pone al día tras haber descartado presencia
+    public void setAlRecuperarse(Runnable alRecuperarse) {
+        this.alRecuperarse = alRecuperarse;
+    }
+
+    // Método para encolar un mensaje de control (siempre se entrega)
+    public void encolar(String mensaje) {
+        encolar(mensaje, Clase.CONTROL, null);
+    }
+
+    // Método para encolar un mensaje aplicando la entrega degradada si la conexión va atrasada
+    public void encolar(String mensaje, Clase clase, String sala) {
+        if (cerrando) {
+            return;
+        }
+        if (clase != Clase.CONTROL && getEstado() != Estado.SANA) {
+            if (clase == Clase.PRESENCIA) {
+                presenciaOmitida.set(true);
+                presenciaDescartada.increment();
+            } else {
+                chatOmitido.computeIfAbsent(sala != null ? sala : "", s -> new AtomicInteger()).incrementAndGet();
+                chatResumido.increment();
+            }
+            return;
+        }
+
+        // Si la cola estaba vacía el reloj de progreso empieza ahora
+        if (pendientes.getAndIncrement() == 0) {
+            ultimoProgreso = System.nanoTime();
+        }
+        cola.offer(mensaje);
+        if (esperando) {
+            LockSupport.unpark(hilo);
+        }
+    }
+
+    // Método para clasificar la conexión según su atraso y el tiempo sin progreso
+    public Estado getEstado() {
+        int enCola = pendientes.get();
+        if (enCola == 0) {
+            return Estado.SANA;
+        }
+        long sinProgreso = System.nanoTime() - ultimoProgreso;
+        if (enCola > MAX_COLA || sinProgreso > NANOS_MUERTA) {
+            return Estado.MUERTA;
+        }
+        if (enCola > UMBRAL_RETRASO || sinProgreso > NANOS_RETRASO) {
+            return Estado.RETRASADA;
+        }
+        return Estado.SANA;
+    }
+
+    public int getPendientes() {
+        return pendientes.get();
+    }
+
+    // Milisegundos sin progreso con datos pendientes (0 si la cola está vacía)
+    public long getMsSinProgreso() {
+        return pendientes.get() == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ultimoProgreso);
+    }
+
+    // Método para cerrar la cola; si vaciar es true se intenta entregar lo pendiente
+    public void cerrar(boolean vaciar) {
+        if (cerrando) {
+            return;
+        }
+        if (!vaciar) {
+            cola.clear();
+            pendientes.set(0);
+        }
+        cerrando = true;
+        LockSupport.unpark(hilo);
+
+        // Si el cliente no lee, el escritor puede quedarse bloqueado: forzar el cierre
+        cierres.schedule(this::cerrarSocket, vaciar ? MS_CIERRE : 0, TimeUnit.MILLISECONDS);
+    }
+
+    // Bucle del hilo escritor
+    private void escribir() {
+        try {
+            while (true) {
+                String mensaje = cola.poll();
+                if (mensaje == null) {
+                    vaciar();
+                    ultimoProgreso = System.nanoTime();
+                    if (escribirResumenes()) {
+                        continue;
+                    }
+                    if (cerrando) {
+                        break;
+                    }
+                    Runnable recuperacion = alRecuperarse;
+                    if (recuperacion != null && presenciaOmitida.getAndSet(false)) {
+                        recuperacion.run();
+                        continue;
+                    }
+                    esperando = true;
+                    if (cola.isEmpty() && !cerrando) {
+                        // Sin nada que escribir el buffer vuelve a la reserva hasta el próximo mensaje
+                        PoolBuffers.COMPARTIDO.soltar(buffer);
+                        buffer = null;
+                        LockSupport.park(this);
+                    }
+                    esperando = false;
+                    continue;
+                }
+
+                pendientes.decrementAndGet();
+                escribirLinea(mensaje);
+                mensajesEscritos.increment();
+                ultimoProgreso = System.nanoTime();
+            }
+        } catch (IOException e) {
+            Registro.depuracion("salida.error", "hilo", hilo.getName(), "error", e.getMessage());
+        } finally {
+            cola.clear();
+            pendientes.set(0);
+            PoolBuffers.COMPARTIDO.soltar(buffer);
+            buffer = null;
+            cerrarSocket();
+        }
+    }
+
+    // Método para codificar un mensaje y su salto de línea en el buffer, enviándolo cuando se llena
+    private void escribirLinea(String mensaje) throws IOException {
+        if (buffer == null) {
+            buffer = PoolBuffers.COMPARTIDO.tomar(PoolBuffers.MEDIANO);
+        }
+        CharBuffer caracteres = CharBuffer.wrap(mensaje);
+        while (codificador.encode(caracteres, buffer, true) == CoderResult.OVERFLOW) {
+            enviarBuffer();
+        }
+        codificador.reset();
+        if (buffer.remaining() < SALTO.length) {
+            enviarBuffer();
+        }
+        buffer.put(SALTO);
+    }
+
+    private void enviarBuffer() throws IOException {
+        if (buffer != null && buffer.position() > 0) {
+            salida.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.clear();
+        }
+    }
+
+    private void vaciar() throws IOException {
+        enviarBuffer();
+        salida.flush();
+    }
+
+    // Método para resumir el chat omitido una vez que la conexión se pone al día
+    private boolean escribirResumenes() throws IOException {
+        if (chatOmitido.isEmpty()) {
+            return false;
+        }
+        for (String sala : chatOmitido.keySet()) {
+            int omitidos = chatOmitido.remove(sala).get();
+            String prefijo = sala.isEmpty() ? "" : "[" + sala + "] ";
+            escribirLinea(prefijo + "SERVER: Se omitieron " + omitidos + " mensajes porque tu conexión iba lenta.");
+        }
+        vaciar();
+        return true;
+    }
+
+    private void cerrarSocket() {
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // El socket ya no es utilizable
+        }
+    }
+}
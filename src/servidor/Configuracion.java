@@ -0,0 +1,74 @@
+package servidor;
+
+import java.io.*;
+import java.util.Properties;
+
+// Configuración del servidor. Cada valor se busca primero como propiedad del sistema
+// (-Dchat.clave=valor) y después en el archivo servidor.properties del directorio de trabajo.
+public final class Configuracion {
+
+    private static final String PREFIJO = "chat.";
+    private static final Properties archivo = new Properties();
+
+    static {
+        File propiedades = new File(System.getProperty(PREFIJO + "config", "servidor.properties"));
+        if (propiedades.isFile()) {
+            try (InputStream is = new FileInputStream(propiedades)) {
+                archivo.load(is);
+            } catch (IOException e) {
+                System.err.println("No se pudo leer " + propiedades + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Configuracion() {
+    }
+
+    // Método para obtener un valor de texto
+    public static String texto(String clave, String porDefecto) {
+        String valor = System.getProperty(PREFIJO + clave);
+        if (valor == null) {
+            valor = archivo.getProperty(PREFIJO + clave);
+        }
+        return valor != null ? valor.trim() : porDefecto;
+    }
+
+    // Método para obtener un valor entero
+    public static int entero(String clave, int porDefecto) {
+        return (int) largo(clave, porDefecto);
+    }
+
+    // Método para obtener un valor entero largo
+    public static long largo(String clave, long porDefecto) {
+        String valor = texto(clave, null);
+        if (valor == null) {
+            return porDefecto;
+        }
+        try {
+            return Long.parseLong(valor);
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para " + PREFIJO + clave + ": " + valor);
+            return porDefecto;
+        }
+    }
+
+    // Método para obtener un valor decimal
+    public static double decimal(String clave, double porDefecto) {
+        String valor = texto(clave, null);
+        if (valor == null) {
+            return porDefecto;
+        }
+        try {
+            return Double.parseDouble(valor);
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para " + PREFIJO + clave + ": " + valor);
+            return porDefecto;
+        }
+    }
+
+    // Método para obtener un valor booleano
+    public static boolean booleano(String clave, boolean porDefecto) {
+        String valor = texto(clave, null);
+        return valor != null ? Boolean.parseBoolean(valor) : porDefecto;
+    }
+}
@@ -0,0 +1,128 @@
+package servidor;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// Conjunto de identificadores enteros densos guardado como mapa de bits: un bit por usuario en
+// lugar de una entrada con su nombre. Lo usan las salas para sus miembros; difundir un mensaje
+// es recorrer las palabras de 64 bits y tomar cada manejador del arreglo por su identificador,
+// sin hashing de cadenas ni boxing.
+//
+// Igual que el CopyOnWriteArraySet al que sustituye, cada modificación publica una copia nueva,
+// así que los recorridos no necesitan bloqueo y siempre ven un estado completo.
+final class ConjuntoIds {
+
+    private static final long[] VACIO = new long[0];
+
+    private volatile long[] palabras = VACIO;
+    private volatile int tamaño;
+
+    // Método para añadir un identificador; devuelve false si ya estaba
+    synchronized boolean agregar(int id) {
+        int indice = id >>> 6;
+        long[] actuales = palabras;
+        if (indice < actuales.length && (actuales[indice] & (1L << id)) != 0) {
+            return false;
+        }
+        long[] nuevas = Arrays.copyOf(actuales, Math.max(actuales.length, indice + 1));
+        nuevas[indice] |= 1L << id;
+        palabras = nuevas;
+        tamaño++;
+        return true;
+    }
+
+    // Método para añadir varios identificadores con una sola copia
+    synchronized void agregarTodos(int[] ids, int cantidad) {
+        if (cantidad <= 0) {
+            return;
+        }
+        long[] actuales = palabras;
+        int maximo = -1;
+        for (int i = 0; i < cantidad; i++) {
+            maximo = Math.max(maximo, ids[i]);
+        }
+        long[] nuevas = Arrays.copyOf(actuales, Math.max(actuales.length, (maximo >>> 6) + 1));
+        int agregados = 0;
+        for (int i = 0; i < cantidad; i++) {
+            int indice = ids[i] >>> 6;
+            if ((nuevas[indice] & (1L << ids[i])) == 0) {
+                nuevas[indice] |= 1L << ids[i];
+                agregados++;
+            }
+        }
+        palabras = nuevas;
+        tamaño += agregados;
+    }
+
+    // Método para quitar un identificador; devuelve false si no estaba
+    synchronized boolean quitar(int id) {
+        int indice = id >>> 6;
+        long[] actuales = palabras;
+        if (indice >= actuales.length || (actuales[indice] & (1L << id)) == 0) {
+            return false;
+        }
+        // Recortar las palabras vacías del final para que el recorrido no pase por ellas
+        long[] nuevas = actuales.clone();
+        nuevas[indice] &= ~(1L << id);
+        int longitud = nuevas.length;
+        while (longitud > 0 && nuevas[longitud - 1] == 0) {
+            longitud--;
+        }
+        palabras = longitud == nuevas.length ? nuevas : Arrays.copyOf(nuevas, longitud);
+        tamaño--;
+        return true;
+    }
+
+    boolean contiene(int id) {
+        long[] actuales = palabras;
+        int indice = id >>> 6;
+        return indice < actuales.length && (actuales[indice] & (1L << id)) != 0;
+    }
+
+    int tamaño() {
+        return tamaño;
+    }
+
+    // Identificadores que caben en las palabras actuales; ningún miembro tiene uno mayor o igual
+    int capacidad() {
+        return palabras.length << 6;
+    }
+
+    // Primer identificador del conjunto mayor o igual que desde, o -1 si no hay; sirve de cursor
+    // para recorrer el conjunto por páginas aunque cambie entre una página y la siguiente
+    int siguiente(int desde) {
+        long[] actuales = palabras;
+        int inicio = Math.max(0, desde);
+        int indice = inicio >>> 6;
+        if (indice >= actuales.length) {
+            return -1;
+        }
+        long palabra = actuales[indice] & (-1L << inicio);
+        while (true) {
+            if (palabra != 0) {
+                return (indice << 6) + Long.numberOfTrailingZeros(palabra);
+            }
+            if (++indice == actuales.length) {
+                return -1;
+            }
+            palabra = actuales[indice];
+        }
+    }
+
+    // Instantánea de las palabras para recorrerlas en bucles críticos; no debe modificarse
+    long[] palabras() {
+        return palabras;
+    }
+
+    // Método para recorrer los identificadores en orden ascendente
+    void paraCada(IntConsumer accion) {
+        long[] actuales = palabras;
+        for (int i = 0; i < actuales.length; i++) {
+            long palabra = actuales[i];
+            while (palabra != 0) {
+                accion.accept((i << 6) + Long.numberOfTrailingZeros(palabra));
+                palabra &= palabra - 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Control de admisión del directorio temp/, donde esperan los archivos hasta que sus receptores
+// los descargan. Cada /archivo reserva su tamaño anunciado antes de aceptarse y se rechaza si no
+// cabe en el presupuesto (o el disco no tiene sitio). Los archivos cargados más antiguos que aún
+// no se entregaron pueden ceder su sitio, pero sólo se desalojan cuando la carga nueva se
+// confirma: un anuncio que nunca llega a cargarse no borra nada. Las cargas simultáneas también
+// están limitadas: las que sobran esperan turno en lugar de escribir todas a la vez.
+//
+// Configuración:
+//   chat.temp.maxBytes       presupuesto total de temp/ (1 GB)
+//   chat.temp.maxCargas      cargas simultáneas (8)
+//   chat.temp.msEsperaCarga  espera máxima por un turno de carga (30000)
+//   chat.temp.desalojar      desalojar archivos antiguos para admitir nuevos (true)
+final class CuotaTemporal {
+
+    // Espacio de una transferencia: primero reservado y, una vez cargado el archivo, en disco
+    final class Reserva {
+        private final long bytes;
+        private final AtomicBoolean liberada = new AtomicBoolean();
+        private Runnable desalojar;
+
+        private Reserva(long bytes) {
+            this.bytes = bytes;
+        }
+
+        // Método para pasar la reserva a archivo en disco; desalojar purga la transferencia. Si
+        // hace falta sitio se desalojan los archivos más antiguos, ya fuera del monitor
+        void confirmar(Runnable desalojar) {
+            List<Reserva> desalojadas;
+            synchronized (CuotaTemporal.this) {
+                if (liberada.get()) {
+                    return;
+                }
+                this.desalojar = desalojar;
+                bytesReservados -= bytes;
+                desalojadas = elegirDesalojos(bytes);
+                bytesEnDisco += bytes;
+                enDisco.addLast(this);
+            }
+            for (Reserva desalojada : desalojadas) {
+                purgar(desalojada);
+            }
+        }
+
+        // Método para devolver el espacio; se puede llamar más de una vez
+        void liberar() {
+            if (!liberada.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (CuotaTemporal.this) {
+                if (desalojar != null) {
+                    bytesEnDisco -= bytes;
+                    enDisco.remove(this);
+                } else {
+                    bytesReservados -= bytes;
+                }
+            }
+        }
+    }
+
+    private final Path directorio;
+    private final long maxBytes = Configuracion.largo("temp.maxBytes", 1L << 30);
+    private final long msEsperaCarga = Configuracion.largo("temp.msEsperaCarga", 30000);
+    private final boolean permitirDesalojo = Configuracion.booleano("temp.desalojar", true);
+    private final Semaphore turnosCarga = new Semaphore(Configuracion.entero("temp.maxCargas", 8), true);
+    // Archivos cargados por orden de carga: el primero es el candidato a desalojar
+    private final ArrayDeque<Reserva> enDisco = new ArrayDeque<>();
+    private long bytesReservados;
+    private long bytesEnDisco;
+
+    CuotaTemporal(Path directorio) {
+        this.directorio = directorio;
+        Metricas.indicador("temp.bytes_max", () -> maxBytes);
+        Metricas.indicador("temp.bytes_en_disco", this::getBytesEnDisco);
+        Metricas.indicador("temp.bytes_reservados", this::getBytesReservados);
+        Metricas.indicador("temp.archivos", this::getArchivos);
+        Metricas.indicador("temp.cargas_esperando", turnosCarga::getQueueLength);
+    }
+
+    // Método para reservar espacio para un archivo anunciado; devuelve null si no cabe
+    synchronized Reserva reservar(long bytes) {
+        if (bytes < 0 || bytes > maxBytes) {
+            Metricas.incrementar("temp.rechazos");
+            return null;
+        }
+        // Los archivos en disco que se pueden desalojar no cuentan aquí: ceden su sitio al confirmar
+        long ocupados = permitirDesalojo ? bytesReservados : bytesReservados + bytesEnDisco;
+        if (ocupados + bytes > maxBytes || !cabeEnDisco(bytes)) {
+            Metricas.incrementar("temp.rechazos");
+            Registro.aviso("temp.rechazo", "bytes", bytes, "enDisco", bytesEnDisco, "reservados", bytesReservados);
+            return null;
+        }
+        bytesReservados += bytes;
+        return new Reserva(bytes);
+    }
+
+    // Método para contabilizar un archivo que ya estaba en disco (p. ej. restaurado tras un reinicio)
+    Reserva registrarExistente(long bytes, Runnable desalojar) {
+        Reserva reserva = new Reserva(bytes);
+        synchronized (this) {
+            bytesReservados += bytes;
+        }
+        reserva.confirmar(desalojar);
+        return reserva;
+    }
+
+    // Método para esperar un turno de carga; devuelve false si no llegó a tiempo
+    boolean iniciarCarga() throws InterruptedException {
+        if (turnosCarga.tryAcquire()) {
+            return true;
+        }
+        Metricas.incrementar("temp.cargas_en_espera");
+        return turnosCarga.tryAcquire(msEsperaCarga, TimeUnit.MILLISECONDS);
+    }
+
+    void terminarCarga() {
+        turnosCarga.release();
+    }
+
+    synchronized long getBytesEnDisco() {
+        return bytesEnDisco;
+    }
+
+    synchronized long getBytesReservados() {
+        return bytesReservados;
+    }
+
+    synchronized long getArchivos() {
+        return enDisco.size();
+    }
+
+    // Se llama con el monitor tomado: saca de la cuenta los archivos más antiguos hasta que quepan
+    // bytes más en disco y los devuelve para purgarlos después de soltar el monitor. Sólo cuentan
+    // los archivos cargados; las reservas pendientes no obligan a desalojar nada
+    private List<Reserva> elegirDesalojos(long bytes) {
+        List<Reserva> desalojadas = new ArrayList<>();
+        while (bytesEnDisco + bytes > maxBytes && permitirDesalojo && !enDisco.isEmpty()) {
+            Reserva antigua = enDisco.pollFirst();
+            // Marcada como liberada para que la purga no vuelva a descontarla
+            if (antigua.liberada.compareAndSet(false, true)) {
+                bytesEnDisco -= antigua.bytes;
+                desalojadas.add(antigua);
+            }
+        }
+        return desalojadas;
+    }
+
+    // Purga de un archivo desalojado (borrado y limpieza de sus descargas), sin el monitor tomado
+    private void purgar(Reserva desalojada) {
+        Registro.info("temp.desalojo", "bytes", desalojada.bytes, "enDisco", getBytesEnDisco());
+        Metricas.incrementar("temp.desalojados");
+        Metricas.sumar("temp.bytes_desalojados", desalojada.bytes);
+        desalojada.desalojar.run();
+    }
+
+    // Las reservas aún no escritas también cuentan contra el espacio libre real del disco
+    private boolean cabeEnDisco(long bytes) {
+        try {
+            Path existente = Files.isDirectory(directorio) ? directorio : directorio.toAbsolutePath().getParent();
+            return Files.getFileStore(existente).getUsableSpace() - bytesReservados >= bytes;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
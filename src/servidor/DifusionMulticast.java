@@ -0,0 +1,281 @@
+package servidor;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Difusión de los mensajes de sala por multicast UDP para redes locales: cada mensaje sale una
+// sola vez hacia el grupo de la sala en lugar de una vez por miembro por TCP. Los clientes que se
+// unen al grupo lo confirman con /multicast y dejan de recibir esos mensajes por TCP; los demás
+// (otra red, multicast bloqueado, TLS) siguen como siempre.
+//
+// Cada datagrama lleva la época del servidor y un número de secuencia por sala:
+//
+//   M|época|sala|secuencia|texto      mensaje
+//   L|época|sala|secuencia            latido con la última secuencia, para detectar pérdidas al final
+//
+// Los clientes entregan en orden y piden por TCP los huecos (/reparar sala desde hasta); el
+// servidor guarda los últimos mensajes de cada sala para responder con REPARACION: y avisa con
+// PERDIDOS: de los que ya no tiene. El multicast no va cifrado, por eso no se usa con TLS.
+//
+// Configuración:
+//   chat.multicast.activo        activar la difusión multicast (false)
+//   chat.multicast.grupo         grupo base; la sala n usa la dirección base + n, con acarreo (239.255.77.0)
+//   chat.multicast.grupos        grupos disponibles desde el base; las salas que no caben siguen por TCP (4096)
+//   chat.multicast.puerto        puerto de los grupos (puerto del chat + 2)
+//   chat.multicast.interfaz      interfaz de salida, p. ej. "lo" para probar en una sola máquina (la del sistema)
+//   chat.multicast.ttl           saltos permitidos (1: sólo la red local)
+//   chat.multicast.recientes     mensajes por sala guardados para reparar huecos (1024)
+//   chat.multicast.maxDatagrama  bytes por datagrama; los mensajes mayores van por TCP (1400)
+//   chat.multicast.msLatido      intervalo de los latidos (1000)
+final class DifusionMulticast {
+
+    static final String PREFIJO_ANUNCIO = "MULTICAST:";
+    static final String PREFIJO_CONFIRMACION = "MULTICAST_OK:";
+    static final String PREFIJO_REPARACION = "REPARACION:";
+    static final String PREFIJO_PERDIDOS = "PERDIDOS:";
+
+    private static final LongAdder datagramas = Metricas.contador("multicast.datagramas");
+    private static final LongAdder bytes = Metricas.contador("multicast.bytes");
+    private static final LongAdder enviosAhorrados = Metricas.contador("multicast.envios_tcp_ahorrados");
+    private static final LongAdder reparados = Metricas.contador("multicast.reparados");
+    private static final LongAdder perdidos = Metricas.contador("multicast.perdidos");
+
+    // Estado de una sala: sus receptores multicast, la última secuencia y los mensajes recientes;
+    // grupo es null si la sala no cabe en el rango de grupos y entonces va siempre por TCP
+    final class Canal {
+        private final String sala;
+        private final InetSocketAddress grupo;
+        private final ConjuntoIds receptores = new ConjuntoIds();
+        private final String[] recientes = new String[numeroRecientes];
+        private long secuencia;
+
+        private Canal(String sala, int idSala) {
+            this.sala = sala;
+            InetAddress destino = direccionGrupo(idSala);
+            this.grupo = destino != null ? new InetSocketAddress(destino, puerto) : null;
+            if (destino == null) {
+                Metricas.incrementar("multicast.salas_sin_grupo");
+                Registro.aviso("multicast.sin_grupo", "sala", sala, "idSala", idSala, "grupos", numeroGrupos);
+            }
+        }
+    }
+
+    private final DatagramChannel canal;
+    private final InetAddress grupoBase;
+    private final int puerto;
+    private final int numeroGrupos = Math.max(1, Configuracion.entero("multicast.grupos", 4096));
+    private final int numeroRecientes = Math.max(1, Configuracion.entero("multicast.recientes", 1024));
+    private final int maxDatagrama = Configuracion.entero("multicast.maxDatagrama", 1400);
+    private final long epoca = System.currentTimeMillis();
+    private final Map<String, Canal> canales = new ConcurrentHashMap<>();
+
+    private DifusionMulticast(DatagramChannel canal, InetAddress grupoBase, int puerto) {
+        this.canal = canal;
+        this.grupoBase = grupoBase;
+        this.puerto = puerto;
+        Metricas.indicador("multicast.receptores", this::getReceptores);
+    }
+
+    // Método para abrir la difusión si está configurada; devuelve null si está desactivada o no se
+    // pudo preparar (entonces todo sigue por TCP)
+    static DifusionMulticast crear(int puertoChat, boolean conTLS) {
+        if (!Configuracion.booleano("multicast.activo", false)) {
+            return null;
+        }
+        if (conTLS) {
+            Registro.aviso("multicast.desactivado", "motivo", "tls");
+            return null;
+        }
+        String nombreInterfaz = Configuracion.texto("multicast.interfaz", "");
+        int puerto = Configuracion.entero("multicast.puerto", puertoChat + 2);
+        DatagramChannel canal = null;
+        try {
+            InetAddress grupoBase = InetAddress.getByName(Configuracion.texto("multicast.grupo", "239.255.77.0"));
+            if (!(grupoBase instanceof Inet4Address) || !grupoBase.isMulticastAddress()) {
+                throw new IOException("El grupo base no es una dirección multicast IPv4: " + grupoBase.getHostAddress());
+            }
+            canal = DatagramChannel.open(StandardProtocolFamily.INET);
+            canal.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Configuracion.entero("multicast.ttl", 1));
+            canal.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            if (!nombreInterfaz.isEmpty()) {
+                NetworkInterface salida = NetworkInterface.getByName(nombreInterfaz);
+                if (salida == null) {
+                    throw new IOException("No existe la interfaz " + nombreInterfaz);
+                }
+                canal.setOption(StandardSocketOptions.IP_MULTICAST_IF, salida);
+            }
+            Registro.info("multicast.activo", "grupo", grupoBase.getHostAddress(), "puerto", puerto,
+                          "interfaz", nombreInterfaz.isEmpty() ? "sistema" : nombreInterfaz);
+            return new DifusionMulticast(canal, grupoBase, puerto);
+        } catch (IOException e) {
+            Registro.error("multicast.error_inicio", e);
+            if (canal != null) {
+                try {
+                    canal.close();
+                } catch (IOException ignorada) {
+                }
+            }
+            return null;
+        }
+    }
+
+    // Método para programar los latidos de los canales con receptores
+    void iniciar(RuedaTemporizadores rueda) {
+        long msLatido = Math.max(100, Configuracion.largo("multicast.msLatido", 1000));
+        rueda.programar(msLatido, new Runnable() {
+            @Override
+            public void run() {
+                for (Canal c : canales.values()) {
+                    latir(c);
+                }
+                rueda.programar(msLatido, this);
+            }
+        });
+    }
+
+    // Anuncio para un cliente que entra en la sala: MULTICAST:sala|grupo|puerto|época, o null si la
+    // sala no tiene grupo
+    String anuncio(String sala, int idSala) {
+        Canal c = canal(sala, idSala);
+        if (c.grupo == null) {
+            return null;
+        }
+        return PREFIJO_ANUNCIO + sala + "|" + c.grupo.getAddress().getHostAddress() + "|" + puerto + "|" + epoca;
+    }
+
+    // Método para pasar un miembro a multicast; devuelve la última secuencia que recibió por TCP,
+    // a partir de la cual debe tomar los datagramas, o -1 si la sala no tiene grupo
+    long confirmar(String sala, int idSala, int idUsuario) {
+        Canal c = canal(sala, idSala);
+        if (c.grupo == null) {
+            return -1;
+        }
+        synchronized (c) {
+            c.receptores.agregar(idUsuario);
+            return c.secuencia;
+        }
+    }
+
+    // Método para devolver a un miembro a TCP (sale de la sala o se desconecta)
+    void quitar(String sala, int idUsuario) {
+        Canal c = canales.get(sala);
+        if (c != null) {
+            synchronized (c) {
+                c.receptores.quitar(idUsuario);
+            }
+        }
+    }
+
+    // Método para difundir un mensaje de sala; devuelve los receptores que ya lo recibieron por
+    // multicast (los que hay que saltarse por TCP) o null si debe ir por TCP a todos
+    long[] difundir(String sala, String texto) {
+        Canal c = canales.get(sala);
+        if (c == null || c.receptores.tamaño() == 0) {
+            return null;
+        }
+        synchronized (c) {
+            long[] receptores = c.receptores.palabras();
+            if (receptores.length == 0) {
+                return null;
+            }
+            long siguiente = c.secuencia + 1;
+            byte[] datos = ("M|" + epoca + "|" + sala + "|" + siguiente + "|" + texto).getBytes(StandardCharsets.UTF_8);
+            if (datos.length > maxDatagrama) {
+                Metricas.incrementar("multicast.demasiado_grandes");
+                return null;
+            }
+            try {
+                canal.send(ByteBuffer.wrap(datos), c.grupo);
+            } catch (IOException e) {
+                // Sin avanzar la secuencia: los receptores no verán ningún hueco y el mensaje va por TCP
+                Registro.muestreado("multicast.error_envio", "sala", sala, "error", e.getMessage());
+                Metricas.incrementar("multicast.errores_envio");
+                return null;
+            }
+            c.secuencia = siguiente;
+            c.recientes[(int) (siguiente % c.recientes.length)] = texto;
+            datagramas.increment();
+            bytes.add(datos.length);
+            enviosAhorrados.add(c.receptores.tamaño());
+            return receptores;
+        }
+    }
+
+    // Método para responder a /reparar con los mensajes que aún se guardan y avisar de los demás
+    void reparar(String sala, long desde, long hasta, Consumer<String> responder) {
+        Canal c = canales.get(sala);
+        if (c == null) {
+            return;
+        }
+        synchronized (c) {
+            long fin = Math.min(hasta, c.secuencia);
+            if (fin < desde) {
+                return;
+            }
+            // Sólo se guardan los últimos mensajes: los anteriores se dan por perdidos
+            long inicio = Math.max(desde, c.secuencia - c.recientes.length + 1);
+            if (inicio > desde) {
+                long ultimoPerdido = Math.min(inicio - 1, fin);
+                perdidos.add(ultimoPerdido - desde + 1);
+                responder.accept(PREFIJO_PERDIDOS + sala + "|" + desde + "|" + ultimoPerdido);
+            }
+            for (long secuencia = inicio; secuencia <= fin; secuencia++) {
+                responder.accept(PREFIJO_REPARACION + sala + "|" + secuencia + "|" + c.recientes[(int) (secuencia % c.recientes.length)]);
+                reparados.increment();
+            }
+        }
+    }
+
+    private Canal canal(String sala, int idSala) {
+        return canales.computeIfAbsent(sala, s -> new Canal(s, idSala));
+    }
+
+    // Dirección del grupo de una sala: el base más idSala como entero de 32 bits, de modo que el
+    // acarreo pasa a los octetos superiores; null si se sale del rango configurado o del de multicast
+    private InetAddress direccionGrupo(int idSala) {
+        if (idSala < 0 || idSala >= numeroGrupos) {
+            return null;
+        }
+        long direccion = (ByteBuffer.wrap(grupoBase.getAddress()).getInt() & 0xFFFFFFFFL) + idSala;
+        // 224.0.0.0/4
+        if ((direccion >>> 28) != 0xE) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt((int) direccion).array());
+        } catch (UnknownHostException e) {
+            // Imposible con cuatro bytes
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void latir(Canal c) {
+        byte[] datos;
+        synchronized (c) {
+            if (c.receptores.tamaño() == 0 || c.secuencia == 0) {
+                return;
+            }
+            datos = ("L|" + epoca + "|" + c.sala + "|" + c.secuencia).getBytes(StandardCharsets.UTF_8);
+        }
+        try {
+            canal.send(ByteBuffer.wrap(datos), c.grupo);
+        } catch (IOException e) {
+            Registro.muestreado("multicast.error_envio", "sala", c.sala, "error", e.getMessage());
+        }
+    }
+
+    private long getReceptores() {
+        long total = 0;
+        for (Canal c : canales.values()) {
+            total += c.receptores.tamaño();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,978 @@
+package servidor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Historial de las salas con búsqueda de texto completo (comando /buscar).
+//
+// Los hilos que difunden un mensaje sólo lo encolan (sin bloqueos, como Registro); un hilo
+// indexador lo añade al final del registro salas.log y a un índice invertido en memoria:
+// por cada término de cada sala, las posiciones en el registro de los mensajes que lo contienen.
+// Cuando el índice en memoria llega a su límite se vuelca a un segmento inmutable en disco y
+// los segmentos de un mismo nivel se fusionan en uno del nivel siguiente, así que la memoria
+// queda acotada y el número de segmentos crece sólo de forma logarítmica. Las búsquedas
+// consultan los segmentos del más nuevo al más antiguo hasta completar la página pedida y sólo
+// leen del registro las líneas que se muestran.
+//
+// Segmento: "SEGH" | versión | nivel | desde | hasta | nº términos | inicio del diccionario |
+//           listas de posiciones (cantidad y diferencias en longitud variable) |
+//           diccionario ordenado (término UTF-8 y posición de su lista)
+// La lista de segmentos vigentes se guarda en el archivo "segmentos"; al arrancar se cargan y
+// se indexa sólo la parte del registro posterior al último.
+//
+// Configuración:
+//   chat.historial.directorio     directorio del registro y los segmentos (historial)
+//   chat.historial.cola           mensajes en espera de indexar antes de descartar (16384)
+//   chat.historial.maxMemoria     entradas (término, mensaje) en memoria antes de volcar (200000)
+//   chat.historial.factorFusion   segmentos de un mismo nivel que se fusionan (4)
+//   chat.historial.tamañoPagina   resultados por página de /buscar (10)
+//   chat.historial.maxPaginas     páginas de /buscar que se pueden pedir (50)
+class HistorialSalas {
+
+    // Resultado de una búsqueda
+    static final class Resultado {
+        final long fecha;
+        final String remitente;
+        final String texto;
+
+        Resultado(long fecha, String remitente, String texto) {
+            this.fecha = fecha;
+            this.remitente = remitente;
+            this.texto = texto;
+        }
+    }
+
+    // Página de resultados, del más reciente al más antiguo
+    static final class Pagina {
+        final List<Resultado> resultados;
+        final boolean hayMas;
+
+        Pagina(List<Resultado> resultados, boolean hayMas) {
+            this.resultados = resultados;
+            this.hayMas = hayMas;
+        }
+    }
+
+    private static final int MAGICO = 0x53454748; // "SEGH"
+    private static final int VERSION = 1;
+    private static final int TAMAÑO_CABECERA = 36;
+
+    // Separa la sala del término: cada sala tiene su propio espacio de términos
+    private static final char SEPARADOR = '\u0000';
+
+    private static final int MAX_TERMINO = 40;
+    private static final int MAX_LOTE = 512;
+    // Cada cuántos términos del diccionario se guarda una muestra en memoria
+    private static final int INTERVALO_MUESTRA = 32;
+    // Términos como máximo en los que se expande el prefijo de la última palabra
+    private static final int MAX_EXPANSION = 1024;
+    // Los segmentos se leen proyectados en memoria: ninguna fusión produce uno mayor
+    private static final long MAX_BYTES_SEGMENTO = 1L << 30;
+
+    private final Path directorio;
+    private final Path registro;
+    private final Path manifiesto;
+    private final int capacidad = Configuracion.entero("historial.cola", 16384);
+    private final int maxMemoria = Configuracion.entero("historial.maxMemoria", 200000);
+    private final int factorFusion = Math.max(2, Configuracion.entero("historial.factorFusion", 4));
+    final int tamañoPagina = Math.max(1, Configuracion.entero("historial.tamañoPagina", 10));
+
+    // Cola sin bloqueos entre los hilos que difunden y el indexador
+    private final ConcurrentLinkedQueue<Entrada> cola = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger enEspera = new AtomicInteger();
+
+    // Estado del índice; las tres referencias se cambian juntas bajo el cerrojo
+    private final Object cerrojo = new Object();
+    private SegmentoMemoria memoria = new SegmentoMemoria();
+    private SegmentoMemoria congelado;
+    private List<SegmentoDisco> segmentos = Collections.emptyList();
+
+    private FileChannel canalEscritura;
+    private FileChannel canalLectura;
+    private long longitudRegistro;
+    private volatile boolean activo;
+    private volatile Thread indexador;
+    // El indexador lo activa antes de comprobar por última vez la cola y aparcarse
+    private volatile boolean esperando;
+
+    // Mensaje pendiente de registrar
+    private static final class Entrada {
+        final long fecha = System.currentTimeMillis();
+        final String sala;
+        final String remitente;
+        final String texto;
+
+        Entrada(String sala, String remitente, String texto) {
+            this.sala = sala;
+            this.remitente = remitente;
+            this.texto = texto;
+        }
+    }
+
+    HistorialSalas(Path directorio) {
+        this.directorio = directorio;
+        this.registro = directorio.resolve("salas.log");
+        this.manifiesto = directorio.resolve("segmentos");
+    }
+
+    // Método para abrir el registro y arrancar el indexador (la recuperación ocurre en segundo plano)
+    void iniciar() throws IOException {
+        Files.createDirectories(directorio);
+        canalEscritura = FileChannel.open(registro, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        canalLectura = FileChannel.open(registro, StandardOpenOption.READ);
+        longitudRegistro = canalEscritura.size();
+
+        Metricas.indicador("historial.pendientes", enEspera::get);
+        Metricas.indicador("historial.segmentos", () -> {
+            synchronized (cerrojo) {
+                return segmentos.size();
+            }
+        });
+        Metricas.indicador("historial.entradas_memoria", () -> {
+            synchronized (cerrojo) {
+                return memoria.getEntradas();
+            }
+        });
+
+        activo = true;
+        indexador = new Thread(this::indexar, "indexador-historial");
+        indexador.setDaemon(true);
+        indexador.start();
+    }
+
+    // Método para registrar un mensaje de sala; nunca bloquea: si el indexador no da abasto se descarta
+    void registrar(String sala, String remitente, String texto) {
+        if (!activo) {
+            return;
+        }
+        if (enEspera.incrementAndGet() > capacidad) {
+            enEspera.decrementAndGet();
+            Metricas.incrementar("historial.descartados");
+            return;
+        }
+        cola.offer(new Entrada(sala, remitente, texto));
+        // Se comprueba después de encolar: o el indexador ve el mensaje o aquí se ve que espera
+        if (esperando) {
+            LockSupport.unpark(indexador);
+        }
+    }
+
+    // Método para detener el indexador tras registrar lo pendiente y volcar la memoria a disco
+    void cerrar() {
+        if (!activo) {
+            return;
+        }
+        activo = false;
+        LockSupport.unpark(indexador);
+        try {
+            indexador.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            canalEscritura.close();
+            canalLectura.close();
+        } catch (IOException e) {
+            Registro.error("historial.error_cierre", e);
+        }
+    }
+
+    // Bucle del indexador: recupera el índice y después registra los mensajes por lotes
+    private void indexar() {
+        recuperar();
+        List<Entrada> lote = new ArrayList<>(MAX_LOTE);
+        while (true) {
+            Entrada entrada;
+            while (lote.size() < MAX_LOTE && (entrada = cola.poll()) != null) {
+                enEspera.decrementAndGet();
+                lote.add(entrada);
+            }
+            if (lote.isEmpty()) {
+                if (!activo) {
+                    break;
+                }
+                esperando = true;
+                if (cola.isEmpty() && activo) {
+                    LockSupport.park(this);
+                }
+                esperando = false;
+                continue;
+            }
+            try {
+                escribirLote(lote);
+                if (memoria.getEntradas() >= maxMemoria) {
+                    volcar();
+                }
+            } catch (IOException e) {
+                Registro.error("historial.error_indexado", e, "mensajes", lote.size());
+            }
+            lote.clear();
+        }
+        // Al cerrar, volcar lo que queda para no tener que reindexarlo al arrancar
+        try {
+            if (memoria.getEntradas() > 0) {
+                volcar();
+            }
+        } catch (IOException e) {
+            Registro.error("historial.error_volcado", e);
+        }
+    }
+
+    // Método para añadir un lote al registro y, una vez escrito, al índice en memoria
+    private void escribirLote(List<Entrada> lote) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lote.size() * 96);
+        long[] posiciones = new long[lote.size()];
+        for (int i = 0; i < lote.size(); i++) {
+            Entrada entrada = lote.get(i);
+            posiciones[i] = longitudRegistro + bytes.size();
+            String linea = entrada.fecha + "\t" + limpiar(entrada.sala) + "\t" + limpiar(entrada.remitente)
+                + "\t" + limpiar(entrada.texto) + "\n";
+            bytes.write(linea.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            canalEscritura.write(buffer);
+        }
+        longitudRegistro += bytes.size();
+
+        for (int i = 0; i < lote.size(); i++) {
+            Entrada entrada = lote.get(i);
+            memoria.agregar(posiciones[i], entrada.sala, terminosDe(entrada.remitente, entrada.texto));
+        }
+        memoria.setHasta(longitudRegistro);
+        Metricas.sumar("historial.indexados", lote.size());
+    }
+
+    private static String limpiar(String texto) {
+        return texto.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static Set<String> terminosDe(String remitente, String texto) {
+        Set<String> terminos = new HashSet<>(tokenizar(texto));
+        terminos.addAll(tokenizar(remitente));
+        return terminos;
+    }
+
+    // Método para partir un texto en términos: minúsculas, sin acentos, letras y dígitos
+    static List<String> tokenizar(String texto) {
+        String normalizado = Normalizer.normalize(texto.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        List<String> resultado = new ArrayList<>();
+        StringBuilder actual = new StringBuilder();
+        for (int i = 0; i <= normalizado.length(); i++) {
+            char c = i < normalizado.length() ? normalizado.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (actual.length() < MAX_TERMINO) {
+                    actual.append(c);
+                }
+            } else if (actual.length() > 0) {
+                resultado.add(actual.toString());
+                actual.setLength(0);
+            }
+        }
+        return resultado;
+    }
+
+    // Método para volcar el índice en memoria a un segmento de nivel 0 y fusionar si corresponde
+    private void volcar() throws IOException {
+        long inicio = System.nanoTime();
+        SegmentoMemoria aVolcar;
+        synchronized (cerrojo) {
+            // Mientras se escribe, las búsquedas siguen consultando el índice congelado
+            aVolcar = memoria;
+            congelado = aVolcar;
+            memoria = new SegmentoMemoria();
+            memoria.setDesde(aVolcar.getHasta());
+        }
+        SegmentoDisco nuevo = aVolcar.escribir(archivoSegmento(aVolcar.getHasta(), 0));
+        List<SegmentoDisco> vigentes;
+        synchronized (cerrojo) {
+            vigentes = new ArrayList<>(segmentos);
+            vigentes.add(nuevo);
+            segmentos = Collections.unmodifiableList(vigentes);
+            congelado = null;
+        }
+        guardarManifiesto(vigentes);
+        Metricas.incrementar("historial.volcados");
+        Registro.info("historial.volcado", "entradas", aVolcar.getEntradas(), "bytes", nuevo.getBytes(),
+                      "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+        fusionar();
+    }
+
+    // Método para fusionar los últimos segmentos mientras haya "factorFusion" seguidos del mismo nivel
+    private void fusionar() throws IOException {
+        while (true) {
+            List<SegmentoDisco> actuales;
+            synchronized (cerrojo) {
+                actuales = segmentos;
+            }
+            int n = actuales.size();
+            if (n < factorFusion) {
+                return;
+            }
+            List<SegmentoDisco> grupo = actuales.subList(n - factorFusion, n);
+            int nivel = grupo.get(0).nivel;
+            long bytes = 0;
+            for (SegmentoDisco segmento : grupo) {
+                if (segmento.nivel != nivel) {
+                    return;
+                }
+                bytes += segmento.getBytes();
+            }
+            if (bytes > MAX_BYTES_SEGMENTO) {
+                return;
+            }
+
+            long inicio = System.nanoTime();
+            SegmentoDisco fusionado = SegmentoDisco.fusionar(grupo, archivoSegmento(grupo.get(grupo.size() - 1).hasta, nivel + 1), nivel + 1);
+            List<SegmentoDisco> vigentes = new ArrayList<>(actuales.subList(0, n - factorFusion));
+            vigentes.add(fusionado);
+            synchronized (cerrojo) {
+                segmentos = Collections.unmodifiableList(vigentes);
+            }
+            guardarManifiesto(vigentes);
+            for (SegmentoDisco segmento : grupo) {
+                eliminar(segmento.archivo);
+            }
+            Metricas.incrementar("historial.fusiones");
+            Registro.info("historial.fusion", "nivel", nivel + 1, "segmentos", grupo.size(), "bytes", fusionado.getBytes(),
+                          "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+        }
+    }
+
+    private Path archivoSegmento(long hasta, int nivel) {
+        return directorio.resolve("seg-" + hasta + "-" + nivel + ".idx");
+    }
+
+    private static void eliminar(Path archivo) {
+        try {
+            Files.deleteIfExists(archivo);
+        } catch (IOException e) {
+            // En algunos sistemas no se puede borrar mientras está proyectado; se borra al arrancar
+            Registro.aviso("historial.error_borrado", "archivo", archivo, "error", e.getMessage());
+        }
+    }
+
+    // Método para guardar la lista de segmentos vigentes de forma atómica
+    private void guardarManifiesto(List<SegmentoDisco> vigentes) throws IOException {
+        StringBuilder contenido = new StringBuilder();
+        for (SegmentoDisco segmento : vigentes) {
+            contenido.append(segmento.archivo.getFileName()).append('\n');
+        }
+        Path temporal = directorio.resolve("segmentos.tmp");
+        Files.write(temporal, contenido.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporal, manifiesto, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Método para cargar los segmentos vigentes, borrar los sobrantes e indexar el final del registro
+    private void recuperar() {
+        long inicio = System.nanoTime();
+        List<SegmentoDisco> cargados = new ArrayList<>();
+        Set<Path> vigentes = new HashSet<>();
+        try {
+            if (Files.exists(manifiesto)) {
+                for (String nombre : Files.readAllLines(manifiesto, StandardCharsets.UTF_8)) {
+                    if (!nombre.isEmpty()) {
+                        Path archivo = directorio.resolve(nombre);
+                        cargados.add(SegmentoDisco.abrir(archivo));
+                        vigentes.add(archivo);
+                    }
+                }
+            }
+            long cubierto = cargados.isEmpty() ? 0 : cargados.get(cargados.size() - 1).hasta;
+            if (cubierto > longitudRegistro) {
+                throw new IOException("el registro es más corto que el índice");
+            }
+            synchronized (cerrojo) {
+                segmentos = Collections.unmodifiableList(cargados);
+                memoria.setDesde(cubierto);
+            }
+        } catch (IOException e) {
+            // Índice dañado o incompleto: se reconstruye desde el registro
+            Registro.aviso("historial.indice_invalido", "error", e.getMessage());
+            cargados.clear();
+            vigentes.clear();
+            synchronized (cerrojo) {
+                segmentos = Collections.emptyList();
+                memoria = new SegmentoMemoria();
+            }
+        }
+
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, "seg*")) {
+            for (Path archivo : archivos) {
+                if (!vigentes.contains(archivo) && !archivo.equals(manifiesto)) {
+                    eliminar(archivo);
+                }
+            }
+        } catch (IOException e) {
+            Registro.error("historial.error_limpieza", e);
+        }
+
+        long reindexados = 0;
+        try {
+            reindexados = reindexar(memoria.getDesde());
+        } catch (IOException e) {
+            Registro.error("historial.error_reindexado", e);
+        }
+        Registro.info("historial.recuperado", "segmentos", cargados.size(), "reindexados", reindexados,
+                      "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+    }
+
+    // Método para indexar los mensajes del registro a partir de una posición
+    private long reindexar(long desde) throws IOException {
+        long mensajes = 0;
+        try (FileChannel canal = FileChannel.open(registro, StandardOpenOption.READ);
+             InputStream is = new BufferedInputStream(Channels.newInputStream(canal.position(desde)), 64 * 1024)) {
+            ByteArrayOutputStream linea = new ByteArrayOutputStream(256);
+            long posicion = desde;
+            long inicioLinea = desde;
+            int b;
+            while (posicion < longitudRegistro && (b = is.read()) != -1) {
+                posicion++;
+                if (b != '\n') {
+                    linea.write(b);
+                    continue;
+                }
+                String[] campos = new String(linea.toByteArray(), StandardCharsets.UTF_8).split("\t", 4);
+                if (campos.length == 4) {
+                    memoria.agregar(inicioLinea, campos[1], terminosDe(campos[2], campos[3]));
+                    mensajes++;
+                    if (memoria.getEntradas() >= maxMemoria) {
+                        memoria.setHasta(posicion);
+                        volcar();
+                    }
+                }
+                linea.reset();
+                inicioLinea = posicion;
+            }
+            memoria.setHasta(inicioLinea);
+        }
+        // Una última línea sin terminar (corte durante una escritura) se cierra para no unirla a la siguiente
+        if (memoria.getHasta() < longitudRegistro) {
+            canalEscritura.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            longitudRegistro++;
+            memoria.setHasta(longitudRegistro);
+        }
+        return mensajes;
+    }
+
+    // Método para buscar en una sala; la última palabra se toma como prefijo
+    Pagina buscar(String sala, String consulta, int pagina) throws IOException {
+        long inicio = System.nanoTime();
+        List<String> palabras = tokenizar(consulta);
+        if (palabras.isEmpty()) {
+            return new Pagina(Collections.emptyList(), false);
+        }
+
+        List<Segmento> orden = new ArrayList<>();
+        synchronized (cerrojo) {
+            orden.add(memoria);
+            if (congelado != null) {
+                orden.add(congelado);
+            }
+            for (int i = segmentos.size() - 1; i >= 0; i--) {
+                orden.add(segmentos.get(i));
+            }
+        }
+
+        // Recorrer del segmento más nuevo al más antiguo hasta tener la página y saber si hay más;
+        // de las coincidencias anteriores a la página sólo se cuentan
+        long saltar = (long) (Math.max(1, pagina) - 1) * tamañoPagina;
+        long finPagina = saltar + tamañoPagina;
+        List<Long> enPagina = new ArrayList<>();
+        long n = 0;
+        for (Segmento segmento : orden) {
+            long[] coincidencias = evaluar(segmento, sala, palabras);
+            if (n + coincidencias.length <= saltar) {
+                n += coincidencias.length;
+                continue;
+            }
+            for (int i = coincidencias.length - 1; i >= 0 && n <= finPagina; i--, n++) {
+                if (n >= saltar && n < finPagina) {
+                    enPagina.add(coincidencias[i]);
+                }
+            }
+            if (n > finPagina) {
+                break;
+            }
+        }
+
+        List<Resultado> resultados = new ArrayList<>();
+        for (long posicion : enPagina) {
+            Resultado resultado = leer(posicion);
+            if (resultado != null) {
+                resultados.add(resultado);
+            }
+        }
+        Metricas.incrementar("historial.busquedas");
+        Metricas.sumar("historial.us_busqueda", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inicio));
+        return new Pagina(resultados, n > finPagina);
+    }
+
+    private static long[] evaluar(Segmento segmento, String sala, List<String> palabras) throws IOException {
+        String base = sala + SEPARADOR;
+        long[] resultado = segmento.conPrefijo(base + palabras.get(palabras.size() - 1));
+        for (int i = 0; i < palabras.size() - 1 && resultado.length > 0; i++) {
+            resultado = interseccion(resultado, segmento.exactos(base + palabras.get(i)));
+        }
+        return resultado;
+    }
+
+    private static long[] interseccion(long[] a, long[] b) {
+        long[] resultado = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                resultado[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(resultado, n);
+    }
+
+    // Unión ordenada y sin repetidos de varias listas crecientes
+    private static long[] union(List<long[]> listas) {
+        if (listas.isEmpty()) {
+            return new long[0];
+        }
+        if (listas.size() == 1) {
+            return listas.get(0);
+        }
+        int total = 0;
+        for (long[] lista : listas) {
+            total += lista.length;
+        }
+        long[] todas = new long[total];
+        int n = 0;
+        for (long[] lista : listas) {
+            System.arraycopy(lista, 0, todas, n, lista.length);
+            n += lista.length;
+        }
+        Arrays.sort(todas);
+        int unicas = 0;
+        for (int i = 0; i < todas.length; i++) {
+            if (unicas == 0 || todas[unicas - 1] != todas[i]) {
+                todas[unicas++] = todas[i];
+            }
+        }
+        return Arrays.copyOf(todas, unicas);
+    }
+
+    // Método para leer la línea del registro que empieza en una posición
+    private Resultado leer(long posicion) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int fin = -1;
+        while (fin < 0) {
+            int leidos = canalLectura.read(buffer, posicion + buffer.position());
+            for (int i = buffer.position() - Math.max(leidos, 0); i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    fin = i;
+                    break;
+                }
+            }
+            if (fin < 0) {
+                if (leidos <= 0) {
+                    fin = buffer.position();
+                } else if (!buffer.hasRemaining()) {
+                    ByteBuffer mayor = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    mayor.put(buffer);
+                    buffer = mayor;
+                }
+            }
+        }
+        String[] campos = new String(buffer.array(), 0, fin, StandardCharsets.UTF_8).split("\t", 4);
+        if (campos.length != 4) {
+            return null;
+        }
+        try {
+            return new Resultado(Long.parseLong(campos[0]), campos[2], campos[3]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void escribirVarint(DataOutputStream dos, long valor) throws IOException {
+        while ((valor & ~0x7FL) != 0) {
+            dos.writeByte((int) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        dos.writeByte((int) valor);
+    }
+
+    private static long leerVarint(ByteBuffer buffer) {
+        long valor = 0;
+        int desplazamiento = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            desplazamiento += 7;
+        } while ((b & 0x80) != 0);
+        return valor;
+    }
+
+    // Parte del índice que cubre un tramo contiguo del registro
+    private interface Segmento {
+        // Posiciones crecientes de los mensajes que contienen el término
+        long[] exactos(String termino) throws IOException;
+
+        // Posiciones crecientes de los mensajes con algún término que empiece por el prefijo
+        long[] conPrefijo(String prefijo) throws IOException;
+    }
+
+    // Índice de los mensajes más recientes, en memoria y todavía modificable
+    private static final class SegmentoMemoria implements Segmento {
+        private final TreeMap<String, Posiciones> terminos = new TreeMap<>();
+        private int entradas;
+        private long desde;
+        private long hasta;
+
+        synchronized void agregar(long posicion, String sala, Set<String> palabras) {
+            for (String palabra : palabras) {
+                terminos.computeIfAbsent(sala + SEPARADOR + palabra, t -> new Posiciones()).agregar(posicion);
+                entradas++;
+            }
+        }
+
+        synchronized int getEntradas() {
+            return entradas;
+        }
+
+        synchronized long getDesde() {
+            return desde;
+        }
+
+        synchronized void setDesde(long desde) {
+            this.desde = desde;
+            this.hasta = desde;
+        }
+
+        synchronized long getHasta() {
+            return hasta;
+        }
+
+        synchronized void setHasta(long hasta) {
+            this.hasta = hasta;
+        }
+
+        @Override
+        public synchronized long[] exactos(String termino) {
+            Posiciones lista = terminos.get(termino);
+            return lista != null ? lista.comoArreglo() : new long[0];
+        }
+
+        @Override
+        public synchronized long[] conPrefijo(String prefijo) {
+            List<long[]> listas = new ArrayList<>();
+            for (Posiciones lista : terminos.subMap(prefijo, prefijo + Character.MAX_VALUE).values()) {
+                listas.add(lista.comoArreglo());
+                if (listas.size() == MAX_EXPANSION) {
+                    break;
+                }
+            }
+            return union(listas);
+        }
+
+        // Método para escribir este índice como segmento de nivel 0; sólo se llama cuando ya está
+        // congelado, así que no toma el cerrojo y las búsquedas pueden seguir leyéndolo
+        SegmentoDisco escribir(Path archivo) throws IOException {
+            try (EscritorSegmento escritor = new EscritorSegmento(archivo, 0, desde, hasta)) {
+                for (Map.Entry<String, Posiciones> entrada : terminos.entrySet()) {
+                    Posiciones lista = entrada.getValue();
+                    escritor.agregar(entrada.getKey(), lista.posiciones, lista.tamaño);
+                }
+                return escritor.terminar();
+            }
+        }
+    }
+
+    // Lista creciente de posiciones en el registro
+    private static final class Posiciones {
+        long[] posiciones = new long[2];
+        int tamaño = 0;
+
+        void agregar(long posicion) {
+            if (tamaño == posiciones.length) {
+                posiciones = Arrays.copyOf(posiciones, tamaño * 2);
+            }
+            posiciones[tamaño++] = posicion;
+        }
+
+        long[] comoArreglo() {
+            return Arrays.copyOf(posiciones, tamaño);
+        }
+    }
+
+    // Segmento inmutable en disco, proyectado en memoria; del diccionario sólo se guarda una muestra
+    private static final class SegmentoDisco implements Segmento {
+        final Path archivo;
+        final int nivel;
+        final long desde;
+        final long hasta;
+        private final MappedByteBuffer datos;
+        private final int numTerminos;
+        private final int inicioDiccionario;
+        private final String[] muestraTerminos;
+        private final int[] muestraPosiciones;
+
+        private SegmentoDisco(Path archivo, MappedByteBuffer datos) throws IOException {
+            this.archivo = archivo;
+            this.datos = datos;
+            if (datos.limit() < TAMAÑO_CABECERA || datos.getInt(0) != MAGICO || datos.getInt(4) != VERSION) {
+                throw new IOException("segmento inválido: " + archivo);
+            }
+            nivel = datos.getInt(8);
+            desde = datos.getLong(12);
+            hasta = datos.getLong(20);
+            numTerminos = datos.getInt(28);
+            inicioDiccionario = datos.getInt(32);
+
+            // Recorrer el diccionario una vez para tomar la muestra
+            int muestras = (numTerminos + INTERVALO_MUESTRA - 1) / INTERVALO_MUESTRA;
+            muestraTerminos = new String[muestras];
+            muestraPosiciones = new int[muestras];
+            Cursor cursor = new Cursor();
+            for (int i = 0; i < numTerminos; i++) {
+                int posicion = cursor.buffer.position();
+                cursor.avanzar();
+                if (i % INTERVALO_MUESTRA == 0) {
+                    muestraTerminos[i / INTERVALO_MUESTRA] = cursor.termino;
+                    muestraPosiciones[i / INTERVALO_MUESTRA] = posicion;
+                }
+            }
+        }
+
+        static SegmentoDisco abrir(Path archivo) throws IOException {
+            try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+                return new SegmentoDisco(archivo, canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+            }
+        }
+
+        long getBytes() {
+            return datos.capacity();
+        }
+
+        // Recorrido secuencial del diccionario
+        private final class Cursor {
+            final ByteBuffer buffer = datos.duplicate();
+            int restantes = numTerminos;
+            String termino;
+            int lista;
+
+            Cursor() {
+                buffer.position(inicioDiccionario);
+            }
+
+            Cursor(int posicion, int restantes) {
+                buffer.position(posicion);
+                this.restantes = restantes;
+            }
+
+            boolean avanzar() {
+                if (restantes == 0) {
+                    termino = null;
+                    return false;
+                }
+                restantes--;
+                byte[] bytes = new byte[(int) leerVarint(buffer)];
+                buffer.get(bytes);
+                termino = new String(bytes, StandardCharsets.UTF_8);
+                lista = (int) leerVarint(buffer);
+                return true;
+            }
+
+            long[] posiciones() {
+                ByteBuffer lector = datos.duplicate();
+                lector.position(lista);
+                long[] resultado = new long[(int) leerVarint(lector)];
+                long anterior = 0;
+                for (int i = 0; i < resultado.length; i++) {
+                    anterior += leerVarint(lector);
+                    resultado[i] = anterior;
+                }
+                return resultado;
+            }
+        }
+
+        // Cursor situado justo antes del primer término que puede ser >= clave
+        private Cursor cursorDesde(String clave) {
+            int bajo = 0;
+            int alto = muestraTerminos.length - 1;
+            int muestra = 0;
+            while (bajo <= alto) {
+                int medio = (bajo + alto) >>> 1;
+                if (muestraTerminos[medio].compareTo(clave) <= 0) {
+                    muestra = medio;
+                    bajo = medio + 1;
+                } else {
+                    alto = medio - 1;
+                }
+            }
+            if (muestraTerminos.length == 0) {
+                return new Cursor(inicioDiccionario, 0);
+            }
+            return new Cursor(muestraPosiciones[muestra], numTerminos - muestra * INTERVALO_MUESTRA);
+        }
+
+        @Override
+        public long[] exactos(String termino) {
+            Cursor cursor = cursorDesde(termino);
+            while (cursor.avanzar()) {
+                int comparacion = cursor.termino.compareTo(termino);
+                if (comparacion == 0) {
+                    return cursor.posiciones();
+                }
+                if (comparacion > 0) {
+                    break;
+                }
+            }
+            return new long[0];
+        }
+
+        @Override
+        public long[] conPrefijo(String prefijo) {
+            List<long[]> listas = new ArrayList<>();
+            Cursor cursor = cursorDesde(prefijo);
+            while (cursor.avanzar() && listas.size() < MAX_EXPANSION) {
+                if (cursor.termino.startsWith(prefijo)) {
+                    listas.add(cursor.posiciones());
+                } else if (cursor.termino.compareTo(prefijo) > 0) {
+                    break;
+                }
+            }
+            return union(listas);
+        }
+
+        // Método para fusionar segmentos contiguos (del más antiguo al más nuevo) en uno solo
+        static SegmentoDisco fusionar(List<SegmentoDisco> grupo, Path archivo, int nivel) throws IOException {
+            List<Cursor> cursores = new ArrayList<>();
+            for (SegmentoDisco segmento : grupo) {
+                Cursor cursor = segmento.new Cursor();
+                cursor.avanzar();
+                cursores.add(cursor);
+            }
+            try (EscritorSegmento escritor = new EscritorSegmento(archivo, nivel, grupo.get(0).desde,
+                                                                   grupo.get(grupo.size() - 1).hasta)) {
+                while (true) {
+                    String menor = null;
+                    for (Cursor cursor : cursores) {
+                        if (cursor.termino != null && (menor == null || cursor.termino.compareTo(menor) < 0)) {
+                            menor = cursor.termino;
+                        }
+                    }
+                    if (menor == null) {
+                        break;
+                    }
+                    // Los tramos son contiguos y ordenados: concatenar mantiene el orden creciente
+                    List<long[]> listas = new ArrayList<>();
+                    int total = 0;
+                    for (Cursor cursor : cursores) {
+                        if (menor.equals(cursor.termino)) {
+                            long[] lista = cursor.posiciones();
+                            listas.add(lista);
+                            total += lista.length;
+                            cursor.avanzar();
+                        }
+                    }
+                    long[] todas = new long[total];
+                    int n = 0;
+                    for (long[] lista : listas) {
+                        System.arraycopy(lista, 0, todas, n, lista.length);
+                        n += lista.length;
+                    }
+                    escritor.agregar(menor, todas, total);
+                }
+                return escritor.terminar();
+            }
+        }
+    }
+
+    // Escritor de un segmento: las listas van al archivo y el diccionario a un temporal que se añade al final
+    private static final class EscritorSegmento implements Closeable {
+        private final Path archivo;
+        private final Path temporal;
+        private final Path temporalDiccionario;
+        private final DataOutputStream listas;
+        private final DataOutputStream diccionario;
+        private final int nivel;
+        private final long desde;
+        private final long hasta;
+        private int numTerminos;
+        private boolean terminado;
+
+        EscritorSegmento(Path archivo, int nivel, long desde, long hasta) throws IOException {
+            this.archivo = archivo;
+            this.temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+            this.temporalDiccionario = archivo.resolveSibling(archivo.getFileName() + ".dic.tmp");
+            this.nivel = nivel;
+            this.desde = desde;
+            this.hasta = hasta;
+            listas = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal), 64 * 1024));
+            diccionario = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporalDiccionario), 64 * 1024));
+            // Cabecera provisional: el número de términos y el inicio del diccionario se completan al terminar
+            listas.write(new byte[TAMAÑO_CABECERA]);
+        }
+
+        void agregar(String termino, long[] posiciones, int cuantas) throws IOException {
+            byte[] bytes = termino.getBytes(StandardCharsets.UTF_8);
+            escribirVarint(diccionario, bytes.length);
+            diccionario.write(bytes);
+            escribirVarint(diccionario, listas.size());
+            numTerminos++;
+
+            escribirVarint(listas, cuantas);
+            long anterior = 0;
+            for (int i = 0; i < cuantas; i++) {
+                escribirVarint(listas, posiciones[i] - anterior);
+                anterior = posiciones[i];
+            }
+        }
+
+        SegmentoDisco terminar() throws IOException {
+            int inicioDiccionario = listas.size();
+            diccionario.close();
+            Files.copy(temporalDiccionario, listas);
+            listas.close();
+            try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.WRITE)) {
+                ByteBuffer cabecera = ByteBuffer.allocate(TAMAÑO_CABECERA);
+                cabecera.putInt(MAGICO).putInt(VERSION).putInt(nivel).putLong(desde).putLong(hasta)
+                        .putInt(numTerminos).putInt(inicioDiccionario).flip();
+                canal.write(cabecera, 0);
+                canal.force(false);
+            }
+            Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            terminado = true;
+            return SegmentoDisco.abrir(archivo);
+        }
+
+        @Override
+        public void close() throws IOException {
+            listas.close();
+            diccionario.close();
+            Files.deleteIfExists(temporalDiccionario);
+            if (!terminado) {
+                Files.deleteIfExists(temporal);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package servidor;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Instantánea del estado que debe sobrevivir a un reinicio: las salas y las transferencias
+// de archivos ya cargadas en temp/ que aún esperan a sus receptores. Se guarda en un formato
+// binario compacto (DataOutputStream) que se lee de una sola pasada al arrancar.
+//
+// Formato: "CHAT" | versión | nº salas | nombres... | nº transferencias |
+//          (emisor, destinatario, nombre, tamaño, ruta, hash, nº receptores, receptores...)...
+// La versión 1 no incluía el hash; se sigue pudiendo leer.
+class InstantaneaEstado {
+
+    private static final int MAGICO = 0x43484154; // "CHAT"
+    private static final int VERSION = 2;
+
+    // Transferencia restaurada junto con los receptores que aún no la han descargado
+    static class TransferenciaGuardada {
+        final Servidor.TransferenciaArchivo transferencia;
+        final List<String> receptores;
+
+        TransferenciaGuardada(Servidor.TransferenciaArchivo transferencia, List<String> receptores) {
+            this.transferencia = transferencia;
+            this.receptores = receptores;
+        }
+    }
+
+    final Set<String> salas = new LinkedHashSet<>();
+    final List<TransferenciaGuardada> transferencias = new ArrayList<>();
+
+    // Método para guardar la instantánea de forma atómica (archivo temporal y renombrado)
+    void guardar(Path destino) throws IOException {
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+            dos.writeInt(MAGICO);
+            dos.writeInt(VERSION);
+            dos.writeInt(salas.size());
+            for (String sala : salas) {
+                dos.writeUTF(sala);
+            }
+            dos.writeInt(transferencias.size());
+            for (TransferenciaGuardada guardada : transferencias) {
+                Servidor.TransferenciaArchivo t = guardada.transferencia;
+                dos.writeUTF(t.getEmisor());
+                dos.writeUTF(t.getDestinatario());
+                dos.writeUTF(t.getNombreArchivo());
+                dos.writeLong(t.getTamaño());
+                dos.writeUTF(t.getRutaArchivo());
+                dos.writeUTF(t.getHash() != null ? t.getHash() : "");
+                dos.writeInt(guardada.receptores.size());
+                for (String receptor : guardada.receptores) {
+                    dos.writeUTF(receptor);
+                }
+            }
+        }
+        Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Método para leer una instantánea; devuelve null si no existe
+    static InstantaneaEstado cargar(Path origen) throws IOException {
+        if (!Files.exists(origen)) {
+            return null;
+        }
+        InstantaneaEstado estado = new InstantaneaEstado();
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(origen)))) {
+            if (dis.readInt() != MAGICO) {
+                throw new IOException("Formato de instantánea desconocido: " + origen);
+            }
+            int version = dis.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Versión de instantánea desconocida (" + version + "): " + origen);
+            }
+            int numSalas = dis.readInt();
+            for (int i = 0; i < numSalas; i++) {
+                estado.salas.add(dis.readUTF());
+            }
+            int numTransferencias = dis.readInt();
+            for (int i = 0; i < numTransferencias; i++) {
+                Servidor.TransferenciaArchivo t = new Servidor.TransferenciaArchivo(
+                    dis.readUTF(), dis.readUTF(), dis.readUTF(), dis.readLong());
+                t.setRutaArchivo(dis.readUTF());
+                if (version >= 2) {
+                    String hash = dis.readUTF();
+                    t.setHash(hash.isEmpty() ? null : hash);
+                }
+                t.setCargado(true);
+                int numReceptores = dis.readInt();
+                List<String> receptores = new ArrayList<>(numReceptores);
+                for (int j = 0; j < numReceptores; j++) {
+                    receptores.add(dis.readUTF());
+                }
+                estado.transferencias.add(new TransferenciaGuardada(t, receptores));
+            }
+        }
+        return estado;
+    }
+}
@@ -0,0 +1,89 @@
+package servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// Lector de las líneas que envía un cliente de chat sobre un buffer de PoolBuffers, en lugar de
+// un BufferedReader con sus propios arreglos de bytes y caracteres por conexión. El protocolo es
+// de líneas terminadas en '\n' (con '\r' opcional) en una codificación compatible con ASCII, así
+// que basta con buscar el byte del salto y decodificar cada línea una sola vez.
+final class LectorLineas {
+
+    private final InputStream entrada;
+    private final Charset codificacion = Charset.defaultCharset();
+    private ByteBuffer buffer = PoolBuffers.COMPARTIDO.tomar(PoolBuffers.PEQUEÑO);
+    private final byte[] datos = buffer.array();
+    private int inicio;
+    private int revisado;
+    private int fin;
+    // Sólo para líneas que no caben en el buffer
+    private ByteArrayOutputStream larga;
+
+    LectorLineas(InputStream entrada) {
+        this.entrada = entrada;
+    }
+
+    // Método para leer la siguiente línea sin el salto; devuelve null al final del flujo
+    String leerLinea() throws IOException {
+        while (true) {
+            for (int i = revisado; i < fin; i++) {
+                if (datos[i] == '\n') {
+                    String linea = decodificar(i);
+                    inicio = revisado = i + 1;
+                    return linea;
+                }
+            }
+            if (inicio == 0 && fin == datos.length) {
+                if (larga == null) {
+                    larga = new ByteArrayOutputStream();
+                }
+                larga.write(datos, 0, fin);
+                fin = 0;
+            } else if (inicio > 0) {
+                System.arraycopy(datos, inicio, datos, 0, fin - inicio);
+                fin -= inicio;
+                inicio = 0;
+            }
+            revisado = fin;
+            int leidos = entrada.read(datos, fin, datos.length - fin);
+            if (leidos == -1) {
+                if (fin == 0 && larga == null) {
+                    return null;
+                }
+                String linea = decodificar(fin);
+                inicio = revisado = fin = 0;
+                return linea;
+            }
+            fin += leidos;
+        }
+    }
+
+    // Método para devolver el buffer a la reserva; se llama una vez, al terminar la conexión
+    void cerrar() {
+        if (buffer != null) {
+            PoolBuffers.COMPARTIDO.soltar(buffer);
+            buffer = null;
+        }
+    }
+
+    private String decodificar(int hasta) {
+        int longitud = hasta - inicio;
+        if (larga == null) {
+            if (longitud > 0 && datos[hasta - 1] == '\r') {
+                longitud--;
+            }
+            return new String(datos, inicio, longitud, codificacion);
+        }
+        larga.write(datos, inicio, longitud);
+        byte[] completa = larga.toByteArray();
+        larga = null;
+        longitud = completa.length;
+        if (longitud > 0 && completa[longitud - 1] == '\r') {
+            longitud--;
+        }
+        return new String(completa, 0, longitud, codificacion);
+    }
+}
@@ -0,0 +1,113 @@
+package servidor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Limitador de tasa por usuario y por sala basado en cubetas de tokens.
+// Cada usuario tiene presupuestos separados para chat, /crearsala y /archivo; cada sala
+// tiene además un presupuesto compartido para los mensajes que se difunden a sus miembros.
+//
+// Configuración (tasa en tokens por segundo, ráfaga en tokens):
+//   chat.limite.chat.tasa / chat.limite.chat.rafaga             (10 / 20)
+//   chat.limite.crearsala.tasa / chat.limite.crearsala.rafaga   (0.2 / 3)
+//   chat.limite.archivo.tasa / chat.limite.archivo.rafaga       (0.5 / 5)
+//   chat.limite.sala.tasa / chat.limite.sala.rafaga             (200 / 400)
+//   chat.limite.infracciones.max       rechazos del presupuesto propio tolerados dentro de la ventana (50)
+//   chat.limite.infracciones.ventana   duración de la ventana en ms (10000)
+public class LimitadorTasa {
+
+    public enum Tipo { CHAT, CREAR_SALA, ARCHIVO }
+
+    // SALA_LIMITADA: el usuario va dentro de su presupuesto pero la sala no admite más por ahora
+    public enum Resultado { PERMITIDO, LIMITADO, SALA_LIMITADA, DESCONECTAR }
+
+    private static final double TASA_CHAT = Configuracion.decimal("limite.chat.tasa", 10);
+    private static final double RAFAGA_CHAT = Configuracion.decimal("limite.chat.rafaga", 20);
+    private static final double TASA_CREAR_SALA = Configuracion.decimal("limite.crearsala.tasa", 0.2);
+    private static final double RAFAGA_CREAR_SALA = Configuracion.decimal("limite.crearsala.rafaga", 3);
+    private static final double TASA_ARCHIVO = Configuracion.decimal("limite.archivo.tasa", 0.5);
+    private static final double RAFAGA_ARCHIVO = Configuracion.decimal("limite.archivo.rafaga", 5);
+    private static final double TASA_SALA = Configuracion.decimal("limite.sala.tasa", 200);
+    private static final double RAFAGA_SALA = Configuracion.decimal("limite.sala.rafaga", 400);
+    private static final int MAX_INFRACCIONES = Configuracion.entero("limite.infracciones.max", 50);
+    private static final long VENTANA_INFRACCIONES = TimeUnit.MILLISECONDS.toNanos(
+        Configuracion.largo("limite.infracciones.ventana", 10000));
+
+    // Intervalo mínimo entre avisos de limitación para no convertir el aviso en otra inundación
+    private static final long INTERVALO_AVISO = TimeUnit.SECONDS.toNanos(1);
+
+    // Cubetas compartidas por sala; sólo se crean para la sala actual de un usuario, que siempre
+    // existe, y las salas no se eliminan, así que hay como mucho una por sala creada
+    private static final Map<String, CubetaTokens> cubetasSala = new ConcurrentHashMap<>();
+
+    private final CubetaTokens chat = new CubetaTokens(TASA_CHAT, RAFAGA_CHAT);
+    private final CubetaTokens crearSala = new CubetaTokens(TASA_CREAR_SALA, RAFAGA_CREAR_SALA);
+    private final CubetaTokens archivo = new CubetaTokens(TASA_ARCHIVO, RAFAGA_ARCHIVO);
+
+    // Conteo de rechazos dentro de la ventana actual
+    private long inicioVentana = System.nanoTime();
+    private int infracciones;
+    private long ultimoAviso;
+
+    // Método para comprobar una acción del usuario (y de la sala, si se difunde a una)
+    public synchronized Resultado permitir(Tipo tipo, String sala) {
+        CubetaTokens cubeta = tipo == Tipo.ARCHIVO ? archivo : tipo == Tipo.CREAR_SALA ? crearSala : chat;
+        if (cubeta.consumir()) {
+            if (sala == null || cubetasSala.computeIfAbsent(sala, s -> new CubetaTokens(TASA_SALA, RAFAGA_SALA)).consumir()) {
+                return Resultado.PERMITIDO;
+            }
+            // La saturación de la sala es tráfico de todos: no se cobra al usuario ni cuenta como infracción
+            cubeta.devolver();
+            return Resultado.SALA_LIMITADA;
+        }
+
+        long ahora = System.nanoTime();
+        if (ahora - inicioVentana > VENTANA_INFRACCIONES) {
+            inicioVentana = ahora;
+            infracciones = 0;
+        }
+        return ++infracciones > MAX_INFRACCIONES ? Resultado.DESCONECTAR : Resultado.LIMITADO;
+    }
+
+    // Método para saber si corresponde enviar un aviso de limitación al usuario
+    public synchronized boolean debeAvisar() {
+        long ahora = System.nanoTime();
+        if (ahora - ultimoAviso >= INTERVALO_AVISO) {
+            ultimoAviso = ahora;
+            return true;
+        }
+        return false;
+    }
+
+    // Cubeta de tokens que se rellena de forma perezosa al consultarla
+    static class CubetaTokens {
+        private final double tasaPorNano;
+        private final double capacidad;
+        private double tokens;
+        private long ultimaRecarga;
+
+        CubetaTokens(double tasaPorSegundo, double capacidad) {
+            this.tasaPorNano = tasaPorSegundo / TimeUnit.SECONDS.toNanos(1);
+            this.capacidad = capacidad;
+            this.tokens = capacidad;
+            this.ultimaRecarga = System.nanoTime();
+        }
+
+        synchronized boolean consumir() {
+            long ahora = System.nanoTime();
+            tokens = Math.min(capacidad, tokens + (ahora - ultimaRecarga) * tasaPorNano);
+            ultimaRecarga = ahora;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        // Método para reintegrar un token consumido por una acción que al final no se realizó
+        synchronized void devolver() {
+            tokens = Math.min(capacidad, tokens + 1);
+        }
+    }
+}
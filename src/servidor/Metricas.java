@@ -0,0 +1,57 @@
+package servidor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Registro central de métricas del servidor: contadores acumulados e indicadores
+// calculados al momento de consultarlos. Se consultan con el comando /metricas.
+public final class Metricas {
+
+    private static final Map<String, LongAdder> contadores = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> indicadores = new ConcurrentHashMap<>();
+
+    private Metricas() {
+    }
+
+    // Método para obtener (o crear) un contador; conviene guardarlo en un campo en rutas frecuentes
+    public static LongAdder contador(String nombre) {
+        return contadores.computeIfAbsent(nombre, n -> new LongAdder());
+    }
+
+    public static void incrementar(String nombre) {
+        contador(nombre).increment();
+    }
+
+    public static void sumar(String nombre, long valor) {
+        contador(nombre).add(valor);
+    }
+
+    // Método para registrar un indicador que se evalúa al consultarlo
+    public static void indicador(String nombre, LongSupplier valor) {
+        indicadores.put(nombre, valor);
+    }
+
+    // Método para obtener todas las métricas ordenadas por nombre
+    public static Map<String, Long> instantanea() {
+        Map<String, Long> valores = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entrada : contadores.entrySet()) {
+            valores.put(entrada.getKey(), entrada.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entrada : indicadores.entrySet()) {
+            valores.put(entrada.getKey(), entrada.getValue().getAsLong());
+        }
+        return valores;
+    }
+
+    // Método para formatear las métricas como texto
+    public static String resumen() {
+        StringBuilder texto = new StringBuilder("Métricas del servidor:\n");
+        for (Map.Entry<String, Long> entrada : instantanea().entrySet()) {
+            texto.append(entrada.getKey()).append(' ').append(entrada.getValue()).append('\n');
+        }
+        return texto.toString();
+    }
+}
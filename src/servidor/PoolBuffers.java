@@ -0,0 +1,231 @@
+package servidor;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Reserva compartida de buffers para la E/S del servidor: escritura y lectura de las conexiones de
+// chat y carga y descarga de archivos en temp/. En lugar de crear un arreglo por conexión o por
+// transferencia, se toman prestados y se devuelven al terminar.
+//
+// Hay tres clases de tamaño (4, 16 y 64 KB); cada petición recibe la menor que le basta y las
+// mayores se crean sin reserva. Cada hilo guarda unos pocos buffers devueltos para su próximo
+// préstamo sin tocar estructuras compartidas; el resto va a una cola por clase con tope.
+// Los hilos que van a quedarse bloqueados mucho tiempo (el escritor de una conexión ociosa) usan
+// soltar en lugar de devolver para no retener el buffer en su caché.
+//
+// Los buffers son de memoria del montículo y no directos: los sockets se usan como flujos (con o
+// sin TLS) y los arreglos pasan además por el resumen SHA-256, así que un buffer directo sólo
+// añadiría una copia. Los archivos se escriben con FileChannel, que reutiliza su propio buffer
+// directo por hilo.
+//
+// Con chat.buffers.detectarFugas se registra dónde se tomó cada buffer y se avisa si el recolector
+// encuentra uno que no se devolvió, o si se devuelve dos veces.
+//
+// Configuración:
+//   chat.buffers.maxPorClase     buffers guardados por clase en la cola compartida (256)
+//   chat.buffers.maxLocales      buffers guardados por clase en la caché de cada hilo (2)
+//   chat.buffers.detectarFugas   rastrear préstamos para detectar fugas (false)
+final class PoolBuffers {
+
+    static final int PEQUEÑO = 4 * 1024;
+    static final int MEDIANO = 16 * 1024;
+    static final int GRANDE = 64 * 1024;
+    private static final int[] TAMAÑOS = {PEQUEÑO, MEDIANO, GRANDE};
+
+    static final PoolBuffers COMPARTIDO = new PoolBuffers();
+
+    private static final LongAdder prestamos = Metricas.contador("buffers.prestamos");
+    private static final LongAdder aciertosLocales = Metricas.contador("buffers.aciertos_locales");
+    private static final LongAdder aciertosCompartidos = Metricas.contador("buffers.aciertos_compartidos");
+    private static final LongAdder creados = Metricas.contador("buffers.creados");
+    private static final LongAdder bytesCreados = Metricas.contador("buffers.bytes_creados");
+    private static final LongAdder sinClase = Metricas.contador("buffers.sin_clase");
+    private static final LongAdder descartados = Metricas.contador("buffers.descartados");
+
+    // Préstamo rastreado para detectar fugas: si el recolector lo encola, el buffer no se devolvió
+    private static final class Rastro extends WeakReference<ByteBuffer> {
+        private final int clave;
+        private final Throwable origen;
+
+        private Rastro(ByteBuffer buffer, ReferenceQueue<ByteBuffer> cola) {
+            super(buffer, cola);
+            this.clave = System.identityHashCode(buffer);
+            this.origen = new Throwable("Buffer de " + buffer.capacity() + " bytes tomado en " + Thread.currentThread().getName());
+        }
+    }
+
+    private final int maxPorClase = Configuracion.entero("buffers.maxPorClase", 256);
+    private final int maxLocales = Configuracion.entero("buffers.maxLocales", 2);
+    private final boolean detectarFugas = Configuracion.booleano("buffers.detectarFugas", false);
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> compartidos = new ArrayList<>();
+    private final AtomicInteger[] enCola = new AtomicInteger[TAMAÑOS.length];
+    private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> locales = ThreadLocal.withInitial(() -> {
+        List<ArrayDeque<ByteBuffer>> cache = new ArrayList<>(TAMAÑOS.length);
+        for (int i = 0; i < TAMAÑOS.length; i++) {
+            cache.add(new ArrayDeque<>(maxLocales));
+        }
+        return cache;
+    });
+    private final AtomicLong prestados = new AtomicLong();
+
+    // Sólo con detección de fugas: préstamos en curso por identityHashCode del buffer
+    private final Map<Integer, List<Rastro>> rastros = new HashMap<>();
+    private final ReferenceQueue<ByteBuffer> perdidos = new ReferenceQueue<>();
+
+    private PoolBuffers() {
+        for (int i = 0; i < TAMAÑOS.length; i++) {
+            compartidos.add(new ConcurrentLinkedQueue<>());
+            enCola[i] = new AtomicInteger();
+        }
+        Metricas.indicador("buffers.prestados", prestados::get);
+        Metricas.indicador("buffers.en_reserva", this::getEnReserva);
+    }
+
+    // Método para tomar un buffer de al menos capacidad bytes, vacío y listo para escribir en él
+    ByteBuffer tomar(int capacidad) {
+        prestamos.increment();
+        prestados.incrementAndGet();
+        int clase = clase(capacidad);
+        ByteBuffer buffer = null;
+        if (clase >= 0) {
+            buffer = locales.get().get(clase).pollFirst();
+            if (buffer != null) {
+                aciertosLocales.increment();
+            } else if ((buffer = compartidos.get(clase).poll()) != null) {
+                enCola[clase].decrementAndGet();
+                aciertosCompartidos.increment();
+            }
+        } else {
+            sinClase.increment();
+        }
+        if (buffer == null) {
+            int tamaño = clase >= 0 ? TAMAÑOS[clase] : capacidad;
+            buffer = ByteBuffer.allocate(tamaño);
+            creados.increment();
+            bytesCreados.add(tamaño);
+        }
+        buffer.clear();
+        if (detectarFugas) {
+            rastrear(buffer);
+        }
+        return buffer;
+    }
+
+    // Método para devolver un buffer; el hilo lo conserva para su próximo préstamo si tiene sitio
+    void devolver(ByteBuffer buffer) {
+        devolver(buffer, true);
+    }
+
+    // Método para devolver un buffer directamente a la cola compartida (hilos que van a quedarse
+    // inactivos y no deben retenerlo)
+    void soltar(ByteBuffer buffer) {
+        devolver(buffer, false);
+    }
+
+    private void devolver(ByteBuffer buffer, boolean local) {
+        if (buffer == null || (detectarFugas && !olvidar(buffer))) {
+            return;
+        }
+        prestados.decrementAndGet();
+        int clase = claseExacta(buffer.capacity());
+        if (clase < 0) {
+            return;
+        }
+        if (local) {
+            ArrayDeque<ByteBuffer> cache = locales.get().get(clase);
+            if (cache.size() < maxLocales) {
+                cache.addFirst(buffer);
+                return;
+            }
+        }
+        if (enCola[clase].incrementAndGet() <= maxPorClase) {
+            compartidos.get(clase).offer(buffer);
+        } else {
+            enCola[clase].decrementAndGet();
+            descartados.increment();
+        }
+    }
+
+    long getEnReserva() {
+        long total = 0;
+        for (AtomicInteger cuenta : enCola) {
+            total += cuenta.get();
+        }
+        return total;
+    }
+
+    private static int clase(int capacidad) {
+        for (int i = 0; i < TAMAÑOS.length; i++) {
+            if (capacidad <= TAMAÑOS[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int claseExacta(int capacidad) {
+        for (int i = 0; i < TAMAÑOS.length; i++) {
+            if (capacidad == TAMAÑOS[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void rastrear(ByteBuffer buffer) {
+        Rastro perdido;
+        while ((perdido = (Rastro) perdidos.poll()) != null) {
+            synchronized (rastros) {
+                List<Rastro> lista = rastros.get(perdido.clave);
+                if (lista == null || !lista.remove(perdido)) {
+                    continue;
+                }
+                if (lista.isEmpty()) {
+                    rastros.remove(perdido.clave);
+                }
+            }
+            prestados.decrementAndGet();
+            Metricas.incrementar("buffers.fugas");
+            Registro.error("buffers.fuga", perdido.origen);
+        }
+        Rastro rastro = new Rastro(buffer, perdidos);
+        synchronized (rastros) {
+            rastros.computeIfAbsent(rastro.clave, c -> new ArrayList<>(1)).add(rastro);
+        }
+    }
+
+    // Devuelve false si el buffer no estaba prestado (devolución doble o buffer ajeno)
+    private boolean olvidar(ByteBuffer buffer) {
+        int clave = System.identityHashCode(buffer);
+        synchronized (rastros) {
+            List<Rastro> lista = rastros.get(clave);
+            if (lista != null) {
+                for (int i = 0; i < lista.size(); i++) {
+                    Rastro rastro = lista.get(i);
+                    if (rastro.get() == buffer) {
+                        rastro.clear();
+                        lista.remove(i);
+                        if (lista.isEmpty()) {
+                            rastros.remove(clave);
+                        }
+                        return true;
+                    }
+                }
+            }
+        }
+        Metricas.incrementar("buffers.devoluciones_invalidas");
+        Registro.error("buffers.devolucion_invalida", new Throwable("Buffer de " + buffer.capacity() + " bytes devuelto sin estar prestado"));
+        return false;
+    }
+}
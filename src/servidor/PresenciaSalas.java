@@ -0,0 +1,94 @@
+package servidor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Estados de presencia ("escribiendo", ausente, ocupado) agrupados por sala. Los cambios no se
+// difunden uno a uno: se acumulan en el lote de la sala (el último estado de cada usuario sustituye
+// al anterior) y, como mucho una vez por ventana, se envían juntos en una trama compacta:
+//
+//   ESTADOS:sala|ana=escribiendo|beto=ausente
+//
+// Así el número de notificaciones por segundo de una sala queda acotado por la ventana sea cual
+// sea su tamaño o la velocidad a la que escriben sus miembros. Las tramas se emiten desde la rueda
+// de temporizadores del servidor.
+//
+// Configuración:
+//   chat.estado.msVentana      ventana mínima de agrupación por sala (250)
+//   chat.estado.maxPorSegundo  tramas por segundo y sala como máximo (4)
+//   chat.estado.maxPorTrama    cambios por trama; el resto pasa a la siguiente (100)
+final class PresenciaSalas {
+
+    static final String PREFIJO = "ESTADOS:";
+    // Trama con los estados de todos los miembros de una sala (al entrar en ella o tras perder tramas)
+    static final String PREFIJO_COMPLETO = "ESTADOS_SALA:";
+    static final String ACTIVO = "activo";
+    static final String ESCRIBIENDO = "escribiendo";
+
+    private static final LongAdder cambios = Metricas.contador("estado.cambios");
+    private static final LongAdder agrupados = Metricas.contador("estado.agrupados");
+    private static final LongAdder tramas = Metricas.contador("estado.tramas");
+
+    static final int MAX_POR_TRAMA = Configuracion.entero("estado.maxPorTrama", 100);
+
+    // Cambios pendientes de una sala; se protege con su propio monitor
+    private static final class Lote {
+        private final LinkedHashMap<String, String> cambios = new LinkedHashMap<>();
+        private boolean programado;
+        private long ultimaEmision;
+    }
+
+    private final Map<String, Lote> lotes = new ConcurrentHashMap<>();
+    private final RuedaTemporizadores rueda;
+    private final BiConsumer<String, String> difundir;
+    private final long msVentana;
+
+    // difundir recibe la sala y la trama y la entrega a sus miembros
+    PresenciaSalas(RuedaTemporizadores rueda, BiConsumer<String, String> difundir) {
+        this.rueda = rueda;
+        this.difundir = difundir;
+        this.msVentana = Math.max(Configuracion.largo("estado.msVentana", 250),
+                                  1000 / Math.max(1, Configuracion.entero("estado.maxPorSegundo", 4)));
+    }
+
+    // Método para anotar el nuevo estado de un usuario en una sala
+    void publicar(String sala, String usuario, String estado) {
+        cambios.increment();
+        Lote lote = lotes.computeIfAbsent(sala, s -> new Lote());
+        synchronized (lote) {
+            if (lote.cambios.put(usuario, estado) != null) {
+                agrupados.increment();
+            }
+            if (!lote.programado) {
+                lote.programado = true;
+                long espera = lote.ultimaEmision + msVentana - System.currentTimeMillis();
+                rueda.programar(Math.max(1, espera), () -> emitir(sala, lote));
+            }
+        }
+    }
+
+    private void emitir(String sala, Lote lote) {
+        StringBuilder trama = new StringBuilder(PREFIJO).append(sala);
+        synchronized (lote) {
+            Iterator<Map.Entry<String, String>> iterador = lote.cambios.entrySet().iterator();
+            for (int i = 0; i < MAX_POR_TRAMA && iterador.hasNext(); i++) {
+                Map.Entry<String, String> cambio = iterador.next();
+                trama.append('|').append(cambio.getKey()).append('=').append(cambio.getValue());
+                iterador.remove();
+            }
+            lote.ultimaEmision = System.currentTimeMillis();
+            // Si quedaron cambios por el tope de la trama, salen en la ventana siguiente
+            if (lote.cambios.isEmpty()) {
+                lote.programado = false;
+            } else {
+                rueda.programar(msVentana, () -> emitir(sala, lote));
+            }
+        }
+        tramas.increment();
+        difundir.accept(sala, trama.toString());
+    }
+}
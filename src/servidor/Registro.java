@@ -0,0 +1,217 @@
+package servidor;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Registro asíncrono con niveles y campos estructurados (clave=valor).
+// Los hilos que registran sólo encolan el evento en una cola sin bloqueos; un hilo
+// escritor lo formatea y lo escribe, de modo que los manejadores nunca se serializan
+// sobre System.out.
+//
+// Configuración:
+//   chat.registro.nivel     DEPURACION | INFO | AVISO | ERROR (por defecto INFO)
+//   chat.registro.muestreo  registrar 1 de cada N eventos por mensaje (por defecto 100)
+//   chat.registro.cuerpos   incluir el texto de los mensajes (por defecto false)
+//   chat.registro.capacidad eventos en espera antes de descartar (por defecto 65536)
+//   chat.registro.archivo   archivo de salida (por defecto la consola)
+public final class Registro {
+
+    public enum Nivel { DEPURACION, INFO, AVISO, ERROR }
+
+    private static final Nivel nivelMinimo = leerNivel();
+    private static final int muestreo = Math.max(1, Configuracion.entero("registro.muestreo", 100));
+    private static final boolean incluirCuerpos = Configuracion.booleano("registro.cuerpos", false);
+    private static final int capacidad = Configuracion.entero("registro.capacidad", 65536);
+
+    // Cola sin bloqueos entre los hilos productores y el hilo escritor
+    private static final ConcurrentLinkedQueue<Evento> cola = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger enEspera = new AtomicInteger();
+    private static final LongAdder descartados = new LongAdder();
+    private static final AtomicLong contadorMuestreo = new AtomicLong();
+    private static volatile Thread escritor;
+    // El escritor lo activa antes de comprobar por última vez la cola y aparcarse
+    private static volatile boolean escritorEsperando;
+    private static PrintWriter salida;
+
+    private Registro() {
+    }
+
+    // Evento pendiente de formatear
+    private static final class Evento {
+        final long instante = System.currentTimeMillis();
+        final Nivel nivel;
+        final String nombre;
+        final String hilo;
+        final Object[] campos;
+        final Throwable error;
+
+        Evento(Nivel nivel, String nombre, Throwable error, Object[] campos) {
+            this.nivel = nivel;
+            this.nombre = nombre;
+            this.hilo = Thread.currentThread().getName();
+            this.campos = campos;
+            this.error = error;
+        }
+    }
+
+    private static Nivel leerNivel() {
+        try {
+            return Nivel.valueOf(Configuracion.texto("registro.nivel", "INFO").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Nivel.INFO;
+        }
+    }
+
+    // Método para saber si un nivel está habilitado (evita construir campos innecesarios)
+    public static boolean habilitado(Nivel nivel) {
+        return nivel.compareTo(nivelMinimo) >= 0;
+    }
+
+    public static void depuracion(String evento, Object... campos) {
+        registrar(Nivel.DEPURACION, evento, null, campos);
+    }
+
+    public static void info(String evento, Object... campos) {
+        registrar(Nivel.INFO, evento, null, campos);
+    }
+
+    public static void aviso(String evento, Object... campos) {
+        registrar(Nivel.AVISO, evento, null, campos);
+    }
+
+    public static void error(String evento, Throwable error, Object... campos) {
+        registrar(Nivel.ERROR, evento, error, campos);
+    }
+
+    // Método para eventos por mensaje: sólo se registra uno de cada N
+    public static void muestreado(String evento, Object... campos) {
+        if (habilitado(Nivel.INFO) && contadorMuestreo.getAndIncrement() % muestreo == 0) {
+            registrar(Nivel.INFO, evento, null, campos);
+        }
+    }
+
+    // Método para incluir el texto de un mensaje sólo si está habilitado
+    public static Object cuerpo(String mensaje) {
+        if (incluirCuerpos || mensaje == null) {
+            return mensaje;
+        }
+        return "<" + mensaje.length() + " caracteres>";
+    }
+
+    // Número de eventos descartados por tener la cola llena
+    public static long getDescartados() {
+        return descartados.sum();
+    }
+
+    private static void registrar(Nivel nivel, String evento, Throwable error, Object[] campos) {
+        if (!habilitado(nivel)) {
+            return;
+        }
+        if (enEspera.incrementAndGet() > capacidad) {
+            // Nunca bloquear al productor: si el escritor no da abasto se descarta
+            enEspera.decrementAndGet();
+            descartados.increment();
+            return;
+        }
+        cola.offer(new Evento(nivel, evento, error, campos));
+        iniciarEscritor();
+        // Se comprueba después de encolar: o el escritor ve el evento o aquí se ve que espera
+        if (escritorEsperando) {
+            LockSupport.unpark(escritor);
+        }
+    }
+
+    private static void iniciarEscritor() {
+        if (escritor != null) {
+            return;
+        }
+        synchronized (Registro.class) {
+            if (escritor == null) {
+                Thread hilo = new Thread(Registro::escribir, "registro");
+                hilo.setDaemon(true);
+                hilo.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(Registro::vaciar, "registro-cierre"));
+                escritor = hilo;
+            }
+        }
+    }
+
+    private static PrintWriter abrirSalida() {
+        String ruta = Configuracion.texto("registro.archivo", null);
+        if (ruta != null) {
+            try {
+                return new PrintWriter(new BufferedWriter(new FileWriter(ruta, true), 64 * 1024));
+            } catch (IOException e) {
+                System.err.println("No se pudo abrir el archivo de registro " + ruta + ": " + e.getMessage());
+            }
+        }
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 64 * 1024));
+    }
+
+    // Bucle del hilo escritor: vacía la cola por lotes y se aparca hasta el siguiente evento
+    private static void escribir() {
+        salida = abrirSalida();
+        long descartadosReportados = 0;
+        while (true) {
+            if (!vaciar()) {
+                long total = descartados.sum();
+                if (total != descartadosReportados) {
+                    formatear(new Evento(Nivel.AVISO, "registro.descartados", null, new Object[] {"total", total}));
+                    salida.flush();
+                    descartadosReportados = total;
+                }
+                escritorEsperando = true;
+                if (cola.isEmpty()) {
+                    LockSupport.park(Registro.class);
+                }
+                escritorEsperando = false;
+            }
+        }
+    }
+
+    // Método para escribir todo lo pendiente; devuelve true si había eventos
+    private static synchronized boolean vaciar() {
+        if (salida == null) {
+            return false;
+        }
+        boolean hubo = false;
+        Evento evento;
+        while ((evento = cola.poll()) != null) {
+            enEspera.decrementAndGet();
+            formatear(evento);
+            hubo = true;
+        }
+        if (hubo) {
+            salida.flush();
+        }
+        return hubo;
+    }
+
+    private static void formatear(Evento evento) {
+        StringBuilder linea = new StringBuilder(128);
+        linea.append(Instant.ofEpochMilli(evento.instante)).append(' ')
+             .append(evento.nivel).append(' ')
+             .append(evento.nombre)
+             .append(" hilo=").append(evento.hilo);
+        Object[] campos = evento.campos;
+        for (int i = 0; campos != null && i + 1 < campos.length; i += 2) {
+            linea.append(' ').append(campos[i]).append('=');
+            String valor = String.valueOf(campos[i + 1]);
+            if (valor.isEmpty() || valor.indexOf(' ') >= 0 || valor.indexOf('"') >= 0 || valor.indexOf('\n') >= 0) {
+                linea.append('"').append(valor.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+            } else {
+                linea.append(valor);
+            }
+        }
+        if (evento.error != null) {
+            linea.append(" error=\"").append(evento.error).append('"');
+        }
+        salida.println(linea);
+        if (evento.error != null && evento.nivel == Nivel.ERROR && habilitado(Nivel.DEPURACION)) {
+            evento.error.printStackTrace(salida);
+        }
+    }
+}
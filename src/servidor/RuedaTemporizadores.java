@@ -0,0 +1,142 @@
+package servidor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Rueda de temporizadores con hash para miles de plazos baratos (caducidad de transferencias,
+// latidos de las conexiones y fin del periodo de gracia de las sesiones).
+//
+// El tiempo avanza en tics de duración fija; cada temporizador va a la ranura de su tic de
+// vencimiento módulo el número de ranuras, así que programar y cancelar son O(1) y cada tic
+// sólo recorre una ranura. Los plazos más largos que una vuelta se quedan en su ranura hasta
+// la vuelta en la que vencen. La precisión es de un tic, suficiente para plazos de segundos.
+//
+// Programar desde cualquier hilo sólo encola en una cola sin bloqueo; el hilo de la rueda es el
+// único que toca las ranuras y también el que ejecuta las tareas, que por eso deben ser breves.
+final class RuedaTemporizadores {
+
+    private static final LongAdder vencidos = Metricas.contador("temporizadores.vencidos");
+
+    // Temporizador programado; cancelarlo sólo lo marca y la rueda lo descarta al pasar por su ranura
+    static final class Temporizador {
+        private final Runnable tarea;
+        private final long tic;
+        private volatile boolean cancelado;
+        private Temporizador siguiente;
+
+        private Temporizador(Runnable tarea, long tic) {
+            this.tarea = tarea;
+            this.tic = tic;
+        }
+
+        // Método para cancelar el temporizador; devuelve false si ya se había cancelado
+        boolean cancelar() {
+            if (cancelado) {
+                return false;
+            }
+            cancelado = true;
+            return true;
+        }
+    }
+
+    private final String nombre;
+    private final long nanosTic;
+    private final Temporizador[] ranuras;
+    private final int mascara;
+    private final Queue<Temporizador> nuevos = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendientes = new AtomicInteger();
+    private final long inicio = System.nanoTime();
+    private long ticActual;
+
+    // El número de ranuras se redondea a potencia de dos para calcular la ranura con una máscara
+    RuedaTemporizadores(String nombre, long msTic, int numeroRanuras) {
+        this.nombre = nombre;
+        this.nanosTic = TimeUnit.MILLISECONDS.toNanos(Math.max(1, msTic));
+        int tamaño = Integer.highestOneBit(Math.max(2, numeroRanuras - 1)) << 1;
+        this.ranuras = new Temporizador[tamaño];
+        this.mascara = tamaño - 1;
+    }
+
+    // Método para arrancar el hilo de la rueda
+    void iniciar() {
+        Thread hilo = new Thread(this::ejecutar, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    // Método para programar una tarea dentro de msRetraso milisegundos (redondeado al tic siguiente)
+    Temporizador programar(long msRetraso, Runnable tarea) {
+        long tics = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(msRetraso) + nanosTic - 1) / nanosTic);
+        Temporizador temporizador = new Temporizador(tarea, (System.nanoTime() - inicio) / nanosTic + tics);
+        pendientes.incrementAndGet();
+        nuevos.add(temporizador);
+        return temporizador;
+    }
+
+    int getPendientes() {
+        return pendientes.get();
+    }
+
+    private void ejecutar() {
+        while (true) {
+            long espera = inicio + (ticActual + 1) * nanosTic - System.nanoTime();
+            if (espera > 0) {
+                LockSupport.parkNanos(espera);
+                continue;
+            }
+            // Si la rueda se retrasa (p. ej. por una pausa del GC) recupera los tics uno a uno
+            ticActual++;
+            colocarNuevos();
+            vencer();
+        }
+    }
+
+    private void colocarNuevos() {
+        Temporizador temporizador;
+        while ((temporizador = nuevos.poll()) != null) {
+            if (temporizador.cancelado) {
+                pendientes.decrementAndGet();
+                continue;
+            }
+            // Un plazo que ya pasó mientras esperaba en la cola vence en este mismo tic
+            int ranura = (int) (Math.max(temporizador.tic, ticActual) & mascara);
+            temporizador.siguiente = ranuras[ranura];
+            ranuras[ranura] = temporizador;
+        }
+    }
+
+    private void vencer() {
+        int ranura = (int) (ticActual & mascara);
+        Temporizador anterior = null;
+        Temporizador temporizador = ranuras[ranura];
+        while (temporizador != null) {
+            Temporizador siguiente = temporizador.siguiente;
+            boolean vence = temporizador.tic <= ticActual;
+            if (vence || temporizador.cancelado) {
+                // Quitarlo de la ranura antes de ejecutar la tarea, que puede programar otros
+                if (anterior == null) {
+                    ranuras[ranura] = siguiente;
+                } else {
+                    anterior.siguiente = siguiente;
+                }
+                temporizador.siguiente = null;
+                pendientes.decrementAndGet();
+                if (!temporizador.cancelado) {
+                    vencidos.increment();
+                    try {
+                        temporizador.tarea.run();
+                    } catch (RuntimeException e) {
+                        Registro.error("temporizador.error", e, "rueda", nombre);
+                    }
+                }
+            } else {
+                anterior = temporizador;
+            }
+            temporizador = siguiente;
+        }
+    }
+}
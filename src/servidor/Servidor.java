@@ -1,11 +1,21 @@
 package servidor;
 
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import comun.CanalTLS;
 
 public class Servidor {
     // Puerto por defecto
@@ -14,8 +24,14 @@ public class Servidor {
     // Estructura para almacenar los clientes conectados
     private static Map<String, ClienteHandler> clientesConectados = new ConcurrentHashMap<>();
     
+    // Cada usuario y cada sala reciben al registrarse un identificador entero denso; los manejadores
+    // se guardan en un arreglo indexado por él y las salas guardan sus miembros como mapa de bits,
+    // así que difundir a una sala no busca ningún nombre
+    private static final TablaIds<ClienteHandler> usuariosPorId = new TablaIds<>();
+    private static final TablaIds<Sala> salasPorId = new TablaIds<>();
+    
     // Estructura para almacenar las salas de chat
-    private static Map<String, Set<String>> salas = new ConcurrentHashMap<>();
+    private static Map<String, Sala> salas = new ConcurrentHashMap<>();
     
     // Estructura para almacenar las transferencias de archivos pendientes
     private static Map<String, TransferenciaArchivo> transferenciasPendientes = new ConcurrentHashMap<>();
@@ -28,38 +44,208 @@ public class Servidor {
     
     // Constantes para transferencia de archivos
     private static final String COMANDO_ARCHIVO = "/archivo";
-    private static final int TAMAÑO_BUFFER = 4096;
+    // Sin TLS el tamaño de los bloques lo decide AjusteSockets; con TLS, bloques mayores que un
+    // registro para cifrar y descifrar sin copias intermedias
+    private static final int TAMAÑO_BUFFER_TLS = 64 * 1024;
+    
+    // Archivo donde se guarda el estado al drenar y del que se restaura al arrancar
+    private static final Path ARCHIVO_ESTADO = Paths.get(Configuracion.texto("estado.archivo", "estado.snap"));
+    
+    // Tiempo máximo de espera por las transferencias en curso durante el drenado
+    private static final long MS_ESPERA_TRANSFERENCIAS = Configuracion.largo("drenado.msTransferencias", 30000);
+    
+    // Estado del drenado: mientras está activo no se aceptan conexiones ni transferencias nuevas
+    private static volatile boolean drenando = false;
+    private static final AtomicInteger transferenciasEnCurso = new AtomicInteger();
+    
+    // Sesiones reanudables por token: si la conexión se corta, el usuario conserva su nombre y sus
+    // salas durante el periodo de gracia y los mensajes que no recibió se le reenvían al volver
+    private static final Map<String, ClienteHandler> sesiones = new ConcurrentHashMap<>();
+    private static final String PREFIJO_REANUDAR = "REANUDAR:";
+    private static final long MS_GRACIA_SESION = Configuracion.largo("sesion.msGracia", 60000);
+    private static final int MAX_PERDIDOS = Configuracion.entero("sesion.maxPerdidos", 500);
+    private static final java.security.SecureRandom ALEATORIO = new java.security.SecureRandom();
+    
+    // TLS opcional en los dos puertos (chat.tls.activo); un único contexto para que las sesiones
+    // queden en su caché y las conexiones de archivos se reanuden sin handshake completo
+    private static SSLContext contextoTLS;
+    private static final int MS_HANDSHAKE = Configuracion.entero("tls.msHandshake", 10000);
+    
+    // Plazos en una rueda de temporizadores: caducidad de las transferencias que no se cargan o no se
+    // descargan (con su archivo de temp/), latidos PING/PONG que detectan conexiones muertas sin
+    // esperar al sistema operativo y fin del periodo de gracia de las sesiones en espera
+    private static final RuedaTemporizadores temporizadores = new RuedaTemporizadores("temporizadores",
+        Configuracion.largo("temporizadores.msTic", 100), Configuracion.entero("temporizadores.ranuras", 512));
+    private static final long MS_SIN_CARGA = Configuracion.largo("archivo.msSinCarga", 120000);
+    private static final long MS_SIN_DESCARGA = Configuracion.largo("archivo.msSinDescarga", 3600000);
+    private static final long MS_LATIDO = Configuracion.largo("latido.ms", 30000);
+    private static final long MS_ESPERA_PONG = Configuracion.largo("latido.msEspera", 10000);
+    
+    // Presupuesto de temp/: cada /archivo reserva su tamaño y las cargas simultáneas esperan turno
+    private static final CuotaTemporal cuota = new CuotaTemporal(Paths.get("temp"));
     
-    // Constructor
+    // Estados de presencia (/estado); los cambios se agrupan por sala y se difunden como mucho
+    // unas pocas veces por segundo. "escribiendo" caduca solo si el cliente deja de renovarlo
+    private static final PresenciaSalas presencia = new PresenciaSalas(temporizadores, Servidor::difundirEstados);
+    private static final List<String> ESTADOS = Arrays.asList(PresenciaSalas.ACTIVO, "ausente", "ocupado", PresenciaSalas.ESCRIBIENDO);
+    private static final long MS_ESCRIBIENDO = Configuracion.largo("estado.msEscribiendo", 5000);
+    
+    // Modo de salas grandes: con más de UMBRAL_GRANDE usuarios conectados deja de difundirse la lista
+    // global USUARIOS: (y los avisos de conexión a todos); los clientes reciben USUARIOS_PAGINADOS y
+    // piden los miembros de su sala por páginas con /miembros. En salas con más de UMBRAL_GRANDE
+    // miembros tampoco se anuncian entradas y salidas, y la salida de un miembro sólo se notifica a
+    // quienes lo tienen en la página que están viendo
+    private static final int UMBRAL_GRANDE = Configuracion.entero("grande.umbral", 500);
+    private static final int TAMAÑO_PAGINA_LISTAS = Configuracion.entero("grande.porPagina", 100);
+    private static final int MAX_VISIBLES = Configuracion.entero("grande.maxVisibles", 1000);
+    private static volatile boolean modoGrande;
+    
+    // Difusión opcional de los mensajes de sala por multicast en la red local (chat.multicast.activo)
+    private static DifusionMulticast multicast;
+    
+    // Historial de las salas con índice de texto completo para /buscar
+    private static final HistorialSalas historial = new HistorialSalas(Paths.get(Configuracion.texto("historial.directorio", "historial")));
+    private static final int MAX_PAGINAS_BUSQUEDA = Math.max(1, Configuracion.entero("historial.maxPaginas", 50));
+    
+    // Puerto de chat (el de archivos es el siguiente) y fin del servidor, para esperar()
+    private final int puerto;
+    private final CountDownLatch terminado = new CountDownLatch(1);
+    private boolean iniciado;
+    
+    // Arranque: instante de iniciar(), de la apertura de los puertos y de la primera conexión
+    // aceptada, para medir cuánto tarda un reinicio en volver a atender
+    private long nanosInicio;
+    private volatile long msHastaEscucha = -1;
+    private volatile long msHastaPrimeraConexion = -1;
+    private final AtomicBoolean primeraConexion = new AtomicBoolean();
+    
+    // Ejecución de entrenamiento para el archivo CDS: no lee ni guarda el estado de los reinicios
+    private static volatile boolean entrenamiento;
+    
+    // Constructor: sólo guarda el puerto; el servidor arranca con iniciar(). El estado del chat es
+    // estático, así que sólo puede haber un servidor por proceso
     public Servidor(int puerto) {
+        this.puerto = puerto;
+    }
+    
+    // Método para arrancar el servidor sin bloquear: abre los dos puertos antes que nada, prepara el
+    // estado imprescindible para atender (salas y transferencias restauradas) y empieza a aceptar en
+    // sus propios hilos. Desde la apertura el sistema ya encola las conexiones; el diagnóstico
+    // (direcciones IP de las interfaces) se hace en segundo plano. Si no se puede abrir algún puerto
+    // se cierra lo abierto y se lanza la excepción sin haber tocado el estado en disco
+    public synchronized void iniciar() throws IOException {
+        if (iniciado) {
+            throw new IllegalStateException("El servidor ya se inició");
+        }
+        nanosInicio = System.nanoTime();
+        
+        // Preparar TLS antes de abrir los puertos para no aceptar nunca conexiones sin cifrar por error
+        if (Configuracion.booleano("tls.activo", false)) {
+            contextoTLS = CanalTLS.crearContexto(Paths.get(Configuracion.texto("tls.almacen", "servidor.p12")),
+                Configuracion.texto("tls.clave", "").toCharArray(), null, null,
+                Configuracion.entero("tls.cacheSesiones", 10000), Configuracion.entero("tls.segundosSesion", 86400));
+            Registro.info("tls.activo", "almacen", Configuracion.texto("tls.almacen", "servidor.p12"));
+        }
+        
+        // Abrir el puerto de mensajes y el de transferencia de archivos
+        servidorSocket = new ServerSocket(puerto);
         try {
-            // Inicializar el servidor socket para mensajes
-            servidorSocket = new ServerSocket(puerto);
-            System.out.println("Servidor iniciado en el puerto: " + puerto);
-            
-            // Inicializar servidor socket para transferencia de archivos
             servidorSocketArchivos = new ServerSocket(puerto + 1);
-            System.out.println("Servidor de archivos iniciado en el puerto: " + (puerto + 1));
-            
-            // Mostrar las direcciones IP del servidor
-            mostrarDireccionesIP();
-            
-            // Inicializar salas predeterminadas
-            inicializarSalas();
-            
-            // Iniciar hilo para manejar transferencias de archivos
-            new Thread(() -> manejarTransferenciasArchivos()).start();
-            
-            // Iniciar el servidor de mensajes
-            iniciarServidor();
         } catch (IOException e) {
-            System.err.println("Error al iniciar el servidor: " + e.getMessage());
-            e.printStackTrace();
+            servidorSocket.close();
+            throw e;
+        }
+        iniciado = true;
+        msHastaEscucha = msDesdeArranqueJvm();
+        Metricas.indicador("arranque.ms_hasta_escucha", () -> msHastaEscucha);
+        Metricas.indicador("arranque.ms_hasta_primera_conexion", () -> msHastaPrimeraConexion);
+        Registro.info("servidor.escuchando", "puerto", puerto, "puertoArchivos", puerto + 1, "msDesdeJvm", msHastaEscucha,
+                      "msDesdeInicio", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosInicio),
+                      "cds", System.getProperty("java.vm.info", "").contains("sharing"));
+        
+        // Arrancar la rueda de temporizadores antes de restaurar transferencias que la usan
+        temporizadores.iniciar();
+        
+        // Preparar el multicast de las salas (sin cifrado, así que nunca junto con TLS)
+        multicast = DifusionMulticast.crear(puerto, contextoTLS != null);
+        if (multicast != null) {
+            multicast.iniciar(temporizadores);
+        }
+        
+        // Inicializar salas predeterminadas
+        inicializarSalas();
+        
+        // Restaurar salas y transferencias guardadas en el último drenado
+        if (!entrenamiento) {
+            restaurarEstado();
+        }
+        
+        // Abrir el historial de las salas (el índice se recupera en segundo plano)
+        try {
+            historial.iniciar();
+        } catch (IOException e) {
+            Registro.error("historial.error_inicio", e);
+        }
+        
+        // Drenar ordenadamente al recibir la señal de terminación o el comando "drenar" en consola
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drenar, "drenado"));
+        if (!entrenamiento) {
+            iniciarConsola();
+        }
+        
+        // Supervisar periódicamente las colas de salida para detectar consumidores lentos
+        iniciarSupervisorConexiones();
+        
+        // Aceptar transferencias de archivos y mensajes, cada puerto en su hilo
+        new Thread(this::manejarTransferenciasArchivos, "aceptador-archivos").start();
+        new Thread(this::iniciarServidor, "aceptador-chat").start();
+        
+        // Mostrar los puertos y las direcciones IP del servidor sin retrasar la aceptación
+        Thread diagnostico = new Thread(this::mostrarDireccionesIP, "diagnostico");
+        diagnostico.setDaemon(true);
+        diagnostico.start();
+    }
+    
+    // Método para detener el servidor ordenadamente, igual que el comando "drenar" de la consola;
+    // al volver ya no acepta conexiones y el estado está guardado
+    public void detener() {
+        drenar();
+    }
+    
+    // Método para esperar a que el servidor termine (por detener(), el drenado o un error al aceptar)
+    public void esperar() throws InterruptedException {
+        terminado.await();
+    }
+    
+    // Milisegundos desde el arranque de la JVM hasta la apertura de los puertos (-1 si aún no se abrieron)
+    public long getMsHastaEscucha() {
+        return msHastaEscucha;
+    }
+    
+    // Milisegundos desde el arranque de la JVM hasta la primera conexión aceptada (-1 si aún no hubo)
+    public long getMsHastaPrimeraConexion() {
+        return msHastaPrimeraConexion;
+    }
+    
+    // Milisegundos desde que arrancó el proceso; si el sistema no lo informa, desde iniciar()
+    private long msDesdeArranqueJvm() {
+        Optional<java.time.Instant> arranque = ProcessHandle.current().info().startInstant();
+        if (arranque.isPresent()) {
+            return System.currentTimeMillis() - arranque.get().toEpochMilli();
         }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosInicio);
+    }
+    
+    private void registrarPrimeraConexion() {
+        msHastaPrimeraConexion = msDesdeArranqueJvm();
+        Registro.info("servidor.primera_conexion", "msDesdeJvm", msHastaPrimeraConexion,
+                      "msDesdeInicio", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosInicio));
     }
     
     // Método para mostrar las direcciones IP del servidor
     private void mostrarDireccionesIP() {
+        System.out.println("Servidor iniciado en el puerto: " + puerto);
+        System.out.println("Servidor de archivos iniciado en el puerto: " + (puerto + 1));
         try {
             System.out.println("\nDirecciones IP disponibles para conexión:");
             System.out.println("==========================================");
@@ -89,71 +275,166 @@ public class Servidor {
             
             System.out.println("==========================================\n");
         } catch (SocketException e) {
-            System.err.println("Error al obtener interfaces de red: " + e.getMessage());
+            Registro.aviso("servidor.error_interfaces", "error", e.getMessage());
+        }
+    }
+    
+    // Método para registrar las métricas de las conexiones y expulsar periódicamente las que están muertas
+    private void iniciarSupervisorConexiones() {
+        Metricas.indicador("conexiones.sanas", () -> contarConexiones(ColaSalida.Estado.SANA));
+        Metricas.indicador("conexiones.retrasadas", () -> contarConexiones(ColaSalida.Estado.RETRASADA));
+        Metricas.indicador("conexiones.muertas", () -> contarConexiones(ColaSalida.Estado.MUERTA));
+        Metricas.indicador("salida.pendientes_total", () -> {
+            long total = 0;
+            for (ClienteHandler cliente : clientesConectados.values()) {
+                total += cliente.salida.getPendientes();
+            }
+            return total;
+        });
+        Metricas.indicador("salida.pendientes_max", () -> {
+            long maximo = 0;
+            for (ClienteHandler cliente : clientesConectados.values()) {
+                maximo = Math.max(maximo, cliente.salida.getPendientes());
+            }
+            return maximo;
+        });
+        Metricas.indicador("sesiones.en_espera", () -> {
+            long cuenta = 0;
+            for (ClienteHandler cliente : clientesConectados.values()) {
+                if (cliente.suspendido) {
+                    cuenta++;
+                }
+            }
+            return cuenta;
+        });
+        Metricas.indicador("usuarios.ids_en_uso", usuariosPorId::getEnUso);
+        Metricas.indicador("usuarios.ids_capacidad", usuariosPorId::getCapacidad);
+        Metricas.indicador("salas.ids_en_uso", salasPorId::getEnUso);
+        Metricas.indicador("temporizadores.pendientes", temporizadores::getPendientes);
+        // Recolecciones y tiempo en pausas del recolector, para ver el efecto de la reserva de buffers
+        Metricas.indicador("jvm.gc_colecciones", () -> {
+            long total = 0;
+            for (GarbageCollectorMXBean recolector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total += Math.max(0, recolector.getCollectionCount());
+            }
+            return total;
+        });
+        Metricas.indicador("jvm.gc_ms", () -> {
+            long total = 0;
+            for (GarbageCollectorMXBean recolector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total += Math.max(0, recolector.getCollectionTime());
+            }
+            return total;
+        });
+        
+        ScheduledExecutorService supervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "supervisor-conexiones");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        // Las sesiones en espera caducan con su propio temporizador; aquí sólo se expulsan las muertas
+        supervisor.scheduleWithFixedDelay(() -> {
+            for (ClienteHandler cliente : clientesConectados.values()) {
+                if (!cliente.suspendido && cliente.salida.getEstado() == ColaSalida.Estado.MUERTA) {
+                    cliente.expulsar();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+    
+    private static long contarConexiones(ColaSalida.Estado estado) {
+        long cuenta = 0;
+        for (ClienteHandler cliente : clientesConectados.values()) {
+            if (!cliente.suspendido && cliente.salida.getEstado() == estado) {
+                cuenta++;
+            }
         }
+        return cuenta;
     }
     
     // Método para manejar transferencias de archivos
     private void manejarTransferenciasArchivos() {
+        // Los hilos se reutilizan entre transferencias para que conserven su caché de buffers
+        AtomicInteger numeroHilo = new AtomicInteger();
+        ExecutorService hilosArchivos = Executors.newCachedThreadPool(r -> new Thread(r, "archivo-" + numeroHilo.incrementAndGet()));
         try {
             while (true) {
                 Socket socketArchivo = servidorSocketArchivos.accept();
                 // Manejar cada transferencia en un hilo separado para no bloquear
-                new Thread(() -> procesarTransferenciaArchivo(socketArchivo)).start();
+                hilosArchivos.execute(() -> procesarTransferenciaArchivo(socketArchivo));
             }
         } catch (IOException e) {
-            System.err.println("Error en el servidor de archivos: " + e.getMessage());
+            if (!drenando) {
+                Registro.error("archivos.error_servidor", e);
+            }
         }
     }
     
     // Método para procesar una transferencia de archivo
     private void procesarTransferenciaArchivo(Socket socketArchivo) {
+        transferenciasEnCurso.incrementAndGet();
+        CanalTLS cifrado = null;
         try {
             // Establecer tiempo de espera para evitar bloqueos indefinidos
             socketArchivo.setSoTimeout(30000); // 30 segundos
             
-            BufferedReader entrada = new BufferedReader(new InputStreamReader(socketArchivo.getInputStream()));
-            String identificacion = entrada.readLine();
+            InputStream is = socketArchivo.getInputStream();
+            OutputStream os = socketArchivo.getOutputStream();
+            if (contextoTLS != null) {
+                cifrado = abrirTLS(socketArchivo);
+                is = cifrado.getEntrada();
+                os = cifrado.getSalida();
+            }
+            
+            // Leer la identificación sin buffer para no consumir los bytes del archivo que le siguen
+            String identificacion = leerLineaIdentificacion(is);
             
             if (identificacion == null) {
                 socketArchivo.close();
                 return;
             }
             
-            System.out.println("Procesando identificación para transferencia: " + identificacion);
+            Registro.depuracion("archivo.identificacion", "id", identificacion);
             
             // Verificar si es un envío o una recepción
             if (identificacion.contains("_RECIBIR_")) {
-                // Cliente solicita recibir un archivo
+                // Cliente solicita recibir un archivo: receptor_RECIBIR_emisor[#id]
                 String[] partes = identificacion.split("_RECIBIR_");
                 String receptor = partes[0];
                 String emisor = partes[1];
+                long idTransferencia = -1;
+                int almohadilla = emisor.lastIndexOf('#');
+                if (almohadilla > 0) {
+                    try {
+                        idTransferencia = Long.parseLong(emisor.substring(almohadilla + 1));
+                        emisor = emisor.substring(0, almohadilla);
+                    } catch (NumberFormatException e) {
+                        // El '#' es parte del nombre
+                    }
+                }
                 
-                // Buscar la transferencia pendiente
-                String clave = emisor + "_" + receptor;
-                
-                System.out.println("Cliente solicita recibir archivo. Clave de búsqueda: " + clave);
-                
-                TransferenciaArchivo transferencia = transferenciasPendientes.get(clave);
+                // Buscar la transferencia pendiente (sin identificador, la más antigua de ese emisor)
+                String clave = idTransferencia >= 0 ? claveDescarga(emisor, receptor, idTransferencia)
+                                                    : descargaMasAntigua(emisor, receptor);
+                TransferenciaArchivo transferencia = clave != null ? transferenciasPendientes.remove(clave) : null;
                 
                 if (transferencia != null) {
-                    System.out.println("Transferencia encontrada, enviando al cliente " + receptor);
+                    Registro.depuracion("archivo.descarga", "clave", clave, "receptor", receptor);
                     
                     // Enviar el archivo al receptor sin notificación previa
-                    enviarArchivoAlCliente(socketArchivo, transferencia);
-                    transferenciasPendientes.remove(clave);
+                    enviarArchivoAlCliente(os, transferencia, ajusteTransferencia(socketArchivo, true, receptor));
                 } else {
-                    System.out.println("No se encontró la transferencia pendiente para la clave: " + clave);
+                    Registro.aviso("archivo.descarga_sin_transferencia", "clave", clave);
                 }
             } else {                // Cliente envía un archivo
                 String emisor = identificacion;
                 
-                System.out.println("Cliente " + emisor + " está enviando un archivo");
-                
                 // Buscar todas las transferencias pendientes para este emisor
                 // Obtener una lista con todas las claves de transferencias pendientes para este emisor
-                List<String> clavesEmisores = transferenciasPendientes.keySet().stream()
-                    .filter(k -> k.startsWith(emisor + "_"))
+                // (solo las que aún no se han cargado; las cargadas esperan a sus receptores)
+                List<String> clavesEmisores = transferenciasPendientes.entrySet().stream()
+                    .filter(e -> e.getKey().startsWith(emisor + "_") && !e.getValue().isCargado())
+                    .map(Map.Entry::getKey)
                     .collect(Collectors.toList());
                 
                 if (!clavesEmisores.isEmpty()) {
@@ -161,162 +442,584 @@ public class Servidor {
                     String clave = clavesEmisores.get(0);
                     TransferenciaArchivo transferencia = transferenciasPendientes.get(clave);
                     
-                    System.out.println("Transferencia pendiente encontrada: " + clave);
+                    Registro.depuracion("archivo.carga", "clave", clave, "emisor", emisor);
+                    // Mientras se carga no debe caducar; si la carga falla la entrada se elimina igualmente
+                    transferencia.cancelarCaducidad();
+                    
+                    // Recibir el archivo del emisor cuando haya turno de carga
+                    boolean recibido = false;
+                    if (cuota.iniciarCarga()) {
+                        try {
+                            recibido = recibirArchivoDeCliente(is, transferencia, ajusteTransferencia(socketArchivo, false, emisor));
+                        } finally {
+                            cuota.terminarCarga();
+                        }
+                    } else {
+                        Registro.aviso("archivo.sin_turno_carga", "clave", clave);
+                        ClienteHandler cliente = clientesConectados.get(emisor);
+                        if (cliente != null) {
+                            cliente.enviarMensaje("Error: El servidor está ocupado con otras cargas; vuelve a enviar "
+                                                  + transferencia.getNombreArchivo() + " más tarde.");
+                        }
+                    }
+                    if (!recibido) {
+                        transferenciasPendientes.remove(clave, transferencia);
+                        transferencia.liberarEspacio();
+                        return;
+                    }
+                    
+                    // Registrar una entrada por receptor para que cada uno pueda descargar el archivo
+                    boolean paraSala = transferencia.esParaSala();
+                    List<String> receptores = new ArrayList<>();
+                    if (paraSala) {
+                        salas.get(transferencia.getDestinatario()).miembros.paraCada(id -> {
+                            ClienteHandler cliente = usuariosPorId.get(id);
+                            if (cliente != null && !cliente.nombreUsuario.equals(emisor)) {
+                                receptores.add(cliente.nombreUsuario);
+                            }
+                        });
+                    } else {
+                        receptores.add(transferencia.getDestinatario());
+                    }
+                    transferencia.setReceptoresPendientes(receptores.size());
+                    for (String receptor : receptores) {
+                        transferenciasPendientes.put(claveDescarga(emisor, receptor, transferencia.getId()), transferencia);
+                    }
+                    
+                    // La entrada de carga ya no es necesaria: cada receptor tiene su propia clave de descarga
+                    transferenciasPendientes.remove(clave, transferencia);
                     
-                    // Recibir el archivo del emisor
-                    recibirArchivoDeCliente(socketArchivo, transferencia);
-                      // Si es mensaje para una sala, notificar a todos los usuarios de la sala
-                    if (transferencia.esParaSala()) {
-                        String sala = transferencia.getDestinatario();
-                        notificarArchivoASala(sala, transferencia.getNombreArchivo(), transferencia.getTamaño(), emisor);
+                    if (receptores.isEmpty()) {
+                        Files.deleteIfExists(Paths.get(transferencia.getRutaArchivo()));
+                        transferencia.liberarEspacio();
                     } else {
-                        // Notificar al destinatario que hay un archivo disponible sin pedir confirmación
-                        String destinatario = transferencia.getDestinatario();
-                        notificarArchivoAUsuario(destinatario, transferencia.getNombreArchivo(), transferencia.getTamaño(), emisor);
+                        // Desde ahora ocupa disco y puede desalojarse si hace falta sitio para otro
+                        transferencia.getReserva().confirmar(() -> caducarDescarga(transferencia));
+                        // Purgar las descargas y el archivo si los receptores no lo recogen a tiempo
+                        transferencia.setCaducidad(temporizadores.programar(MS_SIN_DESCARGA, () -> caducarDescarga(transferencia)));
                     }
                     
-                    // Eliminar la transferencia pendiente después de procesarla
-                    transferenciasPendientes.remove(clave);
+                    // Si es mensaje para una sala, notificar a todos los usuarios de la sala
+                    if (paraSala) {
+                        notificarArchivoASala(transferencia.getDestinatario(), transferencia);
+                    } else {
+                        // Notificar al destinatario que hay un archivo disponible sin pedir confirmación
+                        notificarArchivoAUsuario(transferencia.getDestinatario(), transferencia);
+                    }
                 } else {
-                    System.out.println("No se encontró transferencia pendiente para el emisor: " + emisor);
+                    Registro.aviso("archivo.carga_sin_transferencia", "emisor", emisor);
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error procesando transferencia de archivo: " + e.getMessage());
-            e.printStackTrace();
+            Registro.error("archivo.error_transferencia", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            // Asegurarse de cerrar el socket de archivo en todos los casos
+            // Asegurarse de cerrar el socket de archivo en todos los casos (con TLS, avisando del cierre)
             try {
-                if (socketArchivo != null && !socketArchivo.isClosed()) {
+                if (cifrado != null) {
+                    cifrado.close();
+                } else if (socketArchivo != null && !socketArchivo.isClosed()) {
                     socketArchivo.close();
                 }
             } catch (IOException e) {
-                System.err.println("Error cerrando socket de archivo: " + e.getMessage());
+                Registro.error("archivo.error_cierre", e);
+            }
+            transferenciasEnCurso.decrementAndGet();
+        }
+    }
+    
+    // Método para hacer el handshake TLS de una conexión aceptada; se llama desde el hilo de la
+    // propia conexión para que un cliente lento no frene la aceptación de los demás
+    private static CanalTLS abrirTLS(Socket socket) throws IOException {
+        int espera = socket.getSoTimeout();
+        socket.setSoTimeout(MS_HANDSHAKE);
+        CanalTLS canal = CanalTLS.servidor(socket, contextoTLS);
+        socket.setSoTimeout(espera);
+        Metricas.incrementar(canal.isReanudada() ? "tls.reanudadas" : "tls.handshakes_completos");
+        Metricas.sumar("tls.us_handshake", TimeUnit.NANOSECONDS.toMicros(canal.getNanosHandshake()));
+        Registro.depuracion("tls.handshake", "origen", socket.getRemoteSocketAddress(), "protocolo", canal.getProtocolo(),
+                            "reanudada", canal.isReanudada(), "us", TimeUnit.NANOSECONDS.toMicros(canal.getNanosHandshake()));
+        return canal;
+    }
+    
+    // Método para preparar el ajuste de una transferencia con el RTT de la conexión de chat del usuario
+    private static AjusteSockets ajusteTransferencia(Socket socket, boolean envio, String usuario) {
+        ClienteHandler cliente = clientesConectados.get(usuario);
+        return AjusteSockets.paraTransferencia(socket, envio, cliente != null ? cliente.nanosRtt : 0,
+                                               contextoTLS != null ? TAMAÑO_BUFFER_TLS : 0);
+    }
+    
+    // Método para leer la línea de identificación byte a byte (sin adelantarse al contenido binario)
+    private String leerLineaIdentificacion(InputStream is) throws IOException {
+        ByteArrayOutputStream linea = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                linea.write(b);
             }
         }
+        if (b == -1 && linea.size() == 0) {
+            return null;
+        }
+        return linea.toString();
     }
     
-    // Método para recibir un archivo de un cliente
-    private void recibirArchivoDeCliente(Socket socket, TransferenciaArchivo transferencia) {
+    // Método para recibir un archivo de un cliente (devuelve true si se recibió completo)
+    private boolean recibirArchivoDeCliente(InputStream is, TransferenciaArchivo transferencia, AjusteSockets ajuste) {
         try {
             // Crear directorio temporal si no existe
             Path directorioTemp = Paths.get("temp");
-            if (!Files.exists(directorioTemp)) {
-                Files.createDirectory(directorioTemp);
-            }
+            Files.createDirectories(directorioTemp);
             
             // Crear archivo temporal para almacenar los datos
             String nombreArchivo = transferencia.getNombreArchivo();
             long tamaño = transferencia.getTamaño();
             
-            Path archivoTemp = Paths.get("temp", transferencia.getEmisor() + "_" + nombreArchivo);
-            FileOutputStream fos = new FileOutputStream(archivoTemp.toFile());
+            // Con el identificador, dos envíos del mismo archivo no comparten ruta
+            Path archivoTemp = Paths.get("temp", transferencia.getEmisor() + "_" + transferencia.getId() + "_" + nombreArchivo);
             
-            // Leer datos del socket
-            InputStream is = socket.getInputStream();
-            byte[] buffer = new byte[TAMAÑO_BUFFER];
+            // Leer datos del socket calculando a la vez el hash del contenido
+            MessageDigest resumen = nuevoResumen();
+            ByteBuffer buffer = PoolBuffers.COMPARTIDO.tomar(ajuste.bloque());
+            byte[] datos = buffer.array();
             int bytesLeidos;
             long totalLeido = 0;
             
-            while (totalLeido < tamaño && (bytesLeidos = is.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesLeidos);
-                totalLeido += bytesLeidos;
+            try (FileChannel archivo = FileChannel.open(archivoTemp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (totalLeido < tamaño && (bytesLeidos = is.read(datos, 0, Math.min(datos.length, ajuste.bloque()))) != -1) {
+                    buffer.clear().limit(bytesLeidos);
+                    while (buffer.hasRemaining()) {
+                        archivo.write(buffer);
+                    }
+                    resumen.update(datos, 0, bytesLeidos);
+                    totalLeido += bytesLeidos;
+                    // Cambiar a un buffer mayor si la medición de los primeros bloques lo aconseja
+                    ajuste.registrar(bytesLeidos);
+                    if (ajuste.bloque() > datos.length) {
+                        PoolBuffers.COMPARTIDO.devolver(buffer);
+                        buffer = PoolBuffers.COMPARTIDO.tomar(ajuste.bloque());
+                        datos = buffer.array();
+                    }
+                }
+            } finally {
+                PoolBuffers.COMPARTIDO.devolver(buffer);
             }
             
-            fos.close();
+            if (totalLeido < tamaño) {
+                Registro.aviso("archivo.incompleto", "emisor", transferencia.getEmisor(), "recibidos", totalLeido, "tamaño", tamaño);
+                Files.deleteIfExists(archivoTemp);
+                return false;
+            }
             
-            // Actualizar la transferencia con la ruta del archivo temporal
+            // Actualizar la transferencia con la ruta del archivo temporal y su hash
             transferencia.setRutaArchivo(archivoTemp.toString());
+            transferencia.setHash(hexadecimal(resumen.digest()));
+            transferencia.setCargado(true);
             
-            System.out.println("Archivo recibido y almacenado temporalmente: " + archivoTemp);
+            Registro.info("archivo.recibido", "ruta", archivoTemp, "bytes", totalLeido);
+            return true;
+        } catch (IOException e) {
+            Registro.error("archivo.error_recepcion", e, "emisor", transferencia.getEmisor());
+            return false;
+        }
+    }
+    
+    private static MessageDigest nuevoResumen() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Toda JVM debe incluir SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String hexadecimal(byte[] bytes) {
+        StringBuilder texto = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            texto.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return texto.toString();
+    }
+    
+    // Clave de la descarga pendiente de un receptor: cada transferencia tiene la suya, así que los
+    // archivos de un mismo emisor a un mismo receptor no se sustituyen entre sí
+    private static String claveDescarga(String emisor, String receptor, long idTransferencia) {
+        return emisor + "_" + receptor + "#" + idTransferencia;
+    }
+    
+    // Receptor de una clave de descarga de ese emisor, o null si la clave no es de descarga (p. ej.
+    // la de una carga anunciada con /archivo, que no lleva id)
+    private static String receptorDeClave(String clave, String emisor) {
+        int almohadilla = clave.lastIndexOf('#');
+        if (!clave.startsWith(emisor + "_") || almohadilla <= emisor.length()) {
+            return null;
+        }
+        return clave.substring(emisor.length() + 1, almohadilla);
+    }
+    
+    // Clave de la descarga pendiente más antigua de un emisor a un receptor, o null si no hay
+    private static String descargaMasAntigua(String emisor, String receptor) {
+        String prefijo = emisor + "_" + receptor + "#";
+        String clave = null;
+        long menor = Long.MAX_VALUE;
+        for (Map.Entry<String, TransferenciaArchivo> entrada : transferenciasPendientes.entrySet()) {
+            TransferenciaArchivo transferencia = entrada.getValue();
+            if (transferencia.isCargado() && transferencia.getId() < menor
+                    && entrada.getKey().equals(prefijo + transferencia.getId())) {
+                menor = transferencia.getId();
+                clave = entrada.getKey();
+            }
+        }
+        return clave;
+    }
+    
+    // Método para liberar la descarga pendiente de un receptor que ya tiene el archivo (mismo hash)
+    private static void omitirDescarga(String emisor, String receptor, String hash) throws IOException {
+        String clave = null;
+        TransferenciaArchivo transferencia = null;
+        for (Map.Entry<String, TransferenciaArchivo> entrada : transferenciasPendientes.entrySet()) {
+            TransferenciaArchivo candidata = entrada.getValue();
+            if (candidata.isCargado() && hash.equals(candidata.getHash())
+                    && entrada.getKey().equals(claveDescarga(emisor, receptor, candidata.getId()))) {
+                clave = entrada.getKey();
+                transferencia = candidata;
+                break;
+            }
+        }
+        if (transferencia == null || !transferenciasPendientes.remove(clave, transferencia)) {
+            return;
+        }
+        Registro.depuracion("archivo.omitido", "clave", clave, "bytes", transferencia.getTamaño());
+        Metricas.incrementar("archivos.omitidos");
+        Metricas.sumar("archivos.bytes_ahorrados", transferencia.getTamaño());
+        
+        // Eliminar archivo temporal si era el último receptor pendiente
+        if (transferencia.receptorAtendido()) {
+            transferencia.cancelarCaducidad();
+            Files.deleteIfExists(Paths.get(transferencia.getRutaArchivo()));
+            transferencia.liberarEspacio();
+        }
+    }
+    
+    // Método para descartar una transferencia anunciada con /archivo cuyo emisor nunca envió el archivo
+    private static void caducarCarga(String clave, TransferenciaArchivo transferencia) {
+        if (transferencia.isCargado() || !transferenciasPendientes.remove(clave, transferencia)) {
+            return;
+        }
+        transferencia.liberarEspacio();
+        Registro.info("archivo.caducado", "fase", "carga", "clave", clave, "nombre", transferencia.getNombreArchivo());
+        Metricas.incrementar("archivos.caducados");
+        ClienteHandler emisor = clientesConectados.get(transferencia.getEmisor());
+        if (emisor != null) {
+            emisor.enviarMensaje("Error: La transferencia de " + transferencia.getNombreArchivo()
+                                 + " caducó porque no se recibió el archivo.");
+        }
+    }
+    
+    // Método para purgar una transferencia cargada que sus receptores no descargaron a tiempo,
+    // junto con su archivo de temp/ (la ruta lleva el id de la transferencia y no se comparte)
+    private static void caducarDescarga(TransferenciaArchivo transferencia) {
+        // Si la purga es un desalojo de la cuota, el plazo sigue programado y volvería a purgarla
+        transferencia.cancelarCaducidad();
+        int purgadas = 0;
+        for (Map.Entry<String, TransferenciaArchivo> entrada : transferenciasPendientes.entrySet()) {
+            if (entrada.getValue() == transferencia && transferenciasPendientes.remove(entrada.getKey(), transferencia)) {
+                purgadas++;
+            }
+        }
+        try {
+            Files.deleteIfExists(Paths.get(transferencia.getRutaArchivo()));
         } catch (IOException e) {
-            System.err.println("Error al recibir archivo: " + e.getMessage());
+            Registro.error("archivo.error_caducidad", e, "ruta", transferencia.getRutaArchivo());
         }
+        transferencia.liberarEspacio();
+        Registro.info("archivo.caducado", "fase", "descarga", "emisor", transferencia.getEmisor(),
+                      "nombre", transferencia.getNombreArchivo(), "receptores", purgadas);
+        Metricas.incrementar("archivos.caducados");
     }
     
     // Método para enviar un archivo a un cliente
-    private void enviarArchivoAlCliente(Socket socket, TransferenciaArchivo transferencia) {
+    private void enviarArchivoAlCliente(OutputStream os, TransferenciaArchivo transferencia, AjusteSockets ajuste) {
         try {
             // Verificar que el archivo existe
             Path archivoTemp = Paths.get(transferencia.getRutaArchivo());
             if (!Files.exists(archivoTemp)) {
-                System.err.println("Archivo no encontrado: " + archivoTemp);
+                Registro.aviso("archivo.no_encontrado", "ruta", archivoTemp);
                 return;
             }
             
             // Leer archivo y enviarlo por el socket
-            FileInputStream fis = new FileInputStream(archivoTemp.toFile());
-            OutputStream os = socket.getOutputStream();
-            
-            byte[] buffer = new byte[TAMAÑO_BUFFER];
-            int bytesLeidos;
-            
-            while ((bytesLeidos = fis.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesLeidos);
+            ByteBuffer buffer = PoolBuffers.COMPARTIDO.tomar(ajuste.bloque());
+            try (FileChannel archivo = FileChannel.open(archivoTemp, StandardOpenOption.READ)) {
+                buffer.limit(Math.min(buffer.capacity(), ajuste.bloque()));
+                while (archivo.read(buffer) != -1) {
+                    int leidos = buffer.position();
+                    os.write(buffer.array(), 0, leidos);
+                    ajuste.registrar(leidos);
+                    if (ajuste.bloque() > buffer.capacity()) {
+                        PoolBuffers.COMPARTIDO.devolver(buffer);
+                        buffer = PoolBuffers.COMPARTIDO.tomar(ajuste.bloque());
+                    }
+                    buffer.clear().limit(Math.min(buffer.capacity(), ajuste.bloque()));
+                }
+                os.flush();
+            } finally {
+                PoolBuffers.COMPARTIDO.devolver(buffer);
             }
             
-            os.flush();
-            fis.close();
+            Registro.info("archivo.entregado", "nombre", transferencia.getNombreArchivo(), "emisor", transferencia.getEmisor());
             
-            System.out.println("Archivo enviado al cliente: " + transferencia.getDestinatario());
-            
-            // Eliminar archivo temporal después de enviarlo
-            Files.deleteIfExists(archivoTemp);
+            // Eliminar archivo temporal cuando el último receptor lo haya descargado
+            if (transferencia.receptorAtendido()) {
+                transferencia.cancelarCaducidad();
+                Files.deleteIfExists(archivoTemp);
+                transferencia.liberarEspacio();
+            }
         } catch (IOException e) {
-            System.err.println("Error al enviar archivo al cliente: " + e.getMessage());
+            Registro.error("archivo.error_envio", e, "nombre", transferencia.getNombreArchivo());
         }
     }
     
     // Método para notificar a un usuario que hay un archivo disponible
-    private void notificarArchivoAUsuario(String usuario, String nombreArchivo, long tamaño, String remitente) {
+    private void notificarArchivoAUsuario(String usuario, TransferenciaArchivo transferencia) {
         ClienteHandler destinatario = clientesConectados.get(usuario);
         if (destinatario != null) {
             // Enviar la notificación sin solicitar confirmación
-            destinatario.enviarMensaje("ARCHIVO:" + remitente + ":" + nombreArchivo + ":" + tamaño);
+            destinatario.enviarMensaje(transferencia.getAnuncio());
         }
     }
     
     // Método para notificar a todos los usuarios de una sala que hay un archivo disponible
-    private void notificarArchivoASala(String sala, String nombreArchivo, long tamaño, String remitente) {
-        if (salas.containsKey(sala)) {
-            for (String usuario : salas.get(sala)) {
+    private void notificarArchivoASala(String sala, TransferenciaArchivo transferencia) {
+        Sala destino = salas.get(sala);
+        if (destino != null) {
+            destino.miembros.paraCada(id -> {
+                ClienteHandler cliente = usuariosPorId.get(id);
                 // No notificar al remitente
-                if (!usuario.equals(remitente)) {
-                    ClienteHandler cliente = clientesConectados.get(usuario);
-                    if (cliente != null) {
-                        // Enviar la notificación sin solicitar confirmación
-                        cliente.enviarMensaje("ARCHIVO:" + remitente + ":" + nombreArchivo + ":" + tamaño);
-                    }
+                if (cliente != null && !cliente.nombreUsuario.equals(transferencia.getEmisor())) {
+                    // Enviar la notificación sin solicitar confirmación
+                    cliente.enviarMensaje(transferencia.getAnuncio());
                 }
-            }
+            });
         }
     }
       // Método para inicializar las salas predeterminadas
     private void inicializarSalas() {
-        salas.put("Sala-General", new CopyOnWriteArraySet<>());
-        salas.put("Java-Developers", new CopyOnWriteArraySet<>());
-        salas.put("Networking", new CopyOnWriteArraySet<>());
-        salas.put("ESCOM-Alumnos", new CopyOnWriteArraySet<>());
-        System.out.println("Salas inicializadas: " + salas.keySet());
+        crearSala("Sala-General");
+        crearSala("Java-Developers");
+        crearSala("Networking");
+        crearSala("ESCOM-Alumnos");
+        Registro.info("salas.inicializadas", "salas", salas.keySet());
     }
     
     // Método para iniciar el servidor y esperar conexiones
     private void iniciarServidor() {
         try {
             while (true) {
-                System.out.println("Esperando conexiones...");
                 Socket clienteSocket = servidorSocket.accept();
-                System.out.println("Nueva conexión desde: " + clienteSocket.getInetAddress().getHostAddress());
+                if (!primeraConexion.get() && primeraConexion.compareAndSet(false, true)) {
+                    registrarPrimeraConexion();
+                }
+                Registro.depuracion("conexion.nueva", "origen", clienteSocket.getInetAddress().getHostAddress());
                 
                 // Crear un nuevo hilo para manejar la conexión
                 ClienteHandler clienteHandler = new ClienteHandler(clienteSocket);
                 new Thread(clienteHandler).start();
             }
         } catch (IOException e) {
-            System.err.println("Error en la conexión: " + e.getMessage());
-            e.printStackTrace();
+            // Al drenar se cierra el socket a propósito para dejar de aceptar conexiones
+            if (!drenando) {
+                Registro.error("servidor.error_conexion", e);
+            }
         } finally {
-            cerrarServidor();
+            if (!drenando) {
+                cerrarServidor();
+                terminado.countDown();
+            }
+        }
+    }
+    
+    // Método para leer comandos de administración desde la consola
+    private void iniciarConsola() {
+        Thread consola = new Thread(() -> {
+            try {
+                BufferedReader lector = new BufferedReader(new InputStreamReader(System.in));
+                String linea;
+                while ((linea = lector.readLine()) != null) {
+                    if (linea.trim().equalsIgnoreCase("drenar")) {
+                        drenar();
+                        System.exit(0);
+                    }
+                }
+            } catch (IOException e) {
+                Registro.aviso("consola.error", "error", e.getMessage());
+            }
+        }, "consola");
+        consola.setDaemon(true);
+        consola.start();
+    }
+    
+    // Método para drenar el servidor antes de un reinicio: deja de aceptar conexiones, avisa a los
+    // clientes, espera las transferencias en curso, guarda el estado y vacía las colas de salida
+    private synchronized void drenar() {
+        if (drenando) {
+            return;
+        }
+        drenando = true;
+        long inicio = System.nanoTime();
+        Registro.info("drenado.inicio", "clientes", clientesConectados.size(), "transferencias", transferenciasEnCurso.get());
+        
+        // Dejar de aceptar conexiones de chat
+        try {
+            if (servidorSocket != null) {
+                servidorSocket.close();
+            }
+        } catch (IOException e) {
+            Registro.error("drenado.error_cierre", e);
+        }
+        
+        // Avisar a los clientes para que se vuelvan a conectar
+        for (ClienteHandler cliente : clientesConectados.values()) {
+            cliente.enviarMensaje("SERVIDOR_REINICIO: El servidor se está reiniciando. Vuelve a conectarte en unos segundos.");
+        }
+        
+        // Esperar a que terminen las transferencias de archivos en curso
+        long limite = System.currentTimeMillis() + MS_ESPERA_TRANSFERENCIAS;
+        while (transferenciasEnCurso.get() > 0 && System.currentTimeMillis() < limite) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        try {
+            if (servidorSocketArchivos != null) {
+                servidorSocketArchivos.close();
+            }
+        } catch (IOException e) {
+            Registro.error("drenado.error_cierre", e);
+        }
+        
+        // Guardar salas y transferencias pendientes
+        if (!entrenamiento) {
+            guardarEstado();
+        }
+        
+        // Indexar lo pendiente y volcar el índice del historial a disco
+        historial.cerrar();
+        
+        // Vaciar las colas de salida y cerrar las conexiones (las sesiones en espera no sobreviven al reinicio)
+        for (ClienteHandler cliente : clientesConectados.values()) {
+            cliente.salida.cerrar(true);
+        }
+        sesiones.clear();
+        limite = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < limite && clientesConectados.values().stream().anyMatch(c -> c.salida.getPendientes() > 0)) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        
+        Registro.info("drenado.fin", "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+        terminado.countDown();
+    }
+    
+    // Método para guardar la instantánea del estado
+    private void guardarEstado() {
+        InstantaneaEstado estado = new InstantaneaEstado();
+        estado.salas.addAll(salas.keySet());
+        
+        // Agrupar las claves por transferencia: una transferencia de sala tiene una clave por receptor
+        Map<TransferenciaArchivo, List<String>> receptores = new IdentityHashMap<>();
+        for (Map.Entry<String, TransferenciaArchivo> entrada : transferenciasPendientes.entrySet()) {
+            TransferenciaArchivo transferencia = entrada.getValue();
+            // Las que no se llegaron a cargar no tienen archivo que conservar, y sólo las claves de
+            // descarga identifican a un receptor
+            String receptor = transferencia.isCargado() ? receptorDeClave(entrada.getKey(), transferencia.getEmisor()) : null;
+            if (receptor != null) {
+                receptores.computeIfAbsent(transferencia, t -> new ArrayList<>()).add(receptor);
+            }
+        }
+        for (Map.Entry<TransferenciaArchivo, List<String>> entrada : receptores.entrySet()) {
+            estado.transferencias.add(new InstantaneaEstado.TransferenciaGuardada(entrada.getKey(), entrada.getValue()));
+        }
+        
+        try {
+            estado.guardar(ARCHIVO_ESTADO);
+            Registro.info("estado.guardado", "archivo", ARCHIVO_ESTADO, "salas", estado.salas.size(),
+                          "transferencias", estado.transferencias.size());
+        } catch (IOException e) {
+            Registro.error("estado.error_guardado", e, "archivo", ARCHIVO_ESTADO);
+        }
+    }
+    
+    // Método para restaurar la instantánea del estado y limpiar los archivos huérfanos de temp/
+    private void restaurarEstado() {
+        long inicio = System.nanoTime();
+        Set<Path> archivosEnUso = new HashSet<>();
+        int restauradas = 0;
+        try {
+            InstantaneaEstado estado = InstantaneaEstado.cargar(ARCHIVO_ESTADO);
+            if (estado != null) {
+                for (String sala : estado.salas) {
+                    crearSala(sala);
+                }
+                for (InstantaneaEstado.TransferenciaGuardada guardada : estado.transferencias) {
+                    TransferenciaArchivo transferencia = guardada.transferencia;
+                    Path ruta = Paths.get(transferencia.getRutaArchivo());
+                    if (!Files.exists(ruta)) {
+                        continue;
+                    }
+                    transferencia.setReceptoresPendientes(guardada.receptores.size());
+                    for (String receptor : guardada.receptores) {
+                        transferenciasPendientes.put(claveDescarga(transferencia.getEmisor(), receptor, transferencia.getId()), transferencia);
+                    }
+                    archivosEnUso.add(ruta.toAbsolutePath().normalize());
+                    transferencia.setCaducidad(temporizadores.programar(MS_SIN_DESCARGA, () -> caducarDescarga(transferencia)));
+                    transferencia.setReserva(cuota.registrarExistente(Files.size(ruta), () -> caducarDescarga(transferencia)));
+                    restauradas++;
+                }
+                // La instantánea sólo vale para un arranque
+                Files.deleteIfExists(ARCHIVO_ESTADO);
+                Registro.info("estado.restaurado", "salas", estado.salas.size(), "transferencias", restauradas,
+                              "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+            }
+        } catch (IOException e) {
+            Registro.error("estado.error_restauracion", e, "archivo", ARCHIVO_ESTADO);
+        }
+        
+        // Eliminar de temp/ los archivos que ninguna transferencia restaurada necesita
+        Path directorioTemp = Paths.get("temp");
+        if (Files.isDirectory(directorioTemp)) {
+            try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorioTemp)) {
+                for (Path archivo : archivos) {
+                    if (!archivosEnUso.contains(archivo.toAbsolutePath().normalize())) {
+                        Files.deleteIfExists(archivo);
+                        Registro.info("estado.huerfano_eliminado", "ruta", archivo);
+                    }
+                }
+            } catch (IOException e) {
+                Registro.error("estado.error_limpieza", e);
+            }
+        }
+    }
+    
+    // Método para volver a anunciar a un usuario los archivos que tiene pendientes de descargar
+    private static void notificarArchivosPendientes(String usuario) {
+        for (Map.Entry<String, TransferenciaArchivo> entrada : transferenciasPendientes.entrySet()) {
+            TransferenciaArchivo transferencia = entrada.getValue();
+            if (transferencia.isCargado() && entrada.getKey().equals(claveDescarga(transferencia.getEmisor(), usuario, transferencia.getId()))) {
+                ClienteHandler cliente = clientesConectados.get(usuario);
+                if (cliente != null) {
+                    cliente.enviarMensaje(transferencia.getAnuncio());
+                }
+            }
         }
     }
     
@@ -325,27 +1028,46 @@ public class Servidor {
         try {
             if (servidorSocket != null && !servidorSocket.isClosed()) {
                 servidorSocket.close();
-                System.out.println("Servidor cerrado");
+                Registro.info("servidor.cerrado");
             }
             if (servidorSocketArchivos != null && !servidorSocketArchivos.isClosed()) {
                 servidorSocketArchivos.close();
-                System.out.println("Servidor de archivos cerrado");
+                Registro.info("archivos.cerrado");
             }
         } catch (IOException e) {
-            System.err.println("Error al cerrar el servidor: " + e.getMessage());
+            Registro.error("servidor.error_cierre", e);
         }
     }
     
     // Método para enviar mensaje a todos los usuarios en una sala
     public static void enviarMensajeASala(String sala, String mensaje, String remitente) {
-        if (salas.containsKey(sala)) {
-            for (String usuario : salas.get(sala)) {
-                // Enviamos el mensaje a todos incluyendo el remitente
-                ClienteHandler cliente = clientesConectados.get(usuario);
-                if (cliente != null) {
-                    cliente.enviarMensaje("[" + sala + "] " + remitente + ": " + mensaje);
+        // Los avisos del servidor (entradas y salidas) son presencia y se pueden degradar
+        ColaSalida.Clase clase = "SERVER".equals(remitente) ? ColaSalida.Clase.PRESENCIA : ColaSalida.Clase.CHAT;
+        Sala destino = salas.get(sala);
+        if (destino != null) {
+            // El texto es el mismo para todos los miembros: construirlo una sola vez
+            String formateado = "[" + sala + "] " + remitente + ": " + mensaje;
+            // Los miembros unidos al grupo multicast de la sala ya lo recibieron en un solo datagrama
+            long[] porMulticast = multicast != null ? multicast.difundir(sala, formateado) : null;
+            long[] palabras = destino.miembros.palabras();
+            for (int i = 0; i < palabras.length; i++) {
+                long palabra = palabras[i];
+                if (porMulticast != null && i < porMulticast.length) {
+                    palabra &= ~porMulticast[i];
+                }
+                while (palabra != 0) {
+                    // Enviamos el mensaje a todos incluyendo el remitente
+                    ClienteHandler cliente = usuariosPorId.get((i << 6) + Long.numberOfTrailingZeros(palabra));
+                    palabra &= palabra - 1;
+                    if (cliente != null) {
+                        cliente.enviarMensaje(formateado, clase, sala);
+                    }
                 }
             }
+            // Guardar los mensajes de chat en el historial (sólo se encolan, se indexan en otro hilo)
+            if (clase == ColaSalida.Clase.CHAT) {
+                historial.registrar(sala, remitente, mensaje);
+            }
         }
     }
     
@@ -364,7 +1086,7 @@ public class Servidor {
             String confirmacion = "[Privado con " + destinatario + "] " + remitente + ": " + mensaje;
             remitenteHandler.enviarMensaje(confirmacion);
             
-            System.out.println("Mensaje privado enviado de " + remitente + " a " + destinatario + ": " + mensaje);
+            Registro.muestreado("mensaje.privado", "de", remitente, "para", destinatario, "cuerpo", Registro.cuerpo(mensaje));
         } else if (remitenteHandler != null) {
             // Notificar al remitente que el destinatario no está disponible
             remitenteHandler.enviarMensaje("Error: El usuario " + destinatario + " no está disponible.");
@@ -379,57 +1101,207 @@ public class Servidor {
         }
         
         for (ClienteHandler cliente : clientesConectados.values()) {
-            cliente.enviarMensaje(listaSalas.toString());
+            cliente.enviarMensaje(listaSalas.toString(), ColaSalida.Clase.PRESENCIA, null);
         }
     }
     
     // Método para notificar a todos los usuarios la lista actualizada de usuarios
     public static void notificarListaUsuarios() {
+        if (clientesConectados.size() > UMBRAL_GRANDE) {
+            // Al entrar en el modo de salas grandes se avisa una vez a todos; después no se difunde nada
+            if (!modoGrande) {
+                modoGrande = true;
+                Registro.info("grande.activado", "usuarios", clientesConectados.size());
+                for (ClienteHandler cliente : clientesConectados.values()) {
+                    cliente.enviarMensaje("USUARIOS_PAGINADOS", ColaSalida.Clase.PRESENCIA, null);
+                }
+            }
+            return;
+        }
+        if (modoGrande) {
+            modoGrande = false;
+            Registro.info("grande.desactivado", "usuarios", clientesConectados.size());
+        }
         StringBuilder listaUsuarios = new StringBuilder("USUARIOS:");
         for (String usuario : clientesConectados.keySet()) {
             listaUsuarios.append("|").append(usuario);
         }
         
         for (ClienteHandler cliente : clientesConectados.values()) {
-            cliente.enviarMensaje(listaUsuarios.toString());
+            cliente.enviarMensaje(listaUsuarios.toString(), ColaSalida.Clase.PRESENCIA, null);
         }
     }
     
-    // Método para que un usuario se una a una sala
-    public static void unirseASala(String sala, String usuario) {
-        if (salas.containsKey(sala)) {
-            salas.get(sala).add(usuario);
-            // Notificar al usuario que se unió a la sala
-            ClienteHandler cliente = clientesConectados.get(usuario);
-            if (cliente != null) {
-                cliente.enviarMensaje("Te has unido a la sala: " + sala);
-                // Notificar a los demás usuarios en la sala
-                enviarMensajeASala(sala, usuario + " se ha unido a la sala.", "SERVER");
+    // Método para entregar una trama de estados a los miembros de una sala; es presencia sin sala,
+    // así que se descarta si el cliente va atrasado y se recupera con la trama completa al ponerse al día
+    private static void difundirEstados(String sala, String trama) {
+        Sala destino = salas.get(sala);
+        if (destino == null) {
+            return;
+        }
+        long[] palabras = destino.miembros.palabras();
+        int entregas = 0;
+        for (int i = 0; i < palabras.length; i++) {
+            long palabra = palabras[i];
+            while (palabra != 0) {
+                ClienteHandler cliente = usuariosPorId.get((i << 6) + Long.numberOfTrailingZeros(palabra));
+                palabra &= palabra - 1;
+                if (cliente != null) {
+                    cliente.enviarMensaje(trama, ColaSalida.Clase.PRESENCIA, null);
+                    entregas++;
+                }
             }
         }
+        Metricas.sumar("estado.notificaciones", entregas);
     }
     
-    // Método para que un usuario salga de una sala
-    public static void salirDeSala(String sala, String usuario) {
-        if (salas.containsKey(sala)) {
-            salas.get(sala).remove(usuario);
-            // Notificar al usuario que salió de la sala
-            ClienteHandler cliente = clientesConectados.get(usuario);
-            if (cliente != null) {
-                cliente.enviarMensaje("Has salido de la sala: " + sala);
-                // Notificar a los demás usuarios en la sala
-                enviarMensajeASala(sala, usuario + " ha salido de la sala.", "SERVER");
+    // Método para construir la trama con los estados distintos de "activo" de los miembros de una sala
+    private static String tramaEstadosSala(Sala sala) {
+        StringBuilder trama = new StringBuilder(PresenciaSalas.PREFIJO_COMPLETO).append(sala.nombre);
+        int[] incluidos = new int[1];
+        sala.miembros.paraCada(id -> {
+            ClienteHandler cliente = usuariosPorId.get(id);
+            if (cliente != null && incluidos[0] < PresenciaSalas.MAX_POR_TRAMA) {
+                String estado = cliente.getEstadoVisible();
+                if (!estado.equals(PresenciaSalas.ACTIVO)) {
+                    trama.append('|').append(cliente.nombreUsuario).append('=').append(estado);
+                    incluidos[0]++;
+                }
             }
-        }
+        });
+        return trama.toString();
     }
     
-    // Clase interna para manejar cada cliente en un hilo separado
+    // Método para crear una sala si no existe; devuelve false si ya existía
+    private static boolean crearSala(String nombre) {
+        if (salas.containsKey(nombre)) {
+            return false;
+        }
+        Sala sala = new Sala(nombre);
+        if (salas.putIfAbsent(nombre, sala) != null) {
+            salasPorId.liberar(sala.id, sala);
+            return false;
+        }
+        return true;
+    }
+    
+    // Método para que un usuario se una a una sala
+    public static void unirseASala(String sala, String usuario) {
+        Sala destino = salas.get(sala);
+        ClienteHandler cliente = clientesConectados.get(usuario);
+        if (destino != null && cliente != null) {
+            destino.miembros.agregar(cliente.id);
+            cliente.salasUnidas.agregar(destino.id);
+            cliente.visibles = new ConjuntoIds();
+            // Notificar al usuario que se unió a la sala
+            cliente.enviarMensaje("Te has unido a la sala: " + sala);
+            // Ofrecerle el grupo multicast de la sala; sigue por TCP hasta que confirme con /multicast
+            String anuncio = multicast != null ? multicast.anuncio(sala, destino.id) : null;
+            if (anuncio != null) {
+                cliente.enviarMensaje(anuncio);
+            }
+            // Entregarle los estados de los miembros y anunciar el suyo si no es el habitual
+            cliente.enviarMensaje(tramaEstadosSala(destino), ColaSalida.Clase.PRESENCIA, null);
+            String estado = cliente.getEstadoVisible();
+            if (!estado.equals(PresenciaSalas.ACTIVO)) {
+                presencia.publicar(sala, usuario, estado);
+            }
+            // Notificar a los demás usuarios en la sala (en las salas grandes nadie lo ve hasta pedir la página)
+            if (destino.miembros.tamaño() <= UMBRAL_GRANDE) {
+                enviarMensajeASala(sala, usuario + " se ha unido a la sala.", "SERVER");
+                notificarCambioMiembro(destino, cliente.id, usuario, true);
+            }
+        }
+    }
+    
+    // Método para que un usuario salga de una sala
+    public static void salirDeSala(String sala, String usuario) {
+        Sala origen = salas.get(sala);
+        ClienteHandler cliente = clientesConectados.get(usuario);
+        if (origen != null && cliente != null) {
+            origen.miembros.quitar(cliente.id);
+            cliente.salasUnidas.quitar(origen.id);
+            if (multicast != null) {
+                multicast.quitar(sala, cliente.id);
+            }
+            // Quien sale deja de figurar con su estado en la sala
+            if (!cliente.getEstadoVisible().equals(PresenciaSalas.ACTIVO)) {
+                presencia.publicar(sala, usuario, PresenciaSalas.ACTIVO);
+            }
+            // Notificar al usuario que salió de la sala
+            cliente.enviarMensaje("Has salido de la sala: " + sala);
+            // Notificar a los demás usuarios en la sala
+            if (origen.miembros.tamaño() <= UMBRAL_GRANDE) {
+                enviarMensajeASala(sala, usuario + " ha salido de la sala.", "SERVER");
+            }
+            notificarCambioMiembro(origen, cliente.id, usuario, false);
+        }
+    }
+    
+    // Método para avisar a los clientes con la lista paginada de que un miembro entró o salió de su
+    // sala: en las salas pequeñas a todos los miembros; en las grandes, de las salidas sólo se entera
+    // quien tiene a ese miembro en la página que está viendo y de las entradas nadie
+    private static void notificarCambioMiembro(Sala sala, int id, String usuario, boolean dentro) {
+        if (!modoGrande) {
+            return;
+        }
+        boolean pequeña = sala.miembros.tamaño() <= UMBRAL_GRANDE;
+        if (dentro && !pequeña) {
+            return;
+        }
+        String aviso = (dentro ? "MIEMBRO_DENTRO:" : "MIEMBRO_FUERA:") + sala.nombre + "|" + usuario;
+        long[] palabras = sala.miembros.palabras();
+        for (int i = 0; i < palabras.length; i++) {
+            long palabra = palabras[i];
+            while (palabra != 0) {
+                int miembro = (i << 6) + Long.numberOfTrailingZeros(palabra);
+                palabra &= palabra - 1;
+                ClienteHandler cliente = usuariosPorId.get(miembro);
+                if (cliente != null && miembro != id && (pequeña || cliente.visibles.contiene(id))) {
+                    cliente.enviarMensaje(aviso, ColaSalida.Clase.PRESENCIA, null);
+                }
+            }
+        }
+    }
+    
+    // Clase interna para manejar cada cliente en un hilo separado
     private static class ClienteHandler implements Runnable {
         private Socket clienteSocket;
-        private PrintWriter salida;
-        private BufferedReader entrada;
+        private ColaSalida salida;
+        private LectorLineas entrada;
+        private final AtomicBoolean cerrado = new AtomicBoolean();
         private String nombreUsuario;
         private String salaActual;
+        private final LimitadorTasa limitador = new LimitadorTasa();
+        
+        // Identificador denso del usuario (válido mientras está registrado) y salas en las que está
+        private int id = -1;
+        private ConjuntoIds salasUnidas = new ConjuntoIds();
+        
+        // Miembros de la sala actual que este cliente tiene en pantalla (las páginas de /miembros pedidas)
+        private volatile ConjuntoIds visibles = new ConjuntoIds();
+        
+        // Estado de la sesión; perdidos, sucesor y expirado se protegen con el monitor de perdidos
+        private volatile String token;
+        private volatile boolean suspendido;
+        private volatile long suspendidoDesde;
+        private final ArrayDeque<String> perdidos = new ArrayDeque<>();
+        private int perdidosDescartados;
+        private ClienteHandler sucesor;
+        private boolean expirado;
+        
+        // Latido: última línea recibida y si ya se envió un PING sin respuesta (sólo lo usa la rueda)
+        private volatile long ultimaActividad = System.currentTimeMillis();
+        private boolean pingEnviado;
+        
+        // RTT de la conexión medido con PING/PONG (0 mientras no se conoce); lo usan las transferencias
+        private volatile long nanosPing;
+        volatile long nanosRtt;
+        
+        // Presencia: estado elegido con /estado y si está escribiendo (hasta escribiendoHasta)
+        private volatile String estado = PresenciaSalas.ACTIVO;
+        private volatile boolean escribiendo;
+        private volatile long escribiendoHasta;
           // Constructor
         public ClienteHandler(Socket socket) {
             this.clienteSocket = socket;
@@ -439,55 +1311,303 @@ public class Servidor {
         @Override
         public void run() {
             try {
-                // Inicializar flujos de entrada y salida
-                salida = new PrintWriter(clienteSocket.getOutputStream(), true);
-                entrada = new BufferedReader(new InputStreamReader(clienteSocket.getInputStream()));
+                // Perfil de latencia: las líneas de chat no esperan a juntarse con otras
+                AjusteSockets.configurarChat(clienteSocket);
+                
+                // Inicializar flujos de entrada y salida (cifrados si TLS está activo)
+                InputStream is = clienteSocket.getInputStream();
+                OutputStream os = clienteSocket.getOutputStream();
+                if (contextoTLS != null) {
+                    CanalTLS cifrado = abrirTLS(clienteSocket);
+                    is = cifrado.getEntrada();
+                    os = cifrado.getSalida();
+                }
+                salida = new ColaSalida(clienteSocket, os, clienteSocket.getRemoteSocketAddress().toString());
+                entrada = new LectorLineas(is);
                 
                 // Solicitar nombre de usuario
-                salida.println("Ingresa tu nombre de usuario:");
-                nombreUsuario = entrada.readLine();
+                salida.encolar("Ingresa tu nombre de usuario:");
+                nombreUsuario = entrada.leerLinea();
                 
-                // Verificar si el nombre de usuario ya existe
-                while (clientesConectados.containsKey(nombreUsuario)) {
-                    salida.println("El nombre de usuario ya existe. Ingresa otro nombre:");
-                    nombreUsuario = entrada.readLine();
+                // Un cliente que perdió la conexión puede reanudar su sesión en lugar de iniciar otra
+                boolean reanudada = false;
+                if (nombreUsuario != null && nombreUsuario.startsWith(PREFIJO_REANUDAR)) {
+                    reanudada = reanudarSesion(nombreUsuario.substring(PREFIJO_REANUDAR.length()));
+                    if (!reanudada) {
+                        salida.encolar("SESION_INVALIDA");
+                        salida.encolar("Ingresa tu nombre de usuario:");
+                        nombreUsuario = entrada.leerLinea();
+                    }
                 }
                 
-                // Registrar el usuario
-                clientesConectados.put(nombreUsuario, this);
-                
-                // Unir al usuario a la sala general por defecto
-                unirseASala(salaActual, nombreUsuario);
+                if (!reanudada && !iniciarSesion()) {
+                    return;
+                }
                 
-                // Notificar al nuevo usuario la lista de salas y usuarios
-                notificarListaSalas();
-                notificarListaUsuarios();
+                // Esperar mensajes del cliente; cualquier línea cuenta como actividad para el latido
+                programarLatido(MS_LATIDO);
+                // Un primer PING mide el RTT antes de que el usuario envíe o reciba archivos
+                enviarPing();
+                String mensaje;
+                while (!cerrado.get() && (mensaje = entrada.leerLinea()) != null) {
+                    ultimaActividad = System.currentTimeMillis();
+                    if (!mensaje.equals("PONG")) {
+                        procesarMensaje(mensaje);
+                    } else {
+                        medirRtt();
+                    }
+                }
                 
-                // Notificar a todos los usuarios que hay un nuevo usuario
+            } catch (IOException e) {
+                Registro.aviso("cliente.error_comunicacion", "usuario", nombreUsuario, "error", e.getMessage());
+            } finally {
+                // Un corte inesperado deja la sesión en espera; el resto de cierres la terminan
+                if (!suspender()) {
+                    cerrarConexion();
+                }
+                // Nadie más lee de esta conexión: devolver su buffer de lectura
+                if (entrada != null) {
+                    entrada.cerrar();
+                }
+            }
+        }
+        
+        // Método para el inicio de sesión normal: elegir nombre, entrar a la sala general y anunciarse
+        private boolean iniciarSesion() throws IOException {
+            // Verificar si el nombre de usuario ya existe
+            while (nombreUsuario != null && clientesConectados.putIfAbsent(nombreUsuario, this) != null) {
+                salida.encolar("El nombre de usuario ya existe. Ingresa otro nombre:");
+                nombreUsuario = entrada.leerLinea();
+            }
+            
+            if (nombreUsuario == null) {
+                return false;
+            }
+            id = usuariosPorId.asignar(this);
+            
+            // Entregar el token con el que el cliente puede reanudar la sesión si se corta la conexión
+            emitirToken();
+            
+            // Si se descartaron listas mientras iba atrasado, reenviarlas al ponerse al día
+            salida.setAlRecuperarse(this::reenviarListas);
+            
+            // Unir al usuario a la sala general por defecto
+            unirseASala(salaActual, nombreUsuario);
+            
+            // Notificar al nuevo usuario la lista de salas y usuarios
+            notificarListaSalas();
+            notificarListaUsuarios();
+            
+            // Notificar a todos los usuarios que hay un nuevo usuario (con muchos usuarios sólo se
+            // indica al nuevo que pida las listas por páginas)
+            if (modoGrande) {
+                enviarMensaje("USUARIOS_PAGINADOS", ColaSalida.Clase.PRESENCIA, null);
+            } else {
                 for (ClienteHandler cliente : clientesConectados.values()) {
                     if (!cliente.nombreUsuario.equals(nombreUsuario)) {
-                        cliente.enviarMensaje("El usuario " + nombreUsuario + " se ha conectado.");
+                        cliente.enviarMensaje("El usuario " + nombreUsuario + " se ha conectado.", ColaSalida.Clase.PRESENCIA, null);
+                    }
+                }
+            }
+            
+            // Anunciar los archivos que quedaron pendientes para este usuario (p. ej. tras un reinicio)
+            notificarArchivosPendientes(nombreUsuario);
+            return true;
+        }
+        
+        // Método para generar y enviar un token de sesión nuevo
+        private void emitirToken() {
+            byte[] bytes = new byte[18];
+            ALEATORIO.nextBytes(bytes);
+            String nuevo = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            String anterior = token;
+            token = nuevo;
+            sesiones.put(nuevo, this);
+            if (anterior != null) {
+                sesiones.remove(anterior, this);
+            }
+            enviarMensaje("SESION:" + nuevo);
+        }
+        
+        // Método para retomar la sesión de una conexión anterior: se conservan el nombre y las salas,
+        // se reenvían los mensajes perdidos y no se repite el anuncio de conexión a los demás
+        private boolean reanudarSesion(String tokenAnterior) {
+            if (drenando) {
+                return false;
+            }
+            ClienteHandler anterior = sesiones.remove(tokenAnterior);
+            if (anterior == null) {
+                Registro.info("sesion.token_invalido", "direccion", clienteSocket.getRemoteSocketAddress());
+                return false;
+            }
+            
+            int reenviados;
+            long msDesconectado;
+            synchronized (anterior.perdidos) {
+                if (anterior.expirado || anterior.sucesor != null) {
+                    return false;
+                }
+                if (!anterior.suspendido) {
+                    // El cliente detectó el corte antes que el servidor: sustituir la conexión anterior
+                    if (!anterior.cerrado.compareAndSet(false, true)) {
+                        return false;
                     }
+                    anterior.suspendido = true;
+                    anterior.suspendidoDesde = System.currentTimeMillis();
+                    anterior.salida.cerrar(false);
                 }
                 
-                // Esperar mensajes del cliente
-                String mensaje;
-                while ((mensaje = entrada.readLine()) != null) {
-                    procesarMensaje(mensaje);
+                nombreUsuario = anterior.nombreUsuario;
+                salaActual = anterior.salaActual;
+                id = anterior.id;
+                salasUnidas = anterior.salasUnidas;
+                msDesconectado = System.currentTimeMillis() - anterior.suspendidoDesde;
+                
+                // Reenviar lo perdido antes de que lleguen mensajes nuevos a esta conexión
+                salida.encolar("SESION_REANUDADA:" + salaActual);
+                if (anterior.perdidosDescartados > 0) {
+                    salida.encolar("Aviso: Se perdieron " + anterior.perdidosDescartados
+                                   + " mensajes mientras estabas desconectado.");
+                }
+                reenviados = anterior.perdidos.size();
+                for (String mensaje : anterior.perdidos) {
+                    salida.encolar(mensaje);
                 }
+                anterior.perdidos.clear();
                 
-            } catch (IOException e) {
-                System.err.println("Error en la comunicación con el cliente: " + e.getMessage());
-            } finally {
-                cerrarConexion();
+                // Lo que aún llegue a la conexión anterior se reenvía a ésta
+                anterior.sucesor = this;
+                clientesConectados.replace(nombreUsuario, anterior, this);
+                usuariosPorId.reemplazar(id, anterior, this);
+            }
+            
+            emitirToken();
+            salida.setAlRecuperarse(this::reenviarListas);
+            // Las listas pudieron cambiar durante el corte: enviarlas sólo a este cliente
+            reenviarListas();
+            
+            Registro.info("sesion.reanudada", "usuario", nombreUsuario, "mensajes", reenviados, "msDesconectado", msDesconectado);
+            Metricas.incrementar("sesiones.reanudadas");
+            return true;
+        }
+        
+        // Método para dejar la sesión en espera tras un corte de la conexión
+        private boolean suspender() {
+            if (token == null || drenando || MS_GRACIA_SESION <= 0) {
+                return false;
+            }
+            synchronized (perdidos) {
+                if (!cerrado.compareAndSet(false, true)) {
+                    return false;
+                }
+                suspendidoDesde = System.currentTimeMillis();
+                suspendido = true;
+            }
+            salida.cerrar(false);
+            temporizadores.programar(MS_GRACIA_SESION, this::expirarSesion);
+            Registro.info("sesion.suspendida", "usuario", nombreUsuario);
+            Metricas.incrementar("sesiones.suspendidas");
+            return true;
+        }
+        
+        // Método para programar la siguiente comprobación de actividad de la conexión
+        private void programarLatido(long ms) {
+            if (MS_LATIDO > 0) {
+                temporizadores.programar(ms, this::comprobarLatido);
+            }
+        }
+        
+        // Método que comprueba la actividad: tras MS_LATIDO sin recibir nada se envía un PING y, si
+        // tampoco llega nada en MS_ESPERA_PONG, se cierra el socket; el corte deja la sesión en
+        // espera como cualquier otro, así que el cliente aún puede reanudarla
+        private void comprobarLatido() {
+            if (cerrado.get()) {
+                return;
+            }
+            long inactivo = System.currentTimeMillis() - ultimaActividad;
+            if (inactivo < MS_LATIDO) {
+                pingEnviado = false;
+                programarLatido(MS_LATIDO - inactivo);
+            } else if (!pingEnviado) {
+                pingEnviado = true;
+                enviarPing();
+                Metricas.incrementar("latidos.enviados");
+                programarLatido(MS_ESPERA_PONG);
+            } else {
+                Registro.aviso("latido.sin_respuesta", "usuario", nombreUsuario, "msInactivo", inactivo);
+                Metricas.incrementar("latidos.conexiones_muertas");
+                try {
+                    clienteSocket.close();
+                } catch (IOException e) {
+                    Registro.error("conexion.error_cierre", e, "usuario", nombreUsuario);
+                }
             }
         }
         
+        private void enviarPing() {
+            nanosPing = System.nanoTime();
+            enviarMensaje("PING");
+        }
+        
+        // El PONG responde al último PING; si la cola de salida lo retrasó, el RTT incluye esa espera
+        private void medirRtt() {
+            long enviado = nanosPing;
+            if (enviado != 0) {
+                nanosPing = 0;
+                nanosRtt = System.nanoTime() - enviado;
+                Metricas.incrementar("sockets.rtt_medidos");
+                Metricas.sumar("sockets.rtt_us_total", TimeUnit.NANOSECONDS.toMicros(nanosRtt));
+            }
+        }
+        
+        // Método para terminar una sesión en espera que no se reanudó dentro del periodo de gracia
+        private void expirarSesion() {
+            synchronized (perdidos) {
+                if (sucesor != null || expirado) {
+                    return;
+                }
+                expirado = true;
+                perdidos.clear();
+            }
+            sesiones.remove(token, this);
+            Registro.info("sesion.expirada", "usuario", nombreUsuario);
+            Metricas.incrementar("sesiones.expiradas");
+            darDeBaja();
+        }
+        
+        // Método para guardar un mensaje dirigido a una sesión en espera
+        private void guardarPerdido(String mensaje, ColaSalida.Clase clase, String sala) {
+            ClienteHandler destino;
+            synchronized (perdidos) {
+                destino = sucesor;
+                if (destino == null) {
+                    // Las listas de salas y usuarios se reenvían completas al reanudar
+                    if (expirado || (clase == ColaSalida.Clase.PRESENCIA && sala == null)) {
+                        return;
+                    }
+                    if (perdidos.size() >= MAX_PERDIDOS) {
+                        perdidos.removeFirst();
+                        perdidosDescartados++;
+                    }
+                    perdidos.addLast(mensaje);
+                    return;
+                }
+            }
+            destino.enviarMensaje(mensaje, clase, sala);
+        }
+        
         // Método para procesar mensajes recibidos
         private void procesarMensaje(String mensaje) {
             try {
-                if (mensaje.startsWith(COMANDO_ARCHIVO)) {
-                    System.out.println("Procesando comando de archivo: " + mensaje);
+                // Comprobar los límites de tasa antes de procesar y difundir el mensaje
+                if (!verificarLimite(mensaje)) {
+                    return;
+                }
+                
+                if (mensaje.startsWith(COMANDO_ARCHIVO) && drenando) {
+                    enviarMensaje("Error: El servidor se está reiniciando. Envía el archivo cuando vuelvas a conectarte.");
+                } else if (mensaje.startsWith(COMANDO_ARCHIVO)) {
+                    Registro.depuracion("comando.archivo", "usuario", nombreUsuario, "comando", mensaje);
                     // Formato esperado: /archivo "destinatario" nombreArchivo tamaño
                     // Extraemos el comando primero
                     String mensajeSinComando = mensaje.substring(COMANDO_ARCHIVO.length()).trim();
@@ -531,7 +1651,6 @@ public class Servidor {
                         try {
                             tamaño = Long.parseLong(tamañoStr);
                         } catch (NumberFormatException e) {
-                            System.err.println("Error al analizar el tamaño del archivo: " + e.getMessage());
                             enviarMensaje("Error: Formato de tamaño de archivo incorrecto.");
                             return;
                         }
@@ -542,19 +1661,42 @@ public class Servidor {
                             return;
                         }
                         
+                        // Reservar espacio en temp/ antes de aceptar la transferencia
+                        CuotaTemporal.Reserva reserva = cuota.reservar(tamaño);
+                        if (reserva == null) {
+                            enviarMensaje("Error: El servidor no tiene espacio para " + nombreArchivo
+                                          + " en este momento. Inténtalo más tarde.");
+                            return;
+                        }
+                        
                         // Crear objeto de transferencia
                         TransferenciaArchivo transferencia = new TransferenciaArchivo(
                             nombreUsuario, destinatario, nombreArchivo, tamaño);
+                        transferencia.setReserva(reserva);
                         
-                        // Guardar la transferencia pendiente
+                        // Guardar la transferencia pendiente; una anterior al mismo destinatario sin cargar
+                        // queda sustituida y devuelve su reserva
                         String clave = nombreUsuario + "_" + destinatario;
-                        transferenciasPendientes.put(clave, transferencia);
+                        TransferenciaArchivo sustituida = transferenciasPendientes.put(clave, transferencia);
+                        if (sustituida != null && !sustituida.isCargado()) {
+                            sustituida.cancelarCaducidad();
+                            sustituida.liberarEspacio();
+                        }
+                        // Si el emisor no llega a enviar el archivo, descartar la transferencia
+                        transferencia.setCaducidad(temporizadores.programar(MS_SIN_CARGA, () -> caducarCarga(clave, transferencia)));
                         
-                        System.out.println("Nueva transferencia pendiente: " + transferencia);
+                        Registro.info("archivo.pendiente", "emisor", nombreUsuario, "destinatario", destinatario,
+                                      "nombre", nombreArchivo, "tamaño", tamaño);
                         enviarMensaje("Preparando transferencia de archivo: " + nombreArchivo);
                     } else {
                         enviarMensaje("Error: Formato incorrecto para el comando de archivo.");
-                        System.err.println("Formato incorrecto para el comando de archivo: " + mensaje);
+                        Registro.aviso("comando.archivo_invalido", "usuario", nombreUsuario, "comando", mensaje);
+                    }
+                } else if (mensaje.startsWith("/omitirarchivo ")) {
+                    // El cliente ya tenía el archivo anunciado: /omitirarchivo remitente hash
+                    String[] partes = mensaje.split(" ", 3);
+                    if (partes.length == 3) {
+                        omitirDescarga(partes[1], nombreUsuario, partes[2].trim());
                     }
                 } else if (mensaje.startsWith("/privado ")) {
                     // Mensaje privado: /privado nombreUsuario mensaje
@@ -593,8 +1735,7 @@ public class Servidor {
                         return;
                     }
                     
-                    if (!salas.containsKey(nuevaSala)) {
-                        salas.put(nuevaSala, new CopyOnWriteArraySet<>());
+                    if (crearSala(nuevaSala)) {
                         enviarMensaje("Has creado la sala: " + nuevaSala);
                         notificarListaSalas();
                     } else {
@@ -605,34 +1746,53 @@ public class Servidor {
                                 "/privado nombreUsuario mensaje - Iniciar o continuar chat privado\n" +
                                 "/sala nombreSala - Cambiar de sala\n" +
                                 "/crearsala nombreSala - Crear una nueva sala (usa guiones en lugar de espacios, ej: Mi-Sala)\n" +
-                                "/salas - Ver las salas disponibles\n" +
-                                "/usuarios - Ver los usuarios conectados\n" +
+                                "/salas [cursor] - Ver las salas disponibles (por páginas)\n" +
+                                "/usuarios [cursor] - Ver los usuarios conectados (por páginas)\n" +
+                                "/miembros [cursor] - Ver los miembros de la sala actual (por páginas)\n" +
+                                "/buscar [#página] texto - Buscar en el historial de la sala actual\n" +
+                                "/estado activo|ausente|ocupado - Cambiar tu estado de presencia\n" +
+                                "/metricas - Ver las métricas del servidor\n" +
                                 "/salir - Desconectarse del servidor\n" +
                                 "/archivo destinatario nombreArchivo tamaño - Enviar un archivo");
                 } else if (mensaje.startsWith("/salas")) {
-                    // Mostrar salas disponibles
-                    StringBuilder listaSalas = new StringBuilder("Salas disponibles:\n");
-                    for (String sala : salas.keySet()) {
-                        listaSalas.append("- ").append(sala).append(" (").append(salas.get(sala).size()).append(" usuarios)\n");
-                    }
-                    enviarMensaje(listaSalas.toString());
+                    // Mostrar salas disponibles por páginas: /salas [cursor]
+                    enviarPagina("Salas disponibles", "/salas", salasPorId, mensaje.substring(6).trim(), salas.size(),
+                                 sala -> sala.nombre + " (" + sala.miembros.tamaño() + " usuarios)");
                 } else if (mensaje.startsWith("/usuarios")) {
-                    // Mostrar usuarios conectados
-                    StringBuilder listaUsuarios = new StringBuilder("Usuarios conectados:\n");
-                    for (String usuario : clientesConectados.keySet()) {
-                        listaUsuarios.append("- ").append(usuario).append("\n");
-                    }
-                    enviarMensaje(listaUsuarios.toString());
+                    // Mostrar usuarios conectados por páginas: /usuarios [cursor]
+                    enviarPagina("Usuarios conectados", "/usuarios", usuariosPorId, mensaje.substring(9).trim(),
+                                 clientesConectados.size(), cliente -> cliente.nombreUsuario);
+                } else if (mensaje.startsWith("/miembros")) {
+                    // Miembros de la sala actual por páginas para la lista del cliente: /miembros [cursor]
+                    enviarPaginaMiembros(mensaje.substring(9).trim());
+                } else if (mensaje.startsWith("/buscar ")) {
+                    // Buscar en el historial de la sala actual: /buscar [#página] texto
+                    buscarEnHistorial(mensaje.substring(8).trim());
+                } else if (mensaje.startsWith("/metricas")) {
+                    // Mostrar las métricas del servidor
+                    enviarMensaje(Metricas.resumen());
                 } else if (mensaje.startsWith("/salir")) {
                     // Desconectar usuario
                     cerrarConexion();
+                } else if (mensaje.startsWith("/estado")) {
+                    // Cambiar el estado de presencia: /estado activo|ausente|ocupado|escribiendo
+                    cambiarEstado(mensaje.substring(7).trim());
+                } else if (mensaje.startsWith("/multicast ")) {
+                    // El cliente ya está en el grupo multicast de la sala: /multicast sala
+                    confirmarMulticast(mensaje.substring(11).trim());
+                } else if (mensaje.startsWith("/reparar ")) {
+                    // Mensajes multicast que no llegaron: /reparar sala desde hasta
+                    repararMulticast(mensaje.substring(9).trim());
                 } else {
+                    // Quien envía un mensaje ha dejado de escribir
+                    if (escribiendo) {
+                        terminarEscritura();
+                    }
                     // Mensaje normal para la sala actual
                     enviarMensajeASala(salaActual, mensaje, nombreUsuario);
                 }
             } catch (Exception e) {
-                System.err.println("Error al procesar mensaje del cliente " + nombreUsuario + ": " + e.getMessage());
-                e.printStackTrace();
+                Registro.error("cliente.error_mensaje", e, "usuario", nombreUsuario);
                 try {
                     // En caso de error, notificar al cliente y continuar atendiendo mensajes
                     enviarMensaje("Error al procesar tu solicitud. Por favor, inténtalo de nuevo.");
@@ -643,49 +1803,394 @@ public class Servidor {
             }
         }
         
+        // Método para pasar la entrega de una sala a multicast; la respuesta indica la última
+        // secuencia enviada por TCP, a partir de la cual el cliente toma los datagramas
+        private void confirmarMulticast(String sala) {
+            Sala destino = salas.get(sala);
+            if (multicast == null || destino == null || !destino.miembros.contiene(id)) {
+                return;
+            }
+            long secuencia = multicast.confirmar(sala, destino.id, id);
+            if (secuencia < 0) {
+                return;
+            }
+            enviarMensaje(DifusionMulticast.PREFIJO_CONFIRMACION + sala + "|" + secuencia);
+        }
+        
+        // Método para reenviar por TCP los mensajes multicast perdidos de una sala
+        private void repararMulticast(String argumentos) {
+            // Los números van al final: el nombre de la sala puede tener espacios
+            int segundo = argumentos.lastIndexOf(' ');
+            int primero = segundo > 0 ? argumentos.lastIndexOf(' ', segundo - 1) : -1;
+            if (multicast == null || primero <= 0) {
+                return;
+            }
+            Sala destino = salas.get(argumentos.substring(0, primero));
+            if (destino == null || !destino.miembros.contiene(id)) {
+                return;
+            }
+            try {
+                long desde = Long.parseLong(argumentos.substring(primero + 1, segundo));
+                long hasta = Long.parseLong(argumentos.substring(segundo + 1));
+                if (desde >= 1 && hasta >= desde) {
+                    multicast.reparar(destino.nombre, desde, hasta, this::enviarMensaje);
+                }
+            } catch (NumberFormatException e) {
+                enviarMensaje("Formato incorrecto. Uso: /reparar sala desde hasta");
+            }
+        }
+        
+        // Método para responder con una página de una tabla de identificadores a partir del cursor
+        // (el identificador por el que seguir); nunca se construye la lista completa
+        private <T> void enviarPagina(String titulo, String comando, TablaIds<T> tabla, String cursor, int total,
+                                      Function<T, String> describir) {
+            int id;
+            try {
+                id = cursor.isEmpty() ? 0 : Integer.parseInt(cursor);
+            } catch (NumberFormatException e) {
+                enviarMensaje("Formato incorrecto. Uso: " + comando + " [cursor]");
+                return;
+            }
+            StringBuilder pagina = new StringBuilder(titulo).append(" (").append(total).append(" en total):\n");
+            int capacidad = tabla.getCapacidad();
+            int incluidos = 0;
+            for (; id < capacidad && incluidos < TAMAÑO_PAGINA_LISTAS; id++) {
+                T elemento = tabla.get(id);
+                if (elemento != null) {
+                    pagina.append("- ").append(describir.apply(elemento)).append('\n');
+                    incluidos++;
+                }
+            }
+            // Ofrecer la página siguiente sólo si queda algún elemento
+            while (id < capacidad && tabla.get(id) == null) {
+                id++;
+            }
+            if (id < capacidad) {
+                pagina.append("Más: ").append(comando).append(' ').append(id);
+            }
+            enviarMensaje(pagina.toString());
+        }
+        
+        // Método para enviar una página de miembros de la sala actual:
+        // MIEMBROS:sala|total|desde|siguiente|nombre|nombre... (siguiente vacío si es la última)
+        private void enviarPaginaMiembros(String cursor) {
+            Sala sala = salas.get(salaActual);
+            if (sala == null) {
+                return;
+            }
+            int desde;
+            try {
+                desde = cursor.isEmpty() ? 0 : Integer.parseInt(cursor);
+            } catch (NumberFormatException e) {
+                enviarMensaje("Formato incorrecto. Uso: /miembros [cursor]");
+                return;
+            }
+            // Un cursor sólo puede ser un identificador dentro del conjunto de miembros
+            if (desde < 0 || desde > sala.miembros.capacidad()) {
+                enviarMensaje("Error: Cursor fuera de rango. Uso: /miembros [cursor]");
+                return;
+            }
+            int[] ids = new int[TAMAÑO_PAGINA_LISTAS];
+            int incluidos = 0;
+            StringBuilder nombres = new StringBuilder();
+            int miembro = sala.miembros.siguiente(desde);
+            while (miembro >= 0 && incluidos < TAMAÑO_PAGINA_LISTAS) {
+                ClienteHandler cliente = usuariosPorId.get(miembro);
+                if (cliente != null) {
+                    nombres.append('|').append(cliente.nombreUsuario);
+                    ids[incluidos++] = miembro;
+                }
+                miembro = sala.miembros.siguiente(miembro + 1);
+            }
+            // La primera página reinicia la vista; las siguientes la amplían hasta MAX_VISIBLES
+            if (desde == 0) {
+                visibles = new ConjuntoIds();
+            }
+            if (incluidos > 0 && visibles.tamaño() < MAX_VISIBLES) {
+                visibles.agregarTodos(ids, incluidos);
+            }
+            enviarMensaje("MIEMBROS:" + sala.nombre + "|" + sala.miembros.tamaño() + "|" + desde + "|"
+                          + (miembro >= 0 ? String.valueOf(miembro) : "") + nombres);
+        }
+        
+        // Estado que ven los demás: "escribiendo" tiene prioridad sobre el elegido con /estado
+        private String getEstadoVisible() {
+            return escribiendo ? PresenciaSalas.ESCRIBIENDO : estado;
+        }
+        
+        // Método para cambiar el estado de presencia y anunciarlo en las salas del usuario
+        private synchronized void cambiarEstado(String nuevo) {
+            if (!ESTADOS.contains(nuevo)) {
+                enviarMensaje("Formato incorrecto. Uso: /estado activo|ausente|ocupado");
+                return;
+            }
+            String anterior = getEstadoVisible();
+            if (nuevo.equals(PresenciaSalas.ESCRIBIENDO)) {
+                // El cliente lo renueva mientras se escribe; si deja de hacerlo, caduca solo
+                escribiendoHasta = System.currentTimeMillis() + MS_ESCRIBIENDO;
+                if (!escribiendo) {
+                    escribiendo = true;
+                    temporizadores.programar(MS_ESCRIBIENDO, this::caducarEscritura);
+                }
+            } else {
+                escribiendo = false;
+                estado = nuevo;
+            }
+            anunciarEstado(anterior);
+        }
+        
+        private synchronized void terminarEscritura() {
+            String anterior = getEstadoVisible();
+            escribiendo = false;
+            anunciarEstado(anterior);
+        }
+        
+        // Método que ejecuta la rueda cuando vence el plazo de "escribiendo" sin renovarse
+        private synchronized void caducarEscritura() {
+            if (!escribiendo || cerrado.get()) {
+                return;
+            }
+            long resta = escribiendoHasta - System.currentTimeMillis();
+            if (resta > 0) {
+                temporizadores.programar(resta, this::caducarEscritura);
+            } else {
+                terminarEscritura();
+            }
+        }
+        
+        // Método para publicar el estado visible en las salas del usuario si cambió
+        private void anunciarEstado(String anterior) {
+            String actual = getEstadoVisible();
+            if (actual.equals(anterior)) {
+                return;
+            }
+            salasUnidas.paraCada(idSala -> {
+                Sala sala = salasPorId.get(idSala);
+                if (sala != null) {
+                    presencia.publicar(sala.nombre, nombreUsuario, actual);
+                }
+            });
+        }
+        
+        // Método para responder a /buscar con una página de resultados de la sala actual
+        private void buscarEnHistorial(String argumentos) throws IOException {
+            int pagina = 1;
+            if (argumentos.startsWith("#")) {
+                int espacio = argumentos.indexOf(' ');
+                try {
+                    pagina = Math.max(1, Integer.parseInt(espacio > 0 ? argumentos.substring(1, espacio) : argumentos.substring(1)));
+                } catch (NumberFormatException e) {
+                    enviarMensaje("Formato incorrecto. Uso: /buscar [#página] texto");
+                    return;
+                }
+                argumentos = espacio > 0 ? argumentos.substring(espacio + 1).trim() : "";
+            }
+            if (argumentos.isEmpty()) {
+                enviarMensaje("Formato incorrecto. Uso: /buscar [#página] texto");
+                return;
+            }
+            // Las páginas profundas cuestan lo mismo que todas las anteriores: se limita la profundidad
+            if (pagina > MAX_PAGINAS_BUSQUEDA) {
+                enviarMensaje("Error: Sólo se pueden ver las primeras " + MAX_PAGINAS_BUSQUEDA
+                              + " páginas de resultados; prueba con una búsqueda más concreta.");
+                return;
+            }
+            
+            HistorialSalas.Pagina resultado = historial.buscar(salaActual, argumentos, pagina);
+            if (resultado.resultados.isEmpty()) {
+                enviarMensaje(pagina == 1 ? "No hay mensajes en " + salaActual + " que coincidan con \"" + argumentos + "\"."
+                                          : "No hay más resultados para \"" + argumentos + "\".");
+                return;
+            }
+            java.text.SimpleDateFormat formato = new java.text.SimpleDateFormat("dd/MM/yy HH:mm");
+            StringBuilder respuesta = new StringBuilder("Resultados de \"" + argumentos + "\" en " + salaActual
+                + " (página " + pagina + "):\n");
+            for (HistorialSalas.Resultado encontrado : resultado.resultados) {
+                respuesta.append("  ").append(formato.format(new Date(encontrado.fecha))).append(' ')
+                         .append(encontrado.remitente).append(": ").append(encontrado.texto).append('\n');
+            }
+            if (resultado.hayMas && pagina < MAX_PAGINAS_BUSQUEDA) {
+                respuesta.append("Más resultados: /buscar #").append(pagina + 1).append(' ').append(argumentos);
+            }
+            enviarMensaje(respuesta.toString());
+        }
+        
+        // Método para aplicar el límite de tasa correspondiente al tipo de mensaje
+        private boolean verificarLimite(String mensaje) {
+            LimitadorTasa.Tipo tipo;
+            String sala = null;
+            if (mensaje.startsWith("/salir")) {
+                return true;
+            } else if (mensaje.startsWith(COMANDO_ARCHIVO)) {
+                tipo = LimitadorTasa.Tipo.ARCHIVO;
+            } else if (mensaje.startsWith("/crearsala ")) {
+                tipo = LimitadorTasa.Tipo.CREAR_SALA;
+            } else {
+                tipo = LimitadorTasa.Tipo.CHAT;
+                // Los mensajes normales se difunden a la sala actual y consumen también su presupuesto
+                if (!mensaje.startsWith("/")) {
+                    sala = salaActual;
+                }
+            }
+            
+            LimitadorTasa.Resultado resultado = limitador.permitir(tipo, sala);
+            if (resultado == LimitadorTasa.Resultado.PERMITIDO) {
+                return true;
+            }
+            
+            if (resultado == LimitadorTasa.Resultado.DESCONECTAR) {
+                Registro.aviso("limite.desconexion", "usuario", nombreUsuario, "tipo", tipo);
+                enviarMensaje("Has sido desconectado por exceder repetidamente el límite de mensajes.");
+                cerrarConexion();
+            } else if (limitador.debeAvisar()) {
+                Registro.muestreado("limite.rechazo", "usuario", nombreUsuario, "tipo", tipo, "sala", sala, "resultado", resultado);
+                if (resultado == LimitadorTasa.Resultado.SALA_LIMITADA) {
+                    enviarMensaje("Aviso: La sala " + sala + " está recibiendo demasiados mensajes. Algunos de los tuyos no se han entregado.");
+                } else {
+                    enviarMensaje("Aviso: Estás enviando demasiado rápido. Algunos mensajes no se han entregado.");
+                }
+            }
+            return false;
+        }
+        
         // Método para enviar un mensaje al cliente
         public void enviarMensaje(String mensaje) {
-            salida.println(mensaje);
+            enviarMensaje(mensaje, ColaSalida.Clase.CONTROL, null);
+        }
+        
+        // Método para enviar un mensaje indicando su clase (chat o presencia se degradan si el cliente va atrasado)
+        public void enviarMensaje(String mensaje, ColaSalida.Clase clase, String sala) {
+            if (suspendido) {
+                guardarPerdido(mensaje, clase, sala);
+                return;
+            }
+            salida.encolar(mensaje, clase, sala);
+        }
+        
+        // Método para reenviar las listas completas de salas y usuarios a este cliente
+        private void reenviarListas() {
+            StringBuilder listaSalas = new StringBuilder("SALAS:");
+            for (String sala : salas.keySet()) {
+                listaSalas.append("|").append(sala);
+            }
+            enviarMensaje(listaSalas.toString(), ColaSalida.Clase.PRESENCIA, null);
+            if (modoGrande) {
+                enviarMensaje("USUARIOS_PAGINADOS", ColaSalida.Clase.PRESENCIA, null);
+            } else {
+                StringBuilder listaUsuarios = new StringBuilder("USUARIOS:");
+                for (String usuario : clientesConectados.keySet()) {
+                    listaUsuarios.append("|").append(usuario);
+                }
+                enviarMensaje(listaUsuarios.toString(), ColaSalida.Clase.PRESENCIA, null);
+            }
+            // Los estados de la sala actual también pudieron perderse
+            Sala sala = salas.get(salaActual);
+            if (sala != null) {
+                enviarMensaje(tramaEstadosSala(sala), ColaSalida.Clase.PRESENCIA, null);
+            }
+        }
+        
+        // Método para expulsar una conexión que dejó de leer, sin intentar vaciar su cola
+        private void expulsar() {
+            Registro.aviso("salida.expulsion", "usuario", nombreUsuario, "pendientes", salida.getPendientes(),
+                           "msSinProgreso", salida.getMsSinProgreso());
+            Metricas.incrementar("salida.expulsiones");
+            salida.cerrar(false);
+            cerrarConexion();
         }
         
         // Método para cerrar la conexión
         private void cerrarConexion() {
+            // Evitar cerrar dos veces (por /salir y al terminar el bucle de lectura)
+            if (!cerrado.compareAndSet(false, true)) {
+                return;
+            }
             try {
-                // Eliminar de las salas
-                for (Set<String> usuarios : salas.values()) {
-                    usuarios.remove(nombreUsuario);
+                if (token != null) {
+                    sesiones.remove(token, this);
                 }
+                darDeBaja();
                 
-                // Eliminar de los clientes conectados
-                clientesConectados.remove(nombreUsuario);
+                // Cerrar recursos: la cola entrega lo pendiente y después cierra el socket
+                if (salida != null) {
+                    // Indicar al cliente que no intente reanudar (salvo en un reinicio, donde debe volver)
+                    if (token != null && !drenando) {
+                        salida.encolar("SESION_TERMINADA");
+                    }
+                    salida.cerrar(true);
+                } else if (clienteSocket != null && !clienteSocket.isClosed()) {
+                    clienteSocket.close();
+                }
+                
+                Registro.info("conexion.cerrada", "usuario", nombreUsuario);
+            } catch (IOException e) {
+                Registro.error("conexion.error_cierre", e, "usuario", nombreUsuario);
+            }
+        }
+        
+        // Método para quitar al usuario de las salas y avisar a los demás de su salida
+        private void darDeBaja() {
+            // Sólo deshacer el registro si esta conexión es la registrada con ese nombre
+            if (nombreUsuario != null && clientesConectados.remove(nombreUsuario, this)) {
+                // Eliminar de las salas en las que estaba y liberar su identificador después, para
+                // que ningún mapa de bits lo conserve cuando se reasigne
+                boolean conEstado = !getEstadoVisible().equals(PresenciaSalas.ACTIVO);
+                salasUnidas.paraCada(idSala -> {
+                    Sala sala = salasPorId.get(idSala);
+                    if (sala != null) {
+                        sala.miembros.quitar(id);
+                        if (multicast != null) {
+                            multicast.quitar(sala.nombre, id);
+                        }
+                        notificarCambioMiembro(sala, id, nombreUsuario, false);
+                        if (conEstado) {
+                            presencia.publicar(sala.nombre, nombreUsuario, PresenciaSalas.ACTIVO);
+                        }
+                    }
+                });
+                usuariosPorId.liberar(id, this);
                 
                 // Notificar a todos los usuarios
-                for (ClienteHandler cliente : clientesConectados.values()) {
-                    cliente.enviarMensaje("El usuario " + nombreUsuario + " se ha desconectado.");
+                if (!modoGrande) {
+                    for (ClienteHandler cliente : clientesConectados.values()) {
+                        cliente.enviarMensaje("El usuario " + nombreUsuario + " se ha desconectado.", ColaSalida.Clase.PRESENCIA, null);
+                    }
                 }
                 
                 // Actualizar listas de usuarios
                 notificarListaUsuarios();
-                
-                // Cerrar recursos
-                if (salida != null) salida.close();
-                if (entrada != null) entrada.close();
-                if (clienteSocket != null && !clienteSocket.isClosed()) clienteSocket.close();
-                
-                System.out.println("Conexión cerrada para el usuario: " + nombreUsuario);
-            } catch (IOException e) {
-                System.err.println("Error al cerrar la conexión: " + e.getMessage());
             }
         }
     }
     
+    // Clase para representar una sala: su identificador denso y sus miembros como mapa de bits
+    static class Sala {
+        final int id;
+        final String nombre;
+        final ConjuntoIds miembros = new ConjuntoIds();
+        
+        Sala(String nombre) {
+            this.nombre = nombre;
+            this.id = salasPorId.asignar(this);
+        }
+    }
+    
     // Clase para representar una transferencia de archivo
-    private static class TransferenciaArchivo {
+    static class TransferenciaArchivo {
+        // Identificadores únicos también entre reinicios: parten de la hora de arranque
+        private static final AtomicLong SIGUIENTE_ID = new AtomicLong(System.currentTimeMillis());
+        
+        private final long id = SIGUIENTE_ID.getAndIncrement();
         private String emisor;
         private String destinatario;
         private String nombreArchivo;
         private long tamaño;
         private String rutaArchivo;
+        private volatile String hash;
+        private volatile boolean cargado;
+        private final AtomicInteger receptoresPendientes = new AtomicInteger();
+        private volatile RuedaTemporizadores.Temporizador caducidad;
+        private volatile CuotaTemporal.Reserva reserva;
         
         public TransferenciaArchivo(String emisor, String destinatario, String nombreArchivo, long tamaño) {
             this.emisor = emisor;
@@ -694,6 +2199,10 @@ public class Servidor {
             this.tamaño = tamaño;
         }
         
+        public long getId() {
+            return id;
+        }
+        
         public String getEmisor() {
             return emisor;
         }
@@ -718,6 +2227,65 @@ public class Servidor {
             this.rutaArchivo = rutaArchivo;
         }
         
+        public String getHash() {
+            return hash;
+        }
+        
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+        
+        // Anuncio para los receptores: ARCHIVO:remitente:nombreArchivo:tamaño:hash:id; el receptor
+        // pide la descarga con el id para recibir justo este archivo
+        public String getAnuncio() {
+            return "ARCHIVO:" + emisor + ":" + nombreArchivo + ":" + tamaño + ":" + (hash != null ? hash : "") + ":" + id;
+        }
+        
+        public boolean isCargado() {
+            return cargado;
+        }
+        
+        public void setCargado(boolean cargado) {
+            this.cargado = cargado;
+        }
+        
+        public void setReceptoresPendientes(int receptores) {
+            receptoresPendientes.set(receptores);
+        }
+        
+        // Método para programar la caducidad de la transferencia, cancelando la que hubiera
+        public void setCaducidad(RuedaTemporizadores.Temporizador nueva) {
+            RuedaTemporizadores.Temporizador anterior = caducidad;
+            caducidad = nueva;
+            if (anterior != null) {
+                anterior.cancelar();
+            }
+        }
+        
+        public void cancelarCaducidad() {
+            setCaducidad(null);
+        }
+        
+        public CuotaTemporal.Reserva getReserva() {
+            return reserva;
+        }
+        
+        public void setReserva(CuotaTemporal.Reserva reserva) {
+            this.reserva = reserva;
+        }
+        
+        // Método para devolver a la cuota de temp/ el espacio de la transferencia
+        public void liberarEspacio() {
+            if (reserva != null) {
+                reserva.liberar();
+            }
+        }
+        
+        // Registra una descarga; devuelve true si era el último receptor pendiente
+        public boolean receptorAtendido() {
+            return receptoresPendientes.decrementAndGet() <= 0;
+        }
+        
         public boolean esParaSala() {
             // Verificar si el destinatario es una sala (no un usuario)
             return salas.containsKey(destinatario);
@@ -735,20 +2303,97 @@ public class Servidor {
         }
     }
     
-    // Método principal
+    // Método para la ejecución de entrenamiento del archivo CDS: recorre como cliente el camino de
+    // una conexión normal (inicio de sesión, comandos y una carga de archivo a una sala vacía) para
+    // que sus clases queden en el archivo, y después detiene el servidor
+    private void entrenarArranque() {
+        String nombre = "entrenamiento-cds";
+        byte[] contenido = new byte[64 * 1024];
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), puerto)) {
+            socket.setSoTimeout(10000);
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            if (contextoTLS != null) {
+                CanalTLS cifrado = CanalTLS.cliente(socket, contextoTLS, "localhost", puerto);
+                is = cifrado.getEntrada();
+                os = cifrado.getSalida();
+            }
+            PrintWriter escritor = new PrintWriter(new OutputStreamWriter(os), true);
+            BufferedReader lector = new BufferedReader(new InputStreamReader(is));
+            lector.readLine();
+            escritor.println(nombre);
+            for (String comando : Arrays.asList("/salas", "/usuarios", "/miembros", "/estado ausente", "/ayuda", "/metricas")) {
+                escritor.println(comando);
+            }
+            escritor.println(COMANDO_ARCHIVO + " Sala-General entrenamiento.bin " + contenido.length);
+            String linea;
+            while ((linea = lector.readLine()) != null && !linea.startsWith("Preparando transferencia")) {
+                // Respuestas de los comandos anteriores
+            }
+            try (Socket archivo = new Socket(InetAddress.getLoopbackAddress(), puerto + 1)) {
+                archivo.setSoTimeout(10000);
+                OutputStream salidaArchivo = archivo.getOutputStream();
+                InputStream entradaArchivo = archivo.getInputStream();
+                if (contextoTLS != null) {
+                    CanalTLS cifrado = CanalTLS.cliente(archivo, contextoTLS, "localhost", puerto);
+                    salidaArchivo = cifrado.getSalida();
+                    entradaArchivo = cifrado.getEntrada();
+                }
+                salidaArchivo.write((nombre + "\n").getBytes());
+                salidaArchivo.write(contenido);
+                salidaArchivo.flush();
+                // El servidor cierra la conexión cuando termina de procesar la carga
+                while (entradaArchivo.read() != -1) {
+                    // Descartar
+                }
+            }
+            escritor.println("/salir");
+        } catch (IOException e) {
+            Registro.aviso("cds.error_entrenamiento", "error", e.getMessage());
+        }
+        detener();
+    }
+    
+    // Método principal. Para arrancar más rápido con un archivo CDS (class-data sharing) de las
+    // clases del servidor, se genera una vez con una ejecución de entrenamiento y se usa después
+    // (la JVM sólo archiva las clases que se cargan desde un jar):
+    //   java -XX:ArchiveClassesAtExit=servidor.jsa -cp chat.jar servidor.Servidor [puerto] --entrenar-cds
+    //   java -XX:SharedArchiveFile=servidor.jsa -cp chat.jar servidor.Servidor [puerto]
     public static void main(String[] args) {
         int puerto = PUERTO;
         
-        // Si se proporciona un puerto como argumento, utilizarlo
-        if (args.length > 0) {
-            try {
-                puerto = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.err.println("Formato de puerto inválido. Usando puerto por defecto: " + PUERTO);
+        // Argumentos: el puerto (opcional) y --entrenar-cds
+        for (String argumento : args) {
+            if (argumento.equals("--entrenar-cds")) {
+                entrenamiento = true;
+            } else {
+                try {
+                    puerto = Integer.parseInt(argumento);
+                } catch (NumberFormatException e) {
+                    System.err.println("Formato de puerto inválido. Usando puerto por defecto: " + PUERTO);
+                }
             }
         }
         
-        // Iniciar el servidor
-        new Servidor(puerto);
+        // Iniciar el servidor; si no se pueden abrir los puertos no hay nada que drenar ni guardar
+        Servidor servidor = new Servidor(puerto);
+        try {
+            servidor.iniciar();
+        } catch (IOException e) {
+            Registro.error("servidor.error_inicio", e, "puerto", puerto);
+            System.err.println("No se pudo iniciar el servidor en los puertos " + puerto + " y " + (puerto + 1) + ": " + e.getMessage());
+            System.exit(1);
+        }
+        
+        if (entrenamiento) {
+            servidor.entrenarArranque();
+            System.exit(0);
+        }
+        
+        try {
+            servidor.esperar();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
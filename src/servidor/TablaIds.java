@@ -0,0 +1,68 @@
+package servidor;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Tabla de identificadores enteros densos: asigna a cada elemento (usuario o sala) el primer
+// identificador libre y lo guarda en un arreglo indexado por él, de modo que buscarlo desde un
+// ConjuntoIds es un acceso a arreglo.
+//
+// Las escrituras se serializan con el monitor de la tabla; las lecturas no se bloquean. Los
+// identificadores liberados se reutilizan por orden de liberación (el más antiguo primero) para
+// que un recorrido que aún tenga una instantánea anterior rara vez lo encuentre ya reasignado.
+final class TablaIds<T> {
+
+    private static final int CAPACIDAD_INICIAL = 64;
+
+    private volatile AtomicReferenceArray<T> elementos = new AtomicReferenceArray<>(CAPACIDAD_INICIAL);
+    private final ArrayDeque<Integer> libres = new ArrayDeque<>();
+    private int siguiente;
+    private volatile int enUso;
+
+    // Método para asignar un identificador a un elemento
+    synchronized int asignar(T elemento) {
+        Integer libre = libres.pollFirst();
+        int id = libre != null ? libre : siguiente++;
+        AtomicReferenceArray<T> actuales = elementos;
+        if (id >= actuales.length()) {
+            // Crecer al doble; las escrituras van siempre al arreglo vigente porque todas toman el monitor
+            AtomicReferenceArray<T> nuevos = new AtomicReferenceArray<>(actuales.length() * 2);
+            for (int i = 0; i < actuales.length(); i++) {
+                nuevos.lazySet(i, actuales.get(i));
+            }
+            actuales = nuevos;
+            elementos = nuevos;
+        }
+        actuales.set(id, elemento);
+        enUso++;
+        return id;
+    }
+
+    // Método para sustituir el elemento de un identificador (p. ej. al reanudar una sesión)
+    synchronized boolean reemplazar(int id, T anterior, T nuevo) {
+        return elementos.compareAndSet(id, anterior, nuevo);
+    }
+
+    // Método para liberar un identificador si sigue perteneciendo al elemento indicado
+    synchronized boolean liberar(int id, T elemento) {
+        if (!elementos.compareAndSet(id, elemento, null)) {
+            return false;
+        }
+        libres.addLast(id);
+        enUso--;
+        return true;
+    }
+
+    T get(int id) {
+        AtomicReferenceArray<T> actuales = elementos;
+        return id >= 0 && id < actuales.length() ? actuales.get(id) : null;
+    }
+
+    int getEnUso() {
+        return enUso;
+    }
+
+    int getCapacidad() {
+        return elementos.length();
+    }
+}